@@ -0,0 +1,239 @@
+package minesweeper.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protects a server from its clients: caps the number of connections, limits the rate of the
+ * commands of every connection with a token bucket, and a second bucket counting the cells
+ * rendered or changed by expensive commands (look, digs opening large areas), and evicts the
+ * connections that stay idle or stuck writing to a client that does not read.
+ * Kernel send buffers are bounded, so that a slow consumer blocks its writer soon and
+ * the write timeout applies. A limit of 0 disables it.
+ * Every rejected connection, throttled command and evicted connection is counted.
+ * A connection is idle only between the answer to a command and the next request, so that a
+ * long command is never evicted while it runs.
+ * Thread safe: the counters are atomic, the connections are kept in a concurrent set,
+ * and the reaper only reads their volatile times and closes their sockets.
+ */
+public final class AdmissionControl {
+
+    /** Answer to a throttled command */
+    public static final String THROTTLED_MSG = "throttled: too many requests, retry later";
+    /** Line sent to a rejected connection before it is closed */
+    public static final String FULL_MSG = "server full: too many clients, retry later";
+
+    private final int maxClients;
+    private final double commandRate;
+    private final double commandBurst;
+    private final double cellRate;
+    private final double cellBurst;
+    private final long idleNanos;
+    private final long writeNanos;
+    private final int sendBuffer;
+
+    private final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong evictedIdle = new AtomicLong();
+    private final AtomicLong evictedSlow = new AtomicLong();
+    /** Thread closing the idle and slow connections, null if there is no timeout */
+    private final Thread reaper;
+
+    /**
+     * @param maxClients Integer representing the largest number of connections, 0 for no limit
+     * @param commandRate commands per second of a connection, 0 for no limit
+     * @param commandBurst commands a connection may send at once
+     * @param cellRate cells per second a connection may have rendered or changed, 0 for no limit
+     * @param cellBurst cells a connection may have rendered or changed at once
+     * @param idleMillis milliseconds after which a connection without requests is closed, 0 for never
+     * @param writeMillis milliseconds after which a connection whose answer is not read is closed, 0 for never
+     * @param sendBuffer Integer representing the bytes of the kernel send buffer of a connection, 0 for the default
+     */
+    public AdmissionControl(int maxClients, double commandRate, double commandBurst, double cellRate, double cellBurst,
+            long idleMillis, long writeMillis, int sendBuffer) {
+        this.maxClients = maxClients;
+        this.commandRate = commandRate;
+        this.commandBurst = commandBurst;
+        this.cellRate = cellRate;
+        this.cellBurst = cellBurst;
+        this.idleNanos = idleMillis * 1000000;
+        this.writeNanos = writeMillis * 1000000;
+        this.sendBuffer = sendBuffer;
+        if(idleMillis > 0 || writeMillis > 0) {
+            long period = Math.max(10, Math.min(1000, Math.min(idleMillis > 0 ? idleMillis : Long.MAX_VALUE,
+                    writeMillis > 0 ? writeMillis : Long.MAX_VALUE) / 4));
+            reaper = new Thread(new Runnable() {
+                public void run() {
+                    reap(period);
+                }
+            }, "client-reaper");
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+        else
+            reaper = null;
+    }
+
+    /**
+     * Creates the admission control configured by the system properties minesweeper.maxclients,
+     * minesweeper.rate (commands per second, the burst being minesweeper.burst or else the rate),
+     * minesweeper.cellrate (cells per second, the burst being minesweeper.cellburst or else the
+     * rate), minesweeper.idletimeout and minesweeper.writetimeout (milliseconds) and
+     * minesweeper.sendbuffer (bytes); only the write timeout is set by default, to 60 seconds
+     * @return the admission control
+     */
+    public static AdmissionControl fromProperties() {
+        double rate = Double.parseDouble(System.getProperty("minesweeper.rate", "0"));
+        double cellRate = Double.parseDouble(System.getProperty("minesweeper.cellrate", "0"));
+        return new AdmissionControl(Integer.getInteger("minesweeper.maxclients", 0),
+                rate, Double.parseDouble(System.getProperty("minesweeper.burst", Double.toString(rate))),
+                cellRate, Double.parseDouble(System.getProperty("minesweeper.cellburst", Double.toString(cellRate))),
+                Long.getLong("minesweeper.idletimeout", 0), Long.getLong("minesweeper.writetimeout", 60000),
+                Integer.getInteger("minesweeper.sendbuffer", 0));
+    }
+
+    /**
+     * Admits a new connection if the cap allows it
+     * @param socket the socket of the connection
+     * @return the admission state of the connection, to be released once it is closed,
+     * or null if the connection is rejected
+     * @throws IOException if the send buffer cannot be set
+     */
+    ClientConnection admit(Socket socket) throws IOException {
+        for(int count = connected.get(); ; count = connected.get()) {
+            if(maxClients > 0 && count >= maxClients) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            if(connected.compareAndSet(count, count + 1))
+                break;
+        }
+        if(sendBuffer > 0) {
+            try {
+                socket.setSendBufferSize(sendBuffer);
+            }
+            catch (IOException e) {
+                connected.decrementAndGet();
+                throw e;
+            }
+        }
+        ClientConnection connection = new ClientConnection(socket, admitted.incrementAndGet(),
+                commandRate > 0 ? new TokenBucket(commandRate, commandBurst) : null,
+                cellRate > 0 ? new TokenBucket(cellRate, cellBurst) : null);
+        connections.add(connection);
+        return connection;
+    }
+
+    /**
+     * Forgets a closed connection
+     */
+    void release(ClientConnection connection) {
+        if(connections.remove(connection))
+            connected.decrementAndGet();
+    }
+
+    /**
+     * Stops the reaper, after which no connection is evicted; the connections stay open
+     */
+    public void close() {
+        if(reaper == null)
+            return;
+        reaper.interrupt();
+        try {
+            reaper.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Counts a throttled command
+     */
+    void throttled() {
+        throttled.incrementAndGet();
+    }
+
+    /**
+     * Closes the idle connections and the connections stuck writing, every period milliseconds
+     */
+    private void reap(long period) {
+        while(true) {
+            try {
+                Thread.sleep(period);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for(ClientConnection connection : connections) {
+                long writingSince = connection.getWritingSince();
+                if(writeNanos > 0 && writingSince != 0 && now - writingSince > writeNanos)
+                    evict(connection, evictedSlow);
+                else if(idleNanos > 0 && writingSince == 0 && !connection.isBusy()
+                        && now - connection.getLastActivity() > idleNanos)
+                    evict(connection, evictedIdle);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection, which makes its thread fail reading or writing and release it
+     */
+    private void evict(ClientConnection connection, AtomicLong counter) {
+        if(connection.isEvicted())
+            return;
+        connection.evict();
+        counter.incrementAndGet();
+        try {
+            connection.getSocket().close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the number of connections admitted and not closed yet
+     */
+    public int getConnected() {
+        return connected.get();
+    }
+
+    /**
+     * @return the number of connections rejected because of the cap
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of commands throttled
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the number of connections evicted, idle or stuck writing
+     */
+    public long getEvicted() {
+        return evictedIdle.get() + evictedSlow.get();
+    }
+
+    /**
+     * @return the counters, as answered to the clients command
+     */
+    public String toString() {
+        return connected.get() + " clients connected, " + rejected.get() + " rejected, " + throttled.get()
+                + " commands throttled, " + evictedIdle.get() + " idle and " + evictedSlow.get()
+                + " slow clients evicted";
+    }
+}
@@ -0,0 +1,190 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+    /**
+     * Starts a server in debug mode on a free port
+     * @return the port
+     */
+    private static int startServer(Board board, AdmissionControl admission) throws IOException {
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+        final MinesweeperServer server = new MinesweeperServer(port, true, board, admission);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return port;
+    }
+
+    /**
+     * Waits for a counter of an admission control to reach a value
+     */
+    private static void awaitEvicted(AdmissionControl admission, long evicted) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(admission.getEvicted() < evicted) {
+            assertTrue("eviction timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void tokenBucketTest() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 3);
+        assertTrue(bucket.tryTake(1));
+        assertTrue(bucket.tryTake(2));
+        assertFalse(bucket.tryTake(1));
+        Thread.sleep(50);
+        assertTrue(bucket.tryTake(2));
+        // a cost only known afterwards leaves the bucket in debt
+        bucket.charge(1000);
+        assertFalse(bucket.hasTokens());
+    }
+
+    @Test
+    public void connectionCapTest() throws IOException, InterruptedException {
+        AdmissionControl admission = new AdmissionControl(2, 0, 0, 0, 0, 0, 0, 0);
+        int port = startServer(new Board(new boolean[3][3]), admission);
+        Socket first = new Socket("localhost", port);
+        Socket second = new Socket("localhost", port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(second.getInputStream()));
+        assertTrue(in.readLine().startsWith("Welcome to Minesweeper. \"2\""));
+        Socket third = new Socket("localhost", port);
+        assertEquals(AdmissionControl.FULL_MSG, new BufferedReader(new InputStreamReader(third.getInputStream())).readLine());
+        assertEquals(1, admission.getRejected());
+        third.close();
+
+        first.close();
+        long deadline = System.currentTimeMillis() + 10000;
+        while(admission.getConnected() > 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Socket fourth = new Socket("localhost", port);
+        assertTrue(new BufferedReader(new InputStreamReader(fourth.getInputStream())).readLine().startsWith("Welcome"));
+        fourth.close();
+        second.close();
+    }
+
+    @Test
+    public void throttleTest() throws IOException {
+        // 2 commands at once, and a single look of the 100 cells of the board, which leaves the cells in debt
+        AdmissionControl admission = new AdmissionControl(0, 0.001, 2, 0.001, 50, 0, 0, 0);
+        int port = startServer(new Board(new boolean[10][10]), admission);
+        Socket socket = new Socket("localhost", port);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            in.readLine();
+            out.println("look");
+            for(int line = 0; line <= 10; line++)
+                in.readLine();
+            out.println("look");
+            assertEquals(AdmissionControl.THROTTLED_MSG, in.readLine());
+            out.println("status");
+            assertTrue(in.readLine().startsWith("playing"));
+            out.println("status");
+            assertEquals(AdmissionControl.THROTTLED_MSG, in.readLine());
+            out.println("clients");
+            assertEquals("1 clients connected, 0 rejected, 2 commands throttled, 0 idle and 0 slow clients evicted",
+                    in.readLine());
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void idleEvictionTest() throws IOException, InterruptedException {
+        AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0, 200, 0, 0);
+        int port = startServer(new Board(new boolean[3][3]), admission);
+        Socket socket = new Socket("localhost", port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        in.readLine();
+        awaitEvicted(admission, 1);
+        assertNull(in.readLine());
+        socket.close();
+    }
+
+    @Test
+    public void busyConnectionTest() throws IOException, InterruptedException {
+        AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0, 100, 0, 0);
+        ServerSocket server = new ServerSocket(0);
+        Socket client = new Socket("localhost", server.getLocalPort());
+        Socket accepted = server.accept();
+        try {
+            ClientConnection connection = admission.admit(accepted);
+            // a command running longer than the idle timeout is not evicted
+            connection.beginCommand();
+            Thread.sleep(400);
+            assertEquals(0, admission.getEvicted());
+            connection.beginWrite();
+            connection.endWrite();
+            awaitEvicted(admission, 1);
+            assertTrue(accepted.isClosed());
+        }
+        finally {
+            client.close();
+            accepted.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void closeTest() throws IOException, InterruptedException {
+        AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0, 100, 0, 0);
+        admission.close();
+        ServerSocket server = new ServerSocket(0);
+        Socket client = new Socket("localhost", server.getLocalPort());
+        Socket accepted = server.accept();
+        try {
+            // once closed, the reaper leaves the idle connections open
+            admission.admit(accepted);
+            Thread.sleep(400);
+            assertEquals(0, admission.getEvicted());
+            assertFalse(accepted.isClosed());
+        }
+        finally {
+            client.close();
+            accepted.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void slowConsumerEvictionTest() throws IOException, InterruptedException {
+        AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0, 0, 300, 8192);
+        int port = startServer(new Board(new boolean[400][400]), admission);
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(8192);
+        socket.connect(new InetSocketAddress("localhost", port));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        // every answer takes 320 KB, which the client never reads
+        for(int i = 0; i < 10; i++)
+            out.println("look");
+        awaitEvicted(admission, 1);
+        assertTrue(admission.toString().endsWith("0 idle and 1 slow clients evicted"));
+        socket.close();
+    }
+}
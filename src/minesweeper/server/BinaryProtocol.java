@@ -0,0 +1,314 @@
+package minesweeper.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol a client may switch to by sending the line "binary" on a text connection,
+ * once the server has answered it with the line "binary" (the client must not send frames before).
+ * Both ways, every message is then a frame: its length as a varint followed by its bytes.
+ *
+ * REQUEST :== OPCODE ARGUMENT*, the OPCODE being a byte and every ARGUMENT a varint:
+ * LOOK, STATUS, DEFLAG_ALL, PROMOTE, CLIENTS, NEW_GAME, POOL and BYE take no argument, DIG, FLAG, DEFLAG and CHORD
+ * take X Y, FLAG_RECT, DEFLAG_RECT and COUNT take X Y WIDTH HEIGHT and DIG_LIST takes COUNT followed
+ * by COUNT pairs X Y, with the same meaning as in the text protocol. COMPRESS takes MODE and,
+ * for BoardEncoder.DEFLATE, a LEVEL between 0 and 9 (1 by default); it chooses how the following
+ * boards of the connection are encoded and is answered by a MESSAGE.
+ * RESPONSE :== BOARD ROWS COLUMNS CELLS | BOARD_RUN_LENGTH ... | BOARD_DEFLATE ... | MESSAGE UTF8
+ * | BOOM | INVALID, the type being a byte, ROWS and COLUMNS varints and CELLS the cells in row
+ * order packed by two in a byte, the first in the high half, each as 0 to 8 for a dug cell with
+ * as many adjacent bombs, UNTOUCHED_CODE or FLAGGED_CODE. The compressed boards are described
+ * in BoardEncoder.
+ * Every request but BYE is answered by exactly one response; the server closes the connection
+ * after BYE, and after BOOM unless it runs in debug mode.
+ *
+ * Varints are unsigned LEB128: 7 bits per byte, least significant first, the highest bit
+ * of a byte being set when another byte follows.
+ * This class is thread safe because it only has static methods; buffers belong to their caller.
+ */
+final class BinaryProtocol {
+
+    /** Line sent by the client and echoed by the server to switch a connection to frames */
+    static final String HANDSHAKE = "binary";
+
+    static final int LOOK = BoardCommand.LOOK;
+    static final int DIG = BoardCommand.DIG;
+    static final int FLAG = BoardCommand.FLAG;
+    static final int DEFLAG = BoardCommand.DEFLAG;
+    static final int CHORD = BoardCommand.CHORD;
+    static final int FLAG_RECT = BoardCommand.FLAG_RECT;
+    static final int DEFLAG_RECT = BoardCommand.DEFLAG_RECT;
+    static final int DEFLAG_ALL = BoardCommand.DEFLAG_ALL;
+    static final int DIG_LIST = BoardCommand.DIG_LIST;
+    static final int STATUS = BoardCommand.STATUS;
+    static final int PROMOTE = 10;
+    static final int BYE = 11;
+    static final int COMPRESS = 12;
+    static final int CLIENTS = 13;
+    static final int NEW_GAME = 14;
+    static final int POOL = 15;
+    static final int COUNT = BoardCommand.COUNT;
+
+    static final byte BOARD = 0;
+    static final byte MESSAGE = 1;
+    static final byte BOOM = 2;
+    static final byte INVALID = 3;
+    static final byte BOARD_RUN_LENGTH = 4;
+    static final byte BOARD_DEFLATE = 5;
+
+    static final int UNTOUCHED_CODE = 9;
+    static final int FLAGGED_CODE = 10;
+
+    /** Longest request frame accepted, larger ones closing the connection */
+    static final int MAX_REQUEST = 1 << 20;
+
+    /** Code of every packed cell without its sign bit, see BoardCell */
+    private static final byte[] CODES = new byte[128];
+    static {
+        for(int cell = 0; cell < CODES.length; cell++)
+            CODES[cell] = (byte) computeCode((byte) cell);
+    }
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * @param cell a packed cell (see BoardCell)
+     * @return the 4 bit code of the cell as seen by the clients
+     */
+    static int code(byte cell) {
+        return CODES[cell & 0x7F];
+    }
+
+    private static int computeCode(byte cell) {
+        if(BoardCell.isStatusFlagged(cell))
+            return FLAGGED_CODE;
+        else if(BoardCell.isStatusUntouched(cell))
+            return UNTOUCHED_CODE;
+        else
+            return BoardCell.getAdjacentBombs(cell);
+    }
+
+    /**
+     * @param code the 4 bit code of a cell
+     * @return the character of the cell in the text protocol
+     */
+    static char toChar(int code) {
+        if(code == FLAGGED_CODE)
+            return 'F';
+        else if(code == UNTOUCHED_CODE)
+            return '-';
+        else if(code == 0)
+            return ' ';
+        else
+            return (char) ('0' + code);
+    }
+
+    /**
+     * @return the number of bytes of a varint
+     */
+    static int varintSize(int value) {
+        int size = 1;
+        while((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    /**
+     * Appends a varint to a buffer
+     * @param value Integer to write, requires >= 0
+     */
+    static void putVarint(ByteBuffer buffer, int value) {
+        while((value & ~0x7F) != 0) {
+            buffer.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads a varint from a buffer
+     * @return the value read, >= 0
+     * @throws java.nio.BufferUnderflowException if the buffer ends within the varint
+     * @throws IllegalArgumentException if the varint does not hold a non negative int
+     */
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if(b >= 0) {
+                if(shift == 28 && (b & 0x78) != 0)
+                    throw new IllegalArgumentException("Varint out of range");
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /**
+     * Reads a frame
+     * @param in the input of the connection
+     * @param buffer a buffer to reuse, replaced by a larger one if the frame does not fit
+     * @param max Integer representing the longest frame accepted
+     * @return a buffer holding the frame between 0 and its limit, or null if the input ends before it
+     * @throws IOException if the input fails or ends within the frame, or if the frame is longer than max
+     */
+    static ByteBuffer readFrame(InputStream in, ByteBuffer buffer, int max) throws IOException {
+        return readFrame(in, buffer, max, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads a frame of an input whose length is known, such as a file
+     * @param in the input
+     * @param buffer a buffer to reuse, replaced by a larger one if the frame does not fit
+     * @param max Integer representing the longest frame accepted
+     * @param available Integer representing the number of bytes left in the input, a longer frame
+     * ending the input within the frame without being allocated
+     * @return a buffer holding the frame between 0 and its limit, or null if the input ends before it
+     * @throws IOException if the input fails or ends within the frame, or if the frame is longer than max
+     */
+    static ByteBuffer readFrame(InputStream in, ByteBuffer buffer, int max, long available) throws IOException {
+        int length = 0;
+        for(int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if(b < 0) {
+                if(shift == 0)
+                    return null;
+                throw new EOFException("The input ends within a frame length");
+            }
+            length |= (b & 0x7F) << shift;
+            if(b < 0x80)
+                break;
+            if(shift >= 28)
+                throw new IOException("Invalid frame length");
+        }
+        if(length < 0 || length > max)
+            throw new IOException("Frame of " + length + " bytes is too long");
+        if(length > available - varintSize(length))
+            throw new EOFException("The input ends within a frame");
+        if(buffer.capacity() < length)
+            buffer = ByteBuffer.allocate(Math.max(length, 2 * buffer.capacity()));
+        if(in.readNBytes(buffer.array(), 0, length) != length)
+            throw new EOFException("The input ends within a frame");
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    /**
+     * Writes the bytes of a buffer between 0 and its position as a frame, without flushing
+     * @param out the output of the connection
+     */
+    static void writeFrame(OutputStream out, ByteBuffer buffer) throws IOException {
+        int length = buffer.position();
+        while((length & ~0x7F) != 0) {
+            out.write(length | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * @param buffer a buffer to reuse
+     * @param capacity Integer representing the number of bytes needed
+     * @return the cleared buffer, or a new one if it is too small
+     */
+    static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+        if(buffer.capacity() < capacity)
+            return ByteBuffer.allocate(Math.max(capacity, 2 * buffer.capacity()));
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Encodes a MESSAGE, or a BOOM for the BOOM message
+     * @param buffer a buffer to reuse
+     * @return the buffer holding the response up to its position, or a new one if it is too small
+     */
+    static ByteBuffer encodeMessage(ByteBuffer buffer, String message) {
+        if(message.equals(MinesweeperServer.BOOM_MSG))
+            return ensureCapacity(buffer, 1).put(BOOM);
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        return ensureCapacity(buffer, 1 + bytes.length).put(MESSAGE).put(bytes);
+    }
+
+    /**
+     * Encodes an INVALID response
+     * @param buffer a buffer to reuse
+     * @return the buffer holding the response up to its position
+     */
+    static ByteBuffer encodeInvalid(ByteBuffer buffer) {
+        return ensureCapacity(buffer, 1).put(INVALID);
+    }
+
+    /**
+     * Encodes a BOARD straight from the cells of a snapshot, 4 bits per cell
+     * @param buffer a buffer to reuse
+     * @return the buffer holding the response up to its position, or a new one if it is too small
+     */
+    static ByteBuffer encodeBoard(ByteBuffer buffer, BoardSnapshot snapshot) {
+        int rows = snapshot.getRows();
+        int columns = snapshot.getColumns();
+        int size = rows * columns;
+        buffer = ensureCapacity(buffer, 1 + varintSize(rows) + varintSize(columns) + (size + 1) / 2);
+        buffer.put(BOARD);
+        putVarint(buffer, rows);
+        putVarint(buffer, columns);
+        byte[] array = buffer.array();
+        int position = buffer.arrayOffset() + buffer.position();
+        int index = 0;
+        for(; index + 1 < size; index += 2)
+            array[position++] = (byte) (CODES[snapshot.get(index) & 0x7F] << 4 | CODES[snapshot.get(index + 1) & 0x7F]);
+        if(index < size)
+            array[position++] = (byte) (CODES[snapshot.get(index) & 0x7F] << 4);
+        buffer.position(position - buffer.arrayOffset());
+        return buffer;
+    }
+
+    /**
+     * Decodes the payload of a BOARD response, following its type
+     * @return the board as rendered by the text protocol
+     */
+    static String decodeBoard(ByteBuffer response) {
+        int rows = getVarint(response);
+        int columns = getVarint(response);
+        StringBuilder board = new StringBuilder(rows * (2 * columns + 1));
+        int packed = 0;
+        for(int index = 0; index < rows * columns; index++) {
+            int code;
+            if((index & 1) == 0) {
+                packed = response.get();
+                code = (packed >> 4) & 0x0F;
+            }
+            else
+                code = packed & 0x0F;
+            int column = index % columns;
+            if(column > 0)
+                board.append(' ');
+            board.append(toChar(code));
+            if(column == columns - 1)
+                board.append("\r\n");
+        }
+        return board.toString();
+    }
+
+    /**
+     * Encodes a request
+     * @param buffer a buffer to reuse, large enough for the request
+     * @param opcode one of the opcodes of this class
+     * @param arguments the arguments of the request, each >= 0
+     * @return the buffer holding the request up to its position
+     */
+    static ByteBuffer encodeRequest(ByteBuffer buffer, int opcode, int... arguments) {
+        buffer.clear();
+        buffer.put((byte) opcode);
+        for(int argument : arguments)
+            putVarint(buffer, argument);
+        return buffer;
+    }
+}
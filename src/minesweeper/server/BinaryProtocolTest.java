@@ -0,0 +1,233 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class BinaryProtocolTest {
+
+    /**
+     * Starts a server in debug mode on a free port
+     * @return the port
+     */
+    private static int startServer(Board board) throws IOException {
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+        final MinesweeperServer server = new MinesweeperServer(port, true, board);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return port;
+    }
+
+    /**
+     * Reads a text line, ended by "\n"
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for(int c = in.read(); c != '\n'; c = in.read()) {
+            assertTrue(c >= 0);
+            line.append((char) c);
+        }
+        return line.toString().trim();
+    }
+
+    /**
+     * Sends a request frame and reads its response frame
+     */
+    private static ByteBuffer send(InputStream in, OutputStream out, int opcode, int... arguments) throws IOException {
+        ByteBuffer request = BinaryProtocol.encodeRequest(ByteBuffer.allocate(64), opcode, arguments);
+        BinaryProtocol.writeFrame(out, request);
+        out.flush();
+        return BinaryProtocol.readFrame(in, ByteBuffer.allocate(64), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void varintTest() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE};
+        for(int value : values)
+            BinaryProtocol.putVarint(buffer, value);
+        assertEquals(1 + 1 + 1 + 2 + 2 + 2 + 3 + 5, buffer.position());
+        buffer.flip();
+        for(int value : values) {
+            int start = buffer.position();
+            assertEquals(value, BinaryProtocol.getVarint(buffer));
+            assertEquals(BinaryProtocol.varintSize(value), buffer.position() - start);
+        }
+        try {
+            BinaryProtocol.getVarint(ByteBuffer.wrap(new byte[] {-1, -1, -1, -1, 0x0F}));
+            fail("a varint above Integer.MAX_VALUE was decoded");
+        }
+        catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void boardCodecTest() {
+        Board b = new Board(new HexTopology(7, 9));
+        b.SetStatusToFlagged(0, 0);
+        b.digCell(3, 4);
+        BoardSnapshot snapshot = b.snapshot();
+        ByteBuffer response = BinaryProtocol.encodeBoard(ByteBuffer.allocate(1), snapshot);
+        // 63 cells take 32 bytes after the type, rows and columns
+        assertEquals(3 + 32, response.position());
+        response.flip();
+        assertEquals(BinaryProtocol.BOARD, response.get());
+        assertEquals(snapshot.toString(), BinaryProtocol.decodeBoard(response));
+        assertFalse(response.hasRemaining());
+        snapshot.release();
+    }
+
+    @Test
+    public void compressedBoardTest() throws DataFormatException {
+        Board b = new Board(new GridTopology(60, 70), 0.15);
+        b.digCell(30, 30);
+        b.flagRectangle(0, 0, 5, 9);
+        BoardSnapshot snapshot = b.snapshot();
+        BoardEncoder encoder = new BoardEncoder();
+        Inflater inflater = new Inflater(true);
+        ByteBuffer packed = encoder.encode(ByteBuffer.allocate(1), snapshot);
+        
+        encoder.setMode(BoardEncoder.RUN_LENGTH, 0);
+        ByteBuffer runs = encoder.encode(ByteBuffer.allocate(1), snapshot);
+        assertTrue(runs.position() < packed.position());
+        runs.flip();
+        assertEquals(BinaryProtocol.BOARD_RUN_LENGTH, runs.get());
+        assertEquals(snapshot.toString(), BoardEncoder.decodeRunLength(runs));
+        assertFalse(runs.hasRemaining());
+        
+        // the deflater is reused from one board to the next
+        encoder.setMode(BoardEncoder.DEFLATE, 6);
+        for(int i = 0; i < 2; i++) {
+            ByteBuffer deflated = encoder.encode(ByteBuffer.allocate(1), snapshot);
+            deflated.flip();
+            assertEquals(BinaryProtocol.BOARD_DEFLATE, deflated.get());
+            assertEquals(snapshot.toString(), BoardEncoder.decodeDeflate(deflated, inflater));
+        }
+        snapshot.release();
+        encoder.end();
+        inflater.end();
+        
+        try {
+            new BoardEncoder().setMode(3, 1);
+            fail("an unknown compression was accepted");
+        }
+        catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void longRunTest() {
+        // 144M untouched cells, more than a run holds
+        Board b = new Board(new GridTopology(12000, 12000), 0.15);
+        BoardSnapshot snapshot = b.snapshot();
+        BoardEncoder encoder = new BoardEncoder();
+        encoder.setMode(BoardEncoder.RUN_LENGTH, 0);
+        ByteBuffer runs = encoder.encode(ByteBuffer.allocate(1), snapshot);
+        snapshot.release();
+        runs.flip();
+        assertEquals(BinaryProtocol.BOARD_RUN_LENGTH, runs.get());
+        assertEquals(12000, BinaryProtocol.getVarint(runs));
+        assertEquals(12000, BinaryProtocol.getVarint(runs));
+        int first = BinaryProtocol.getVarint(runs);
+        assertEquals(BoardEncoder.MAX_RUN, (first >>> 4) + 1);
+        int second = BinaryProtocol.getVarint(runs);
+        assertEquals(12000 * 12000 - BoardEncoder.MAX_RUN, (second >>> 4) + 1);
+        assertEquals(first & 0x0F, second & 0x0F);
+        assertFalse(runs.hasRemaining());
+    }
+
+    @Test
+    public void binaryConnectionTest() throws IOException, DataFormatException {
+        Board b = new Board(new File("sample_test/twoByTwo.txt"));
+        int port = startServer(b);
+        Socket socket = new Socket("localhost", port);
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            assertTrue(readLine(in).startsWith("Welcome"));
+            out.write("binary\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals("binary", readLine(in));
+
+            ByteBuffer response = send(in, out, BinaryProtocol.LOOK);
+            assertEquals(BinaryProtocol.BOARD, response.get());
+            assertEquals("- -\r\n- -\r\n", BinaryProtocol.decodeBoard(response));
+
+            // x is the column, as in the text protocol
+            response = send(in, out, BinaryProtocol.FLAG, 1, 0);
+            assertEquals(BinaryProtocol.BOARD, response.get());
+            assertEquals("- F\r\n- -\r\n", BinaryProtocol.decodeBoard(response));
+
+            response = send(in, out, BinaryProtocol.STATUS);
+            assertEquals(BinaryProtocol.MESSAGE, response.get());
+            assertEquals(b.getStatus(), StandardCharsets.UTF_8.decode(response).toString());
+
+            assertEquals(BinaryProtocol.INVALID, send(in, out, BinaryProtocol.DIG, 1).get());
+            assertEquals(BinaryProtocol.INVALID, send(in, out, 42).get());
+            assertEquals(BinaryProtocol.INVALID, send(in, out, BinaryProtocol.LOOK, 5).get());
+
+            response = send(in, out, BinaryProtocol.COMPRESS, BoardEncoder.DEFLATE);
+            assertEquals(BinaryProtocol.MESSAGE, response.get());
+            response = send(in, out, BinaryProtocol.LOOK);
+            assertEquals(BinaryProtocol.BOARD_DEFLATE, response.get());
+            assertEquals("- F\r\n- -\r\n", BoardEncoder.decodeDeflate(response, new Inflater(true)));
+            assertEquals(BinaryProtocol.INVALID, send(in, out, BinaryProtocol.COMPRESS, 7).get());
+
+            response = send(in, out, BinaryProtocol.DIG_LIST, 1, 0, 0);
+            assertEquals(BinaryProtocol.MESSAGE, response.get());
+            assertEquals("dug 1 cells", StandardCharsets.UTF_8.decode(response).toString());
+            // the cell is already dug, so none is
+            response = send(in, out, BinaryProtocol.DIG_LIST, 1, 0, 0);
+            assertEquals(BinaryProtocol.MESSAGE, response.get());
+            assertEquals("dug 0 cells", StandardCharsets.UTF_8.decode(response).toString());
+            // the server runs in debug mode, so the connection stays open
+            assertEquals(BinaryProtocol.BOOM, send(in, out, BinaryProtocol.DIG, 0, 1).get());
+
+            BinaryProtocol.writeFrame(out, BinaryProtocol.encodeRequest(ByteBuffer.allocate(8), BinaryProtocol.BYE));
+            out.flush();
+            assertEquals(-1, in.read());
+        }
+        finally {
+            socket.close();
+        }
+
+        // text clients are served as before
+        socket = new Socket("localhost", port);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            in.readLine();
+            out.write("look\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals(b.toString().split("\r\n")[0], in.readLine());
+        }
+        finally {
+            socket.close();
+        }
+    }
+}
@@ -1,38 +1,333 @@
 package minesweeper.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File; 
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 
 /** 
  * A board representing the entire Game
- * Invariant: The board is represented as a 2D array that has to be a square and not null. 
+ * Invariant: The cells are packed (see BoardCell) in row order in a store of rows * columns cells,
+ * rows and columns being given by the topology of the board, which also decides
+ * which cells are adjacent to each other. 
+ * The counters safeCellsLeft, flags and bombs always match the cells, so that
+ * the state of the game is known in O(1). 
  * Why Thread Safe ?
  * All the access methods are private synchronized methods, 
  * which have to acquire a lock on the board object.
+ * Rendering only holds the lock while taking a snapshot, whose cells
+ * are never modified afterwards (see CellStore).
+ * Listeners are told about every change while the lock is held, so they see the changes
+ * in the order they are made (see BoardListener).
  * Also the representation invariant is safe from any exposure 
  * since the observer methods return boolean or immutable (string) types.
  */
 
 public class Board {
 	
-    private final BoardCell[][] board;
+    /** Number of bytes preceding the cells in a board file, which keeps the cells page aligned */
+    static final int FILE_HEADER_SIZE = 4096;
+    /** First bytes of a board file, "MSWP" */
+    private static final int FILE_MAGIC = 0x4D535750;
+    private final CellStore cells;
+    private final BoardTopology topology;
+    private final int rows;
+    private final int columns;
+    /** Probability for a cell to hold a bomb once mines are placed lazily */
+    private final double density;
+    /** False until the first dig of a board whose mines are placed lazily */
+    private boolean minesPlaced;
+    /** Scratch buffer receiving the neighbors of a cell, only used while holding the lock */
+    private final int[] neighbors;
+    /** Scratch stack of the cells left to flood fill, only used while holding the lock */
+    private int[] fillStack = new int[64];
+    /** Number of cells without a bomb that are not dug yet, the game being won once it reaches 0 */
+    private int safeCellsLeft;
+    /** Number of flagged cells */
+    private int flags;
+    /** Number of cells holding a bomb */
+    private int bombs;
+    /** Number of digs that hit a bomb */
+    private int explosions;
+    /** Observers of the changes of the cells, only used while holding the lock */
+    private BoardListener[] listeners = new BoardListener[0];
+    /** Counts of the cells of any rectangle by status, null until the first countRegion or once the cells are replaced */
+    private RegionIndex regionIndex;
     /**
      * Creates a random board given its size
      * @param s Integer representing the size of the board
      */
     public Board(int s) {
-        board = new BoardCell[s][s];
-        for(int i = 0; i < board.length; i++) 
-            for(int j = 0; j<board[i].length; j++) 
-                board[i][j] = new BoardCell(); 
+        this(new GridTopology(s, s));
+    }
+    
+    /**
+     * Creates a random board given its topology
+     * @param topology the dimensions and adjacency of the board
+     */
+    public Board(BoardTopology topology) {
+        this.topology = topology;
+        rows = topology.rows();
+        columns = topology.columns();
+        neighbors = new int[topology.maxNeighbors()];
+        cells = new CellStore(numberOfCells(topology));
+        for(int i = 0; i < cells.size(); i++) 
+            cells.set(i, BoardCell.createRandom()); 
+        density = BoardCell.BOMB_PROBABILITY;
+        minesPlaced = true;
+        SetAdjacentBombs();
+        countCells();
+        checkRepresentationInvariant();
+    }
+    
+    /**
+     * Creates a board whose mines are only placed on the first dig,
+     * so that the first dug cell and its neighbors never hold a bomb
+     * @param s Integer representing the size of the board
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     */
+    public Board(int s, double density) {
+        this(new GridTopology(s, s), density);
+    }
+    
+    /**
+     * Creates a board whose mines are only placed on the first dig,
+     * so that the first dug cell and its neighbors never hold a bomb
+     * @param topology the dimensions and adjacency of the board
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     */
+    public Board(BoardTopology topology, double density) {
+        this(topology, density, new CellStore(numberOfCells(topology)));
+    }
+    
+    /**
+     * Creates a board whose mines are only placed on the first dig
+     * @param topology the dimensions and adjacency of the board
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     * @param cells store of topology.rows() * topology.columns() untouched cells without bombs
+     */
+    private Board(BoardTopology topology, double density, CellStore cells) {
+        if(density < 0 || density > 1) 
+            throw new IllegalArgumentException("Illegal density");
+        this.topology = topology;
+        rows = topology.rows();
+        columns = topology.columns();
+        neighbors = new int[topology.maxNeighbors()];
+        this.cells = cells;
+        this.density = density;
+        minesPlaced = false;
+        // known without a scan, which would page in every cell of a mapped store
+        safeCellsLeft = cells.size();
+        checkRepresentationInvariant();
+    }
+    
+    /**
+     * Creates a random board whose mines are placed right away, each cell holding a bomb with
+     * probability density; unlike Board(BoardTopology), it draws from ThreadLocalRandom rather
+     * than contending on Math.random, so that BoardPool may generate boards in several threads
+     * @param topology the dimensions and adjacency of the board
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     * @return the board, ready to be played
+     */
+    static Board createRandom(BoardTopology topology, double density) {
+        Board board = new Board(topology, density);
+        synchronized (board) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for(int i = 0; i < board.cells.size(); i++)
+                if(random.nextDouble() < density)
+                    board.addBomb(i);
+            board.SetAdjacentBombs();
+            board.minesPlaced = true;
+            board.checkRepresentationInvariant();
+        }
+        return board;
+    }
+
+    /**
+     * Creates a board whose bombs are given by a layout, writing them straight into its cells
+     * rather than through a boolean[][] as Board(boolean[][], BoardTopology) does
+     * @param topology the dimensions and adjacency of the board
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     * @param layout the cells holding a bomb, asked once about every cell in row order
+     * @return the board, ready to be played
+     */
+    static Board createFromLayout(BoardTopology topology, double density, BombLayout layout) {
+        Board board = new Board(topology, density);
+        synchronized (board) {
+            for(int i = 0; i < board.rows; i++)
+                for(int j = 0; j < board.columns; j++)
+                    if(layout.hasBomb(i, j))
+                        board.addBomb(i * board.columns + j);
+            board.SetAdjacentBombs();
+            board.minesPlaced = true;
+            board.checkRepresentationInvariant();
+        }
+        return board;
+    }
+
+    /**
+     * Creates a board whose mines are only placed on the first dig, its cells being kept
+     * in a file mapped in memory rather than on the heap (see CellStore); the file is 
+     * replaced, and holds the state of the game once flush() is called
+     * @param file the file the board is stored in
+     * @param topology the dimensions and adjacency of the board
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     * @return the board, whose cells are read and written in place in the file
+     * @throws IOException if the file cannot be written
+     */
+    public static Board createMapped(File file, BoardTopology topology, double density) throws IOException {
+        new FileOutputStream(file).close();
+        Board board = new Board(topology, density, new CellStore(file, FILE_HEADER_SIZE, numberOfCells(topology)));
+        board.flush();
+        return board;
+    }
+    
+    /**
+     * Opens a board stored in a file by createMapped, in the state of its last flush()
+     * @param file the file the board is stored in
+     * @return the board, whose cells are read and written in place in the file
+     * @throws IOException if the file cannot be read or does not hold a board
+     */
+    public static Board openMapped(File file) throws IOException {
+        byte[] header = new byte[FILE_HEADER_SIZE];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(header);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        if(in.readInt() != FILE_MAGIC) 
+            throw new IOException("Not a board file");
+        BoardTopology topology = parseTopology(in.readUTF());
+        if(file.length() != FILE_HEADER_SIZE + (long) numberOfCells(topology)) 
+            throw new IOException("The file does not match the topology");
+        Board board = new Board(topology, in.readDouble(), 
+                new CellStore(file, FILE_HEADER_SIZE, numberOfCells(topology)));
+        synchronized (board) {
+            board.minesPlaced = in.readBoolean();
+            board.explosions = in.readInt();
+            board.countCells();
+        }
+        return board;
+    }
+    
+    /**
+     * Writes the game state of a board created by createMapped or openMapped to its file and
+     * forces its cells to the storage device, so that openMapped restores the game as it is now.
+     * The cells copied on the heap for open snapshots can only be written back once these are
+     * released, so flush first waits, without holding the lock of the board, until no snapshot
+     * is open; this may take as long as a ReplicationLeader streams a state to a follower or
+     * a GameRecorder writes a keyframe, both reading a snapshot meanwhile
+     * @throws IOException if the header cannot be written, or InterruptedIOException if the
+     * thread is interrupted while waiting for the snapshots
+     * @throws IllegalStateException if the cells of the board are kept on the heap
+     */
+    public void flush() throws IOException {
+        if(cells.getHeader() == null) 
+            throw new IllegalStateException("The board is not stored in a file");
+        while(true) {
+            try {
+                cells.awaitReleased();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the snapshots");
+            }
+            synchronized(this) {
+                // a snapshot may have been taken since, which is waited for again
+                if(cells.getOpenSnapshots() == 0) {
+                    writeHeader();
+                    cells.force();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the game state to the header of the file of the board
+     * @throws IOException if the header does not fit in the file
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = cells.getHeader();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FILE_MAGIC);
+        out.writeUTF(topology.toString());
+        out.writeDouble(density);
+        out.writeBoolean(minesPlaced);
+        out.writeInt(explosions);
+        if(bytes.size() > FILE_HEADER_SIZE) 
+            throw new IOException("The header does not fit in the file");
+        header.put(0, bytes.toByteArray());
+    }
+    
+    /**
+     * @param topology the dimensions and adjacency of a board
+     * @return the number of cells of the board
+     * @throws IllegalArgumentException if the cells cannot be indexed by an int
+     */
+    private static int numberOfCells(BoardTopology topology) {
+        long size = (long) topology.rows() * topology.columns();
+        if(size <= 0 || size > Integer.MAX_VALUE) 
+            throw new IllegalArgumentException("Illegal size: a board holds at most " + Integer.MAX_VALUE + " cells");
+        return (int) size;
+    }
+    
+    /**
+     * Creates a rectangular board from a given bomb layout
+     * @param bombs non empty rectangular 2D array where true marks a cell holding a bomb
+     */
+    public Board(boolean[][] bombs) {
+        this(bombs, new GridTopology(bombs.length, bombs[0].length));
+    }
+    
+    /**
+     * Creates a board from a given bomb layout
+     * @param bombs 2D array of topology.rows() rows of topology.columns() cells 
+     * where true marks a cell holding a bomb
+     * @param topology the dimensions and adjacency of the board
+     */
+    public Board(boolean[][] bombs, BoardTopology topology) {
+        if(bombs.length != topology.rows()) 
+            throw new IllegalArgumentException("The layout does not match the topology");
+        this.topology = topology;
+        rows = topology.rows();
+        columns = topology.columns();
+        neighbors = new int[topology.maxNeighbors()];
+        cells = new CellStore(numberOfCells(topology));
+        for(int i = 0; i < rows; i++) {
+            if(bombs[i].length != columns) 
+                throw new IllegalArgumentException("The layout does not match the topology");
+            for(int j = 0; j<columns; j++) 
+                cells.set(i * columns + j, BoardCell.create(bombs[i][j])); 
+        }
+        density = BoardCell.BOMB_PROBABILITY;
+        minesPlaced = true;
         SetAdjacentBombs();
+        countCells();
         checkRepresentationInvariant();
     }
     
+    /**
+     * Creates a rectangular board from a file, either listing every cell (see MinesweeperServer.main)
+     * or only made of the line "density DENSITY SIZE" or "density DENSITY COLUMNS ROWS",
+     * in which case the mines are placed lazily on the first dig as in Board(int, double)
+     * @param file the file the board is stored in
+     */
     public Board(File file) {
         Scanner currentLine;
         
@@ -45,6 +340,28 @@ public class Board {
             throw new RuntimeException("The file cannot be found");
         }
         
+        if (currentLine.hasNext("density")) 
+        {
+            currentLine.next();
+            if (!currentLine.hasNextDouble())
+                throw new RuntimeException(" invalid density ");
+            density = currentLine.nextDouble();
+            if (!currentLine.hasNextInt())
+                throw new RuntimeException(" invalid size ");
+            columns = currentLine.nextInt();
+            rows = currentLine.hasNextInt() ? currentLine.nextInt() : columns;
+            currentLine.close();
+            if (density < 0 || density > 1 || rows <= 0 || columns <= 0)
+                throw new IllegalArgumentException("Illegal density or size");
+            topology = new GridTopology(rows, columns);
+            neighbors = new int[topology.maxNeighbors()];
+            cells = new CellStore(numberOfCells(topology));
+            minesPlaced = false;
+            countCells();
+            checkRepresentationInvariant();
+            return;
+        }
+        
         int numberOfRows = 0;
         int firstNumberOfColumns=0;
         int numberOfColumns = 0;
@@ -67,11 +384,11 @@ public class Board {
            else 
         	   firstNumberOfColumns=numberOfColumns;
         	   }
-        if (numberOfRows!=numberOfColumns)
-        	throw new RuntimeException(" different number of rows and columns");
+        if (numberOfRows == 0 || numberOfColumns == 0)
+        	throw new RuntimeException(" empty board ");
         	
- 
-        int size = numberOfRows;
+        rows = numberOfRows;
+        columns = numberOfColumns;
         
         currentLine.close();
         try {
@@ -82,54 +399,85 @@ public class Board {
             throw new RuntimeException("The File cannot be found");
         }        
                
-        board = new BoardCell[size][size];
-        for(int i = 0; i < size; i++) {
-            for(int j = 0; j<size; j++) {
-                board[i][j] = new BoardCell(currentLine.nextInt() == 1 ? true : false);
-            }
+        topology = new GridTopology(rows, columns);
+        neighbors = new int[topology.maxNeighbors()];
+        cells = new CellStore(numberOfCells(topology));
+        for(int i = 0; i < cells.size(); i++) {
+            cells.set(i, BoardCell.create(currentLine.nextInt() == 1 ? true : false));
         }       
+        currentLine.close();
         
+        density = BoardCell.BOMB_PROBABILITY;
+        minesPlaced = true;
         SetAdjacentBombs();
+        countCells();
         checkRepresentationInvariant();
     }
-    /**
-     * Finds the neighbors of each cell on the board
-     * Cell must have valid board coordinates and be within the board bounds
-     * @param i Integer representing the x coordinate of the cell
-     * @param j Integer representing the y coordinate of the cell
-     * @return a List<BoardCell> of all the neighboring cells
-     */
-    private List<BoardCell> getNeighbors(int i, int j){
-    	List<BoardCell> neighborsList = new ArrayList<BoardCell>();
-        for(int k = i-1; k <= i+1; k++) 
-            for(int l = j-1; l <= j+1; l++) 
-            	if((k != i || l != j) && isWithinBoardBounds(k, l))
-            		neighborsList.add(board[k][l]);
-        return neighborsList;
-    }
-    private boolean neighborContainsBomb(int i, int j) {
-    	for (BoardCell cell : getNeighbors(i,j))
-    		if (cell.containsBomb())
-    			return true;
-        return false;
-    }
     /**
      * Counts all the bombs adjacent to each cell on the board 
      * and sets the field numberOfAdjacentBombs for each cell on the board  
      */
       public synchronized void SetAdjacentBombs() {
-        for(int i = 0; i < board.length; i++) 
-            for(int j = 0; j<board[i].length; j++) {
-            	int number = 0;
-            	for (BoardCell cell : getNeighbors(i,j))
-                    if(cell.containsBomb()) 
-                                number++;
-                board[i][j].setNumberOfAdjacentBombs(number);
+        for(int i = 0; i < rows; i++) 
+            for(int j = 0; j<columns; j++) {
+                int index = i * columns + j;
+                write(index, BoardCell.setNumberOfAdjacentBombs(cells.get(index), countAdjacentBombs(i, j, neighbors)));
             }
         
     }
+    /**
+     * Counts the bombs adjacent to a cell
+     * @param x Integer representing the x coordinate of the cell
+     * @param y Integer representing the y coordinate of the cell
+     * @param buffer scratch array of length topology.maxNeighbors() owned by the calling thread
+     * @return the number of neighbors of the cell holding a bomb
+     */
+    private int countAdjacentBombs(int x, int y, int[] buffer) {
+        int number = 0;
+        int numberOfNeighbors = topology.neighbors(x, y, buffer);
+        for(int n = 0; n < numberOfNeighbors; n++) 
+            if(BoardCell.containsBomb(cells.get(buffer[n]))) 
+                number++;
+        return number;
+    }
                      
-
+    /**
+     * Places the mines of a lazily mined board, each cell but (x, y) and its neighbors
+     * holding a bomb with probability density, then counts the adjacent bombs of
+     * every cell once, rows being counted in parallel
+     * @param x Integer representing the x coordinate of the first dug cell
+     * @param y Integer representing the y coordinate of the first dug cell
+     */
+    private synchronized void placeMines(int x, int y) {
+        // listeners are told once that all the cells were replaced rather than about every bomb
+        BoardListener[] notified = listeners;
+        listeners = new BoardListener[0];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = x * columns + y;
+        int numberOfNeighbors = topology.neighbors(x, y, neighbors);
+        for(int i = 0; i < cells.size(); i++) 
+            if(i != first && random.nextDouble() < density) 
+                addBomb(i);
+        for(int n = 0; n < numberOfNeighbors; n++) 
+            if(BoardCell.containsBomb(cells.get(neighbors[n]))) 
+                removeBomb(neighbors[n]);
+        
+        // every row only reads the bombs, which are no longer modified, and writes its own cells
+        cells.unshareAll();
+        IntStream.range(0, rows).parallel().forEach(new IntConsumer() {
+            public void accept(int i) {
+                int[] buffer = new int[topology.maxNeighbors()];
+                for(int j = 0; j<columns; j++) {
+                    int index = i * columns + j;
+                    cells.setUnshared(index, BoardCell.setNumberOfAdjacentBombs(cells.get(index), countAdjacentBombs(i, j, buffer)));
+                }
+            }
+        });
+        minesPlaced = true;
+        listeners = notified;
+        for(BoardListener listener : listeners) 
+            listener.cellsReplaced();
+    }
 
     /**
      * Removes the flag from a flagged cell
@@ -137,8 +485,8 @@ public class Board {
      * @param y Integer representing the y coordinate of the cell
      */
     public synchronized void unflag(int x, int y) {
-        if(isWithinBoardBounds(x,y) && board[x][y].isStatusFlagged()) 
-            board[x][y].removeFlag();
+        if(isWithinBoardBounds(x,y) && BoardCell.isStatusFlagged(cells.get(x * columns + y))) 
+            deflag(x * columns + y);
         
     }
     /**
@@ -147,8 +495,8 @@ public class Board {
      * @param y Integer representing the y coordinate of the cell
      */
     public synchronized void SetStatusToUntouched(int x, int y) {
-        if(isWithinBoardBounds(x,y) && board[x][y].isStatusFlagged()) 
-            board[x][y].SetStatusToUntouched();
+        if(isWithinBoardBounds(x,y) && BoardCell.isStatusFlagged(cells.get(x * columns + y))) 
+            deflag(x * columns + y);
         
     }
     /**
@@ -157,8 +505,8 @@ public class Board {
      * @param y Integer representing the y coordinate of the cell
      */
     public synchronized void SetStatusToFlagged(int x, int y) {
-        if(isWithinBoardBounds(x,y) && board[x][y].isStatusUntouched()) 
-            board[x][y].SetStatusToFlagged();
+        if(isWithinBoardBounds(x,y) && BoardCell.isStatusUntouched(cells.get(x * columns + y))) 
+            flag(x * columns + y);
         
     }
     /**
@@ -169,6 +517,9 @@ public class Board {
     public synchronized String digCell(int x, int y) {
         if(!isWithinBoardBounds(x,y) || !isStatusUntouched(x,y)) 
             return "out of bounds / cannot be dug";
+        
+        if(!minesPlaced) 
+            placeMines(x,y);
          
         if(!containsBomb(x,y)) 
         {
@@ -177,26 +528,169 @@ public class Board {
         } 
         else
         {
-            removeBombFromCell(x,y);
+            clearBomb(x,y);
             setStatusDug(x,y);
-            SetAdjacentBombs();
+            explosions++;
+            for(BoardListener listener : listeners) 
+                listener.exploded(x * columns + y);
                 
             return MinesweeperServer.BOOM_MSG;
         } 
 
     }
+    /**
+     * Removes the bomb of a cell that is not dug, its neighbors losing an adjacent bomb,
+     * as when a dig hits it
+     * @param x Integer representing the x coordinate of the cell
+     * @param y Integer representing the y coordinate of the cell
+     * @return true if the cell held a bomb and was not dug
+     */
+    synchronized boolean clearBomb(int x, int y) {
+        if(!containsBomb(x,y) || BoardCell.isStatusDug(cells.get(x * columns + y))) 
+            return false;
+        removeBombFromCell(x,y);
+        // only the neighbors of the removed bomb lose an adjacent bomb
+        int numberOfNeighbors = topology.neighbors(x, y, neighbors);
+        for(int n = 0; n < numberOfNeighbors; n++) {
+            byte neighbor = cells.get(neighbors[n]);
+            write(neighbors[n], BoardCell.setNumberOfAdjacentBombs(neighbor, BoardCell.getAdjacentBombs(neighbor) - 1));
+        }
+        return true;
+    }
+    /**
+     * Flags every untouched cell of a rectangle, walking the cells in row order
+     * @param x Integer representing the x coordinate of the top left cell
+     * @param y Integer representing the y coordinate of the top left cell
+     * @param height Integer representing the number of rows of the rectangle
+     * @param width Integer representing the number of columns of the rectangle
+     * @return the number of cells that got flagged, the part of the rectangle
+     * outside of the board being ignored
+     */
+    public synchronized int flagRectangle(int x, int y, int height, int width) {
+        int flagged = 0;
+        int lastRow = (int) Math.min(rows, (long) x + height);
+        int lastColumn = (int) Math.min(columns, (long) y + width);
+        for(int i = Math.max(x, 0); i < lastRow; i++) 
+            for(int j = Math.max(y, 0); j < lastColumn; j++) {
+                if(BoardCell.isStatusUntouched(cells.get(i * columns + j))) {
+                    flag(i * columns + j);
+                    flagged++;
+                }
+            }
+        return flagged;
+    }
+    /**
+     * Counts the flagged, dug and untouched cells of a rectangle in O(log(rows) * log(columns))
+     * (see RegionIndex), plus the cells along its sides on boards of more than 2^20 cells;
+     * the index is built by the first count, in O(rows * columns), and then kept up to date
+     * by every change of a cell
+     * @param x Integer representing the x coordinate of the top left cell
+     * @param y Integer representing the y coordinate of the top left cell
+     * @param height Integer representing the number of rows of the rectangle
+     * @param width Integer representing the number of columns of the rectangle
+     * @return the number of flagged, dug and untouched cells of the rectangle, 
+     * the part of the rectangle outside of the board being ignored
+     */
+    public synchronized int[] countRegion(int x, int y, int height, int width) {
+        if(regionIndex == null) 
+            regionIndex = new RegionIndex(cells, rows, columns, RegionIndex.blockBits(cells.size()));
+        int firstRow = Math.max(x, 0);
+        int firstColumn = Math.max(y, 0);
+        int lastRow = (int) Math.max(firstRow, Math.min(rows, (long) x + height));
+        int lastColumn = (int) Math.max(firstColumn, Math.min(columns, (long) y + width));
+        int[] counts = regionIndex.count(firstRow, firstColumn, lastRow, lastColumn);
+        int area = (lastRow - firstRow) * (lastColumn - firstColumn);
+        return new int[] {counts[0], counts[1], area - counts[0] - counts[1]};
+    }
+    /**
+     * Removes the flags of a rectangle, walking the cells in row order
+     * @param x Integer representing the x coordinate of the top left cell
+     * @param y Integer representing the y coordinate of the top left cell
+     * @param height Integer representing the number of rows of the rectangle
+     * @param width Integer representing the number of columns of the rectangle
+     * @return the number of cells that got unflagged, the part of the rectangle
+     * outside of the board being ignored
+     */
+    public synchronized int unflagRectangle(int x, int y, int height, int width) {
+        int unflagged = 0;
+        int lastRow = (int) Math.min(rows, (long) x + height);
+        int lastColumn = (int) Math.min(columns, (long) y + width);
+        for(int i = Math.max(x, 0); i < lastRow; i++) 
+            for(int j = Math.max(y, 0); j < lastColumn; j++) {
+                if(BoardCell.isStatusFlagged(cells.get(i * columns + j))) {
+                    deflag(i * columns + j);
+                    unflagged++;
+                }
+            }
+        return unflagged;
+    }
+    /**
+     * Removes every flag of the board
+     * @return the number of cells that got unflagged
+     */
+    public synchronized int unflagAll() {
+        return unflagRectangle(0, 0, rows, columns);
+    }
+    /**
+     * Digs a list of cells in the given order, as one atomic operation
+     * @param coordinates the x coordinate of every cell followed by its y coordinate
+     * @return the number of listed cells that got dug, cells out of bounds or not untouched
+     * being skipped as by digCell; getExplosions() tells whether one of them held a bomb
+     */
+    public synchronized int digCells(int[] coordinates) {
+        if(coordinates.length % 2 != 0) 
+            throw new IllegalArgumentException("Every x coordinate needs a y coordinate");
+        int dug = 0;
+        for(int i = 0; i < coordinates.length; i += 2) 
+            if(isWithinBoardBounds(coordinates[i], coordinates[i + 1]) && isStatusUntouched(coordinates[i], coordinates[i + 1])) 
+            {
+                digCell(coordinates[i], coordinates[i + 1]);
+                dug++;
+            }
+        return dug;
+    }
+    /**
+     * Chords a dug cell: if as many of its neighbors are flagged as it has adjacent bombs,
+     * digs all its untouched neighbors, flood filling from each of them, in one atomic operation
+     * @param x Integer representing the x coordinate of the cell
+     * @param y Integer representing the y coordinate of the cell
+     * @return BOOM_MSG if one of the dug neighbors held a bomb, "no bomb" if none did,
+     * or a message telling that the cell cannot be chorded
+     */
+    public synchronized String chord(int x, int y) {
+        if(!isWithinBoardBounds(x,y) || !BoardCell.isStatusDug(cells.get(x * columns + y))) 
+            return "out of bounds / cannot be chorded";
+        
+        // digging floods through the shared neighbors buffer, so the chorded neighbors get their own
+        int[] around = new int[topology.maxNeighbors()];
+        int numberOfNeighbors = topology.neighbors(x, y, around);
+        int flags = 0;
+        for(int n = 0; n < numberOfNeighbors; n++) 
+            if(BoardCell.isStatusFlagged(cells.get(around[n]))) 
+                flags++;
+        if(flags != getBombCount(x,y)) 
+            return "flag count does not match / cannot be chorded";
+        
+        String result = "no bomb";
+        for(int n = 0; n < numberOfNeighbors; n++) 
+            if(digCell(around[n] / columns, around[n] % columns).equals(MinesweeperServer.BOOM_MSG)) 
+                result = MinesweeperServer.BOOM_MSG;
+        return result;
+    }
     /**
      * Removes a bomb from a cell
      * @param x Integer representing the x coordinate of the cell
      * @param y Integer representing the y coordinate of the cell
      */
     private synchronized void removeBombFromCell(int x, int y) {
-        if(isWithinBoardBounds(x,y)) 
-            board[x][y].removeBomb();
+        if(isWithinBoardBounds(x,y) && BoardCell.containsBomb(cells.get(x * columns + y))) 
+            removeBomb(x * columns + y);
         
     }
     /**
-     * recursively dog all adjacent cells that do not hold bombs
+     * Digs a cell and, as long as the dug cells have no adjacent bomb, all their untouched neighbors.
+     * The cells left to visit are kept on an explicit stack, each cell being pushed at most once,
+     * so that flood filling a large empty area neither overflows the call stack nor allocates
      * @param x Integer representing the x coordinate of a cell
      * @param y Integer representing the y coordinate of a cell
      */
@@ -207,12 +701,19 @@ public class Board {
         else {
             return;
         }
-       if(getBombCount(x,y) == 0) {            
-          for(int i = x-1; i <= x+1; i++) {
-                for(int j = y-1; j <= y+1; j++) {
-                    if(i != x || j != y) {
-                        uncoverUntouched(i,j);                     
-                    }
+        int top = 0;
+        fillStack[top++] = x * columns + y;
+        while(top > 0) {
+            int index = fillStack[--top];
+            if(BoardCell.getAdjacentBombs(cells.get(index)) != 0) 
+                continue;
+            int numberOfNeighbors = topology.neighbors(index / columns, index % columns, neighbors);
+            for(int n = 0; n < numberOfNeighbors; n++) {
+                if(BoardCell.isStatusUntouched(cells.get(neighbors[n]))) {
+                    dig(neighbors[n]);
+                    if(top == fillStack.length) 
+                        fillStack = Arrays.copyOf(fillStack, 2 * top);
+                    fillStack[top++] = neighbors[n];
                 }
             }
         }
@@ -224,7 +725,7 @@ public class Board {
         if(!isWithinBoardBounds(x,y)) 
         	return -1;
         else 
-            return board[x][y].getAdjacentBombs();
+            return BoardCell.getAdjacentBombs(cells.get(x * columns + y));
     }
     /**
      * Sets the status of a cell to Dug
@@ -232,8 +733,8 @@ public class Board {
      * @param y Integer representing the y coordinate of the cell
      */
     private synchronized void setStatusDug(int x, int y) {
-        if(isWithinBoardBounds(x,y)) 
-            board[x][y].setStatusToDug();
+        if(isWithinBoardBounds(x,y) && !BoardCell.isStatusDug(cells.get(x * columns + y))) 
+            dig(x * columns + y);
         
     }
     /**
@@ -246,7 +747,7 @@ public class Board {
         if(!isWithinBoardBounds(x,y)) 
         	return false;
          else 
-        	 return board[x][y].isStatusUntouched();
+        	 return BoardCell.isStatusUntouched(cells.get(x * columns + y));
         
     }
     /**
@@ -256,7 +757,7 @@ public class Board {
         if(!isWithinBoardBounds(x,y)) 
         	return false;
          else 
-        	 return board[x][y].containsBomb();
+        	 return BoardCell.containsBomb(cells.get(x * columns + y));
      }
     /**
      * Checks whether or not the cell is within the bounds of the board
@@ -265,7 +766,7 @@ public class Board {
      * @return boolean indicating whether the cell is within the bounds of the board
      */ 
    private synchronized boolean isWithinBoardBounds(int x, int y) {
-	   if ((x>=0 && x<board.length) && (y>=0 && y<board[0].length) )
+	   if ((x>=0 && x<rows) && (y>=0 && y<columns) )
 		   return true;
 	   else
 		   return false;
@@ -280,35 +781,400 @@ public class Board {
         if(!isWithinBoardBounds(x,y)) 
         	return false;
        	else 
-            return board[x][y].isStatusFlagged();
+            return BoardCell.isStatusFlagged(cells.get(x * columns + y));
        
     }
 
    
 
    /**
-    * Displays a board as a String            
-    */
-   public synchronized String toString() {
-       String toReturn = "";
-       for(int k = 0; k < board.length; k++) 
-       {
-       	
-       	toReturn = toReturn + board[k][0] ;
-           for(int l = 1; l<board[k].length; l++) 
-           {
-           	toReturn = toReturn + " " + board[k][l] ;
+    * Digs a cell, keeping the game state counters up to date.
+    * All the changes of status and bombs of the cells go through
+    * dig, flag, deflag, addBomb and removeBomb, called while holding the lock.
+    * @param index Integer representing the index of a cell that is not dug
+    */
+   private void dig(int index) {
+       write(index, BoardCell.setStatusToDug(cells.get(index)));
+       if(!BoardCell.containsBomb(cells.get(index))) 
+           safeCellsLeft--;
+   }
+   /**
+    * Flags a cell, keeping the game state counters up to date
+    * @param index Integer representing the index of an untouched cell
+    */
+   private void flag(int index) {
+       write(index, BoardCell.setStatusToFlagged(cells.get(index)));
+       flags++;
+   }
+   /**
+    * Removes the flag of a cell, keeping the game state counters up to date
+    * @param index Integer representing the index of a flagged cell
+    */
+   private void deflag(int index) {
+       write(index, BoardCell.removeFlag(cells.get(index)));
+       flags--;
+   }
+   /**
+    * Adds a bomb to a cell, keeping the game state counters up to date
+    * @param index Integer representing the index of a cell without bomb that is not dug
+    */
+   private void addBomb(int index) {
+       write(index, BoardCell.placeBomb(cells.get(index)));
+       bombs++;
+       safeCellsLeft--;
+   }
+   /**
+    * Removes the bomb of a cell, keeping the game state counters up to date
+    * @param index Integer representing the index of a cell holding a bomb that is not dug
+    */
+   private void removeBomb(int index) {
+       write(index, BoardCell.removeBomb(cells.get(index)));
+       bombs--;
+       safeCellsLeft++;
+   }
+   /**
+    * Changes a cell, telling the listeners about it
+    * @param index Integer representing the index of a cell
+    * @param cell the new packed cell
+    */
+   private void write(int index, byte cell) {
+       byte before = cells.get(index);
+       cells.set(index, cell);
+       if(regionIndex != null) 
+           regionIndex.cellChanged(index, before, cell);
+       for(BoardListener listener : listeners) 
+           listener.cellChanged(index, before, cell);
+   }
+   /**
+    * Registers a listener told about every following change of the board
+    * @param listener the listener, called while holding the lock of the board
+    */
+   synchronized void addListener(BoardListener listener) {
+       listeners = Arrays.copyOf(listeners, listeners.length + 1);
+       listeners[listeners.length - 1] = listener;
+   }
+   /**
+    * Unregisters a listener
+    * @param listener a listener registered by addListener
+    */
+   synchronized void removeListener(BoardListener listener) {
+       for(int i = 0; i < listeners.length; i++) 
+           if(listeners[i] == listener) {
+               BoardListener[] remaining = Arrays.copyOf(listeners, listeners.length - 1);
+               System.arraycopy(listeners, i + 1, remaining, i, listeners.length - i - 1);
+               listeners = remaining;
+               return;
            }
-           toReturn = toReturn + "\r\n";
+   }
+   /**
+    * Applies the change of a cell made on another board with the same topology, such as the board
+    * of a replication leader, keeping the game state counters up to date
+    * @param index Integer representing the index of the cell
+    * @param cell the new packed cell
+    */
+   synchronized void applyCell(int index, byte cell) {
+       byte before = cells.get(index);
+       safeCellsLeft += isSafeAndNotDug(cell) - isSafeAndNotDug(before);
+       flags += (BoardCell.isStatusFlagged(cell) ? 1 : 0) - (BoardCell.isStatusFlagged(before) ? 1 : 0);
+       bombs += (BoardCell.containsBomb(cell) ? 1 : 0) - (BoardCell.containsBomb(before) ? 1 : 0);
+       write(index, cell);
+   }
+   /**
+    * Applies a dig that hit a bomb on another board with the same topology,
+    * once the changes of the cells it caused have been applied
+    * @param index Integer representing the index of the dug cell
+    */
+   synchronized void applyExplosion(int index) {
+       explosions++;
+       for(BoardListener listener : listeners) 
+           listener.exploded(index);
+   }
+   private static int isSafeAndNotDug(byte cell) {
+       return !BoardCell.containsBomb(cell) && !BoardCell.isStatusDug(cell) ? 1 : 0;
+   }
+   /**
+    * Writes the whole state of the board: its topology, its density, whether its mines are placed,
+    * its number of explosions and all its packed cells in row order
+    * @param out the output the state is written to
+    * @throws IOException if the output fails
+    */
+   synchronized void writeState(DataOutput out) throws IOException {
+       writeGameState(out);
+       byte[] buffer = new byte[CellStore.CHUNK_SIZE];
+       for(int i = 0; i < cells.size(); i += buffer.length) {
+           int length = Math.min(buffer.length, cells.size() - i);
+           for(int j = 0; j < length; j++) 
+               buffer[j] = cells.get(i + j);
+           out.write(buffer, 0, length);
+       }
+   }
+   private void writeGameState(DataOutput out) throws IOException {
+       out.writeUTF(topology.toString());
+       out.writeDouble(density);
+       out.writeBoolean(minesPlaced);
+       out.writeInt(explosions);
+   }
+   /**
+    * Writes the state of the board that writeState writes before the cells, and takes a snapshot
+    * of the cells at the same time, in O(rows * columns / CHUNK_SIZE), so that the cells can be
+    * written without holding the lock, encoded by BoardEncoder.encodeStateBlock
+    * @param out the output the state is written to
+    * @return a snapshot of the cells, that must be released once written
+    * @throws IOException if the output fails
+    */
+   synchronized BoardSnapshot writeStateHeader(DataOutput out) throws IOException {
+       writeGameState(out);
+       return cells.snapshot(columns);
+   }
+   /**
+    * Creates a board from a state written by writeStateHeader, whose cells are then set by
+    * restoreCells, block after block
+    * @param in the input the state is read from
+    * @return a board with the same topology and game state as the written one, not to be used
+    * by other threads before all its cells are restored
+    * @throws IOException if the input fails or does not hold a state
+    */
+   static Board readStateHeader(DataInput in) throws IOException {
+       Board board = new Board(parseTopology(in.readUTF()), in.readDouble());
+       synchronized (board) {
+           board.minesPlaced = in.readBoolean();
+           board.explosions = in.readInt();
+       }
+       return board;
+   }
+   /**
+    * Sets the cells of a board created by readStateHeader from a block decoded by
+    * BoardEncoder.decodeStateBlock, counting its cells once the last block is set
+    * @param first Integer representing the index of the first cell of the block
+    * @param block the packed cells of the block
+    * @param length Integer representing the number of cells of the block, requires first + length <= rows * columns
+    * @return true if the block was the last one, the board being then ready to be used
+    */
+   synchronized boolean restoreCells(int first, byte[] block, int length) {
+       for(int i = 0; i < length; i++) 
+           cells.set(first + i, block[i]);
+       if(first + length < cells.size()) 
+           return false;
+       countCells();
+       regionIndex = null;
+       checkRepresentationInvariant();
+       return true;
+   }
+   /**
+    * Creates a board from a state written by writeState
+    * @param in the input the state is read from
+    * @return a board with the same topology, cells and game state as the written one
+    * @throws IOException if the input fails or does not hold a state
+    */
+   static Board readState(DataInput in) throws IOException {
+       Board board = new Board(parseTopology(in.readUTF()), in.readDouble());
+       board.restoreState(in, false);
+       return board;
+   }
+   /**
+    * @param name a topology as written by BoardTopology.toString(), "NAME COLUMNSxROWS"
+    * @return the topology
+    * @throws IOException if the name does not describe a topology
+    */
+   private static BoardTopology parseTopology(String name) throws IOException {
+       String[] topology = name.split(" ");
+       String[] dimensions = topology[topology.length - 1].split("x");
+       if(topology.length != 2 || dimensions.length != 2) 
+           throw new IOException("Invalid topology");
+       try {
+           return MinesweeperServer.createTopology(topology[0], 
+                   Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+       }
+       catch (IllegalArgumentException e) {
+           throw new IOException("Invalid topology", e);
+       }
+   }
+   /**
+    * Replaces the state of the board by a state written by writeState, from the density on,
+    * for a board of the same topology
+    * @param in the input the state is read from
+    * @param withTopology true if the state still starts with its topology, which is then checked
+    * @throws IOException if the input fails or does not hold a state of the same topology
+    */
+   synchronized void restoreState(DataInput in, boolean withTopology) throws IOException {
+       if(withTopology) {
+           if(!in.readUTF().equals(topology.toString())) 
+               throw new IOException("The state does not match the topology");
+           in.readDouble();
+       }
+       minesPlaced = in.readBoolean();
+       explosions = in.readInt();
+       byte[] buffer = new byte[CellStore.CHUNK_SIZE];
+       for(int i = 0; i < cells.size(); i += buffer.length) {
+           int length = Math.min(buffer.length, cells.size() - i);
+           in.readFully(buffer, 0, length);
+           for(int j = 0; j < length; j++) 
+               cells.set(i + j, buffer[j]);
+       }
+       countCells();
+       regionIndex = null;
+       for(BoardListener listener : listeners) 
+           listener.cellsReplaced();
+       checkRepresentationInvariant();
+   }
+   /**
+    * Starts a new game by taking over the cells and the game state of a fresh board of the same
+    * topology, such as a board of a BoardPool, in O(rows * columns / CHUNK_SIZE);
+    * the listeners are told that all the cells were replaced
+    * @param fresh a board kept on the heap that no other thread uses, nor ever will
+    * @throws IllegalArgumentException if the topologies differ
+    * @throws IllegalStateException if either board is kept in a file
+    */
+   public synchronized void startNewGame(Board fresh) {
+       if(!fresh.topology.toString().equals(topology.toString()))
+           throw new IllegalArgumentException("The boards differ in topology");
+       synchronized (fresh) {
+           cells.adopt(fresh.cells);
+           minesPlaced = fresh.minesPlaced;
+           safeCellsLeft = fresh.safeCellsLeft;
+           flags = fresh.flags;
+           bombs = fresh.bombs;
+           explosions = fresh.explosions;
+       }
+       regionIndex = null;
+       for(BoardListener listener : listeners)
+           listener.cellsReplaced();
+       checkRepresentationInvariant();
+   }
+   /**
+    * @return true if the cells of the board are kept in a file (see createMapped)
+    */
+   boolean isMapped() {
+       return cells.getHeader() != null;
+   }
+   /**
+    * @return the probability for a cell to hold a bomb
+    */
+   double getDensity() {
+       return density;
+   }
+   /**
+    * Initializes the game state counters from a full scan of the cells
+    */
+   private void countCells() {
+       int[] counters = scanCounters();
+       safeCellsLeft = counters[0];
+       flags = counters[1];
+       bombs = counters[2];
+   }
+   /**
+    * Counts the cells by scanning the whole board
+    * @return the number of safe cells that are not dug, of flags and of bombs
+    */
+   private int[] scanCounters() {
+       int[] counters = new int[3];
+       for(int i = 0; i < cells.size(); i++) {
+           byte cell = cells.get(i);
+           if(!BoardCell.containsBomb(cell) && !BoardCell.isStatusDug(cell)) 
+               counters[0]++;
+           if(BoardCell.isStatusFlagged(cell)) 
+               counters[1]++;
+           if(BoardCell.containsBomb(cell)) 
+               counters[2]++;
+       }
+       return counters;
+   }
+   /**
+    * Checks the game state counters against a full scan of the board, in O(rows * columns)
+    * @return true if the counters match the cells
+    */
+   synchronized boolean countersMatchScan() {
+       int[] counters = scanCounters();
+       return counters[0] == safeCellsLeft && counters[1] == flags && counters[2] == bombs;
+   }
+   /**
+    * @return the number of cells without a bomb that are not dug yet
+    */
+   public synchronized int getSafeCellsLeft() {
+       return safeCellsLeft;
+   }
+   /**
+    * @return the number of flagged cells
+    */
+   public synchronized int getFlagCount() {
+       return flags;
+   }
+   /**
+    * @return the number of bombs left on the board minus the number of flags,
+    * as displayed by the mine counter of the classic game
+    */
+   public synchronized int getMinesRemaining() {
+       return bombs - flags;
+   }
+   /**
+    * @return the number of digs that hit a bomb
+    */
+   public synchronized int getExplosions() {
+       return explosions;
+   }
+   /**
+    * @return true if every cell without a bomb has been dug
+    */
+   public synchronized boolean isWon() {
+       return safeCellsLeft == 0;
+   }
+   /**
+    * @return true if a dig has hit a bomb
+    */
+   public synchronized boolean isLost() {
+       return explosions > 0;
+   }
+   /**
+    * Describes the state of the game in O(1)
+    * @return "won", "lost" or "playing" followed by the game state counters
+    */
+   public synchronized String getStatus() {
+       String state = isWon() ? "won" : isLost() ? "lost" : "playing";
+       return state + ": " + getMinesRemaining() + " mines remaining, " + safeCellsLeft + 
+               " safe cells left, " + flags + " flags, " + explosions + " explosions";
+   }
+   /**
+    * @return the dimensions and adjacency of the board
+    */
+   public BoardTopology getTopology() {
+       return topology;
+   }
+
+   /**
+    * Takes a consistent snapshot of the board, holding the lock only for O(rows * columns / CHUNK_SIZE);
+    * the snapshot may then be read by any thread while other threads keep modifying the board
+    * @return a snapshot that must be released once read
+    */
+   public synchronized BoardSnapshot snapshot() {
+       return cells.snapshot(columns);
+   }
+
+   /**
+    * @return the number of changes of cells since the creation of the board
+    */
+   public synchronized long getVersion() {
+       return cells.getVersion();
+   }
+
+   /**
+    * Displays a board as a String, rendered from a snapshot without holding the lock            
+    */
+   public String toString() {
+       BoardSnapshot snapshot = snapshot();
+       try {
+           return snapshot.toString();
+       }
+       finally {
+           snapshot.release();
        }
-       
-       return toReturn;
    }
    /**
     * Checks the representation invariant 
     */
    private synchronized void checkRepresentationInvariant() {
-       assert board != null;
-       assert board.length == board[0].length;
+       assert cells != null && topology != null;
+       assert rows == topology.rows() && columns == topology.columns();
+       assert cells.size() == rows * columns;
+       assert safeCellsLeft >= 0 && flags >= 0 && bombs >= 0 && explosions >= 0;
    }
 }
@@ -1,155 +1,151 @@
 package minesweeper.server;
 
 /**
- * Class representing a single cell on the board. 
- * Representation invariant : Each cell has a boolean field 
- * determining whether or not it holds a bomb as well as
- * an enum type determining its status
- * This class is thread safe because all methods are synchronized and
- * there is no representation exposure (because mutable fields cannot 
- * be accessed from outside of the class) 
+ * Class representing a single cell on the board, packed into a byte so that
+ * a board stores its cells in one compact array instead of one object per cell.
+ * Representation invariant : the 4 lowest bits hold the number of adjacent
+ * bombs (between 0 and 8), the next bit whether or not the cell holds a bomb
+ * and the two following bits its status, UNTOUCHED, FLAGGED or DUG
+ * This class is thread safe because it only has static methods working on
+ * immutable byte values; the boards storing the cells synchronize their updates.
  *
  */
-public class BoardCell {
-	
-	private boolean containsBomb;
-	private Status status;
-	private int numberOfAdjacentBombs;
-	/**
-	 * Declares the different types of tokens for the cell Status
-	 */
-	private static enum Status { 
-		FLAGGED,DUG,UNTOUCHED
-		}
+public final class BoardCell {
+
+	/** Probability for a randomly constructed cell to hold a bomb */
+	public static final double BOMB_PROBABILITY = 0.25;
+
+	private static final int ADJACENT_BOMBS = 0x0F;
+	private static final int BOMB = 0x10;
+	private static final int STATUS = 0x60;
+	private static final int UNTOUCHED = 0x00;
+	private static final int FLAGGED = 0x20;
+	private static final int DUG = 0x40;
+
+	private BoardCell() {
+	}
+
     /**
-     * Randomly constructs an instance of BoardCell by adding a 
+     * Randomly constructs an untouched cell by adding a
      * bomb with probability 1/4 and not adding one with probability 3/4
+     * @return the packed cell
      */
-     public BoardCell() { 
-		if (Math.random() > 0.25) 
-			this.containsBomb=false;
-		else 
-			this.containsBomb=true;
-		
-		this.status=Status.UNTOUCHED;
-		this.numberOfAdjacentBombs=0;
-		checkRepresentationInvariant();
+	public static byte createRandom() {
+		return create(Math.random() <= BOMB_PROBABILITY);
 	}
-	
+
     /**
-     * Deterministically constructs an instance of BoardCell given
-     * a boolean parameter 
-     * @param isBomb : boolean that determines whether or not the cell 
+     * Deterministically constructs an untouched cell given
+     * a boolean parameter
+     * @param isBomb : boolean that determines whether or not the cell
      * contains a bomb
+     * @return the packed cell
      */
-	public BoardCell(boolean isBomb) { 
-		this.containsBomb=isBomb;
-		this.status=Status.UNTOUCHED;
-		this.numberOfAdjacentBombs=0;
-		checkRepresentationInvariant();
+	public static byte create(boolean isBomb) {
+		return (byte) (isBomb ? BOMB | UNTOUCHED : UNTOUCHED);
 	}
 	/**
 	 * Changes the status of a cell to Dug
+	 * @return the packed cell with its new status
 	 */
-    public synchronized void setStatusToDug() {
-        status = Status.DUG;
-        checkRepresentationInvariant();
+    public static byte setStatusToDug(byte cell) {
+        return (byte) ((cell & ~STATUS) | DUG);
     }
 	/**
 	 * Checks if the cell is in the Flagged state
 	 * @return boolean determining whether or not the cell is in the Flagged state
 	 */
-    public synchronized boolean isStatusFlagged() {
-        return (status == Status.FLAGGED);
+    public static boolean isStatusFlagged(byte cell) {
+        return (cell & STATUS) == FLAGGED;
     }
 	/**
 	 * Changes the status of a cell to flagged
 	 * only if it was in the untouched status before
+	 * @return the packed cell with its new status
 	 */
-   public synchronized void SetStatusToFlagged() {
-        if(status == Status.UNTOUCHED) 
-            status = Status.FLAGGED;
-        checkRepresentationInvariant();
-        }
+    public static byte setStatusToFlagged(byte cell) {
+        if(isStatusUntouched(cell))
+            return (byte) (cell | FLAGGED);
+        return cell;
+    }
 
 	/**
 	 * Counts the number of adjacent bombs to a cell
 	 * @return integer representing the number of adjacent bombs to a cell
 	 */
-    public synchronized int getAdjacentBombs() {
-        return numberOfAdjacentBombs;
+    public static int getAdjacentBombs(byte cell) {
+        return cell & ADJACENT_BOMBS;
     }
 	/**
 	 * Checks if the cell contains a bomb
 	 * @return boolean determining whether or not the cell contains a bomb
 	 */
-    public synchronized boolean containsBomb() {
-        return containsBomb;
+    public static boolean containsBomb(byte cell) {
+        return (cell & BOMB) != 0;
     }
 
     /**
-	 * Checks if the cell is in the Untouched state
-	 * @return boolean determining whether or not the cell is in the Untouched state
+	 * Checks if the cell is in the Dug state
+	 * @return boolean determining whether or not the cell is in the Dug state
 	 */
-    public synchronized boolean isStatusUntouched() {
-        return (status == Status.UNTOUCHED);
+    public static boolean isStatusDug(byte cell) {
+        return (cell & STATUS) == DUG;
     }
-	/**
-	 * Changes the status of a cell to Untouched
-	 * only if it was in the flagged status before
+
+    /**
+	 * Checks if the cell is in the Untouched state
+	 * @return boolean determining whether or not the cell is in the Untouched state
 	 */
-    public synchronized void SetStatusToUntouched() {
-        if(status == Status.FLAGGED) 
-            status = Status.UNTOUCHED;
-        checkRepresentationInvariant();
+    public static boolean isStatusUntouched(byte cell) {
+        return (cell & STATUS) == UNTOUCHED;
     }
 
     /**
      * Changes the status of a cell from flagged to unflagged
+	 * @return the packed cell with its new status
      */
-    public synchronized void removeFlag() {
-        status = Status.UNTOUCHED;
-        checkRepresentationInvariant();
+    public static byte removeFlag(byte cell) {
+        return (byte) ((cell & ~STATUS) | UNTOUCHED);
     }
 	/**
 	 * sets the number of adjacent bombs to the cell
+	 * @param number integer between 0 and 8
+	 * @return the packed cell with its new number of adjacent bombs
 	*/
-    public synchronized void setNumberOfAdjacentBombs(int number) {
-        this.numberOfAdjacentBombs = number;
-        checkRepresentationInvariant();
+    public static byte setNumberOfAdjacentBombs(byte cell, int number) {
+        assert (number >=0 && number <= 8);
+        return (byte) ((cell & ~ADJACENT_BOMBS) | number);
+    }
+	/**
+	 * Adds a bomb to the cell
+	 * @return the packed cell holding a bomb
+	 */
+    public static byte placeBomb(byte cell) {
+        return (byte) (cell | BOMB);
     }
 	/**
 	 * Removes the bomb from the cell
+	 * @return the packed cell without bomb
 	 */
-    public synchronized void removeBomb() {
-    	if (containsBomb)
-    		containsBomb = false;
-        checkRepresentationInvariant();
+    public static byte removeBomb(byte cell) {
+        return (byte) (cell & ~BOMB);
     }
-    
+
 	/**
 	 * Displays the status of a single cell
-	 * @return String representing the cell's status
+	 * @return char representing the cell's status
 	 */
-    public synchronized String toString() {
-    	if(status == Status.FLAGGED) 
-    		{ return "F"; }
-        else  if(status == Status.UNTOUCHED)  
-        	{ return "-"; }
+    public static char toChar(byte cell) {
+    	if(isStatusFlagged(cell))
+    		{ return 'F'; }
+        else  if(isStatusUntouched(cell))
+        	{ return '-'; }
         else {
-            if(numberOfAdjacentBombs == 0) 
-                return " ";
-             else 
-                return "" + numberOfAdjacentBombs;
-          
+            if(getAdjacentBombs(cell) == 0)
+                return ' ';
+             else
+                return (char) ('0' + getAdjacentBombs(cell));
+
            }
     }
-    /**
-	 * Checks the representation invariant 
-	 */
-    private synchronized void checkRepresentationInvariant() {
-        assert status != null;
-        assert (numberOfAdjacentBombs >=0 && numberOfAdjacentBombs <= 8);
-    }
 }
-
@@ -0,0 +1,268 @@
+package minesweeper.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A parsed client command changing or reading a board, along with its outcome.
+ * Every connection reuses a single command for all its requests, so that it can be applied
+ * either by the connection thread itself or by the applier of a BoardPipeline without
+ * allocating anything per request.
+ * Not thread safe by itself: a command is filled and rendered by its connection thread and
+ * applied by one thread at a time, BoardPipeline publishing it from one thread to the other.
+ */
+final class BoardCommand {
+
+    static final int LOOK = 0;
+    static final int DIG = 1;
+    static final int FLAG = 2;
+    static final int DEFLAG = 3;
+    static final int CHORD = 4;
+    static final int FLAG_RECT = 5;
+    static final int DEFLAG_RECT = 6;
+    static final int DEFLAG_ALL = 7;
+    static final int DIG_LIST = 8;
+    static final int STATUS = 9;
+    /** The opcode of the binary protocol, under which the recorder keeps new games */
+    static final int NEW_GAME = BinaryProtocol.NEW_GAME;
+    /** Largest number of cells of a DIG_LIST, as every pair takes at least 2 bytes of a binary request */
+    static final int MAX_DIG_LIST = BinaryProtocol.MAX_REQUEST / 2;
+    /** After the opcodes 10 to 15 of the commands the binary protocol handles itself */
+    static final int COUNT = 16;
+
+    private int type;
+    private int x;
+    private int y;
+    private int height;
+    private int width;
+    private int[] coordinates;
+    /** The board of the next game, for NEW_GAME */
+    private Board fresh;
+
+    private String message;
+    private BoardSnapshot snapshot;
+    private RuntimeException failure;
+    /** Number of cells the command has changed, scanned or rendered, see AdmissionControl */
+    private long cells;
+
+    /** Records the commands of the connection, null if the game is not recorded */
+    private GameRecorder recorder;
+    /** The id of the connection, recorded with its commands */
+    private int client;
+
+    /** Set by the applier of a BoardPipeline once the command has been applied */
+    volatile boolean completed;
+    /** The connection thread waiting for the completion of the command in a BoardPipeline */
+    Thread waiter;
+
+    /**
+     * Fills the command, forgetting the outcome of the previous one
+     * @param type one of the command constants of this class
+     * @param x Integer representing the x coordinate of the cell, or of the top left cell of a rectangle
+     * @param y Integer representing the y coordinate of the cell, or of the top left cell of a rectangle
+     * @param height Integer representing the number of rows of a rectangle
+     * @param width Integer representing the number of columns of a rectangle
+     * @param coordinates the x coordinate of every cell to dig followed by its y coordinate, for DIG_LIST
+     */
+    void set(int type, int x, int y, int height, int width, int[] coordinates) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.height = height;
+        this.width = width;
+        this.coordinates = coordinates;
+        this.fresh = null;
+        this.message = null;
+        this.snapshot = null;
+        this.failure = null;
+        this.cells = 0;
+    }
+
+    /**
+     * Fills the command with a new game, forgetting the outcome of the previous one
+     * @param fresh the board of the new game, of the topology of the board the command is applied to,
+     * kept on the heap and used by no other thread
+     */
+    void setNewGame(Board fresh) {
+        set(NEW_GAME, 0, 0, 0, 0, null);
+        this.fresh = fresh;
+    }
+
+    /**
+     * Records every following command of the connection
+     * @param recorder the recorder of the board the commands are applied to
+     * @param client Integer representing the id of the connection
+     */
+    void record(GameRecorder recorder, int client) {
+        this.recorder = recorder;
+        this.client = client;
+    }
+
+    /**
+     * @return true if the command renders the board or may change many cells
+     */
+    boolean isExpensive() {
+        return type != STATUS && type != COUNT;
+    }
+
+    /**
+     * Applies the command to the board, keeping its outcome until render() is called.
+     * Boards are not rendered here, only snapshotted, so that an applier shared by all
+     * the connections never spends its time formatting them.
+     * @param board the board the command is applied to
+     */
+    void applyTo(Board board) {
+        if(recorder == null) {
+            apply(board);
+            return;
+        }
+        // the changes told to the recorder until end are the changes of the command
+        synchronized(board) {
+            recorder.begin(client, type, x, y, height, width, coordinates);
+            try {
+                apply(board);
+            }
+            finally {
+                recorder.end();
+            }
+        }
+    }
+
+    /**
+     * Applies the command to the board
+     * @param board the board the command is applied to
+     */
+    private void apply(Board board) {
+        switch(type) {
+        case LOOK:
+            snapshot = board.snapshot();
+            break;
+        case DIG:
+            synchronized(board) {
+                long version = board.getVersion();
+                String outcome = board.digCell(x, y);
+                cells = board.getVersion() - version;
+                if(outcome.equals(MinesweeperServer.BOOM_MSG))
+                    message = MinesweeperServer.BOOM_MSG;
+                else
+                    snapshot = board.snapshot();
+            }
+            break;
+        case CHORD:
+            synchronized(board) {
+                long version = board.getVersion();
+                String outcome = board.chord(x, y);
+                cells = board.getVersion() - version;
+                if(outcome.equals(MinesweeperServer.BOOM_MSG))
+                    message = MinesweeperServer.BOOM_MSG;
+                else
+                    snapshot = board.snapshot();
+            }
+            break;
+        case FLAG:
+            board.SetStatusToFlagged(x, y);
+            snapshot = board.snapshot();
+            break;
+        case DEFLAG:
+            board.unflag(x, y);
+            snapshot = board.snapshot();
+            break;
+        case FLAG_RECT:
+            cells = (long) height * width;
+            message = "flagged " + board.flagRectangle(x, y, height, width) + " cells";
+            break;
+        case DEFLAG_RECT:
+            cells = (long) height * width;
+            message = "deflagged " + board.unflagRectangle(x, y, height, width) + " cells";
+            break;
+        case DEFLAG_ALL:
+            cells = (long) board.getTopology().rows() * board.getTopology().columns();
+            message = "deflagged " + board.unflagAll() + " cells";
+            break;
+        case DIG_LIST:
+            synchronized(board) {
+                long version = board.getVersion();
+                int explosions = board.getExplosions();
+                int dug = board.digCells(coordinates);
+                cells = board.getVersion() - version;
+                if(board.getExplosions() > explosions)
+                    message = MinesweeperServer.BOOM_MSG;
+                else
+                    message = "dug " + dug + " cells";
+            }
+            break;
+        case STATUS:
+            message = board.getStatus();
+            break;
+        case NEW_GAME:
+            board.startNewGame(fresh);
+            fresh = null;
+            cells = (long) board.getTopology().rows() * board.getTopology().columns();
+            message = "new game: " + board.getStatus();
+            break;
+        case COUNT:
+        {
+            int[] counts = board.countRegion(x, y, height, width);
+            message = counts[0] + " flagged, " + counts[1] + " dug, " + counts[2] + " untouched";
+            break;
+        }
+        default:
+            throw new IllegalStateException("Unknown command " + type);
+        }
+        if(snapshot != null)
+            cells += (long) snapshot.getRows() * snapshot.getColumns();
+    }
+
+    /**
+     * @return the number of cells the applied command has changed, scanned or rendered
+     */
+    long getCells() {
+        return cells;
+    }
+
+    /**
+     * Records the exception thrown while applying the command, to be thrown again by render()
+     * in the connection thread
+     */
+    void fail(RuntimeException e) {
+        failure = e;
+    }
+
+    /**
+     * Renders the outcome of the applied command, outside of any lock, and releases its snapshot
+     * @return the BOOM message, the message of the command or the board after the command
+     */
+    String render() {
+        if(failure != null)
+            throw failure;
+        if(snapshot == null)
+            return message;
+        try {
+            return snapshot.toString();
+        }
+        finally {
+            snapshot.release();
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Encodes the outcome of the applied command as a response of the binary protocol,
+     * outside of any lock, and releases its snapshot
+     * @param buffer a buffer to reuse
+     * @param encoder the encoder of the boards of the connection
+     * @return the buffer holding the response up to its position, or a new one if it is too small
+     */
+    ByteBuffer renderBinary(ByteBuffer buffer, BoardEncoder encoder) {
+        if(failure != null)
+            throw failure;
+        if(snapshot == null)
+            return BinaryProtocol.encodeMessage(buffer, message);
+        try {
+            return encoder.encode(buffer, snapshot);
+        }
+        finally {
+            snapshot.release();
+            snapshot = null;
+        }
+    }
+}
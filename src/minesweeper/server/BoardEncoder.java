@@ -0,0 +1,279 @@
+package minesweeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes the boards sent on a binary connection (see BinaryProtocol), either packed 4 bits per
+ * cell (PACKED), or run length encoded (RUN_LENGTH), or run length encoded then deflated (DEFLATE),
+ * as chosen by the client with the COMPRESS request.
+ * A run is a varint holding its length minus 1 shifted left by 4 bits, ored with the code of its
+ * cells, so that runs of up to 8 cells take a byte; runs follow each other in row order,
+ * across rows, and longer than MAX_RUN cells are split so that the varint holds a non negative int. BOARD_RUN_LENGTH :== ROWS COLUMNS RUN+ and BOARD_DEFLATE :== ROWS COLUMNS LENGTH
+ * DEFLATED, LENGTH being the number of bytes of the runs and DEFLATED the runs compressed by a
+ * raw deflate stream.
+ * Every connection has its own encoder, whose Deflater and run buffer are reused for every board.
+ *
+ * The cells of a whole board state (see Board.writeStateHeader), bombs included, are encoded
+ * the same way by encodeStateBlock in blocks of STATE_BLOCK cells, so that a state of any size
+ * is streamed without ever being held whole: STATE_BLOCK :== CELLS LENGTH DEFLATED, CELLS being
+ * the number of cells of the block and a run of the deflated runs a varint holding its length
+ * minus 1 shifted left by 8 bits, ored with the packed cell.
+ * Not thread safe: an encoder is only used by the thread of its connection, or of its stream.
+ */
+final class BoardEncoder {
+
+    static final int PACKED = 0;
+    static final int RUN_LENGTH = 1;
+    static final int DEFLATE = 2;
+    /** Largest number of cells of a run */
+    static final int MAX_RUN = 1 << 27;
+    /** Number of cells of a block of a board state, but the last one */
+    static final int STATE_BLOCK = 1 << 20;
+    /**
+     * Largest number of bytes encodeStateBlock appends: its two varints and the deflated runs of
+     * at most 4 bytes each, deflate adding a few bytes to every stored block of incompressible runs
+     */
+    static final int MAX_STATE_BLOCK = 10 + 4 * STATE_BLOCK + (4 * STATE_BLOCK >> 12) + 64;
+
+    private int mode = PACKED;
+    /** The deflater of the connection, created by the first DEFLATE request */
+    private Deflater deflater;
+    /** The deflater of the board states, created by the first block */
+    private Deflater stateDeflater;
+    /** Scratch buffer receiving the runs of a board before they are deflated */
+    private ByteBuffer runs = ByteBuffer.allocate(256);
+
+    /**
+     * Chooses how the next boards are encoded
+     * @param mode PACKED, RUN_LENGTH or DEFLATE
+     * @param level Integer representing the deflate level, between 0 and 9, for DEFLATE
+     */
+    void setMode(int mode, int level) {
+        if(mode < PACKED || mode > DEFLATE || level < 0 || level > 9)
+            throw new IllegalArgumentException("Illegal compression");
+        this.mode = mode;
+        if(mode == DEFLATE) {
+            if(deflater == null)
+                deflater = new Deflater(level, true);
+            else
+                deflater.setLevel(level);
+        }
+    }
+
+    /**
+     * Encodes a board response in the current mode, straight from the cells of a snapshot
+     * @param buffer a buffer to reuse
+     * @return the buffer holding the response up to its position, or a new one if it is too small
+     */
+    ByteBuffer encode(ByteBuffer buffer, BoardSnapshot snapshot) {
+        if(mode == PACKED)
+            return BinaryProtocol.encodeBoard(buffer, snapshot);
+        if(mode == RUN_LENGTH) {
+            buffer = header(buffer, BinaryProtocol.BOARD_RUN_LENGTH, snapshot);
+            return encodeRuns(buffer, snapshot);
+        }
+        runs.clear();
+        runs = encodeRuns(runs, snapshot);
+        buffer = header(buffer, BinaryProtocol.BOARD_DEFLATE, snapshot);
+        BinaryProtocol.putVarint(buffer, runs.position());
+        return deflate(deflater, buffer);
+    }
+
+    /**
+     * Appends the runs of the scratch buffer deflated
+     * @return the buffer holding the deflated runs up to its position, or a new one if it is too small
+     */
+    private ByteBuffer deflate(Deflater deflater, ByteBuffer buffer) {
+        deflater.reset();
+        deflater.setInput(runs.array(), 0, runs.position());
+        deflater.finish();
+        while(!deflater.finished()) {
+            if(!buffer.hasRemaining())
+                buffer = grow(buffer, 0);
+            buffer.position(buffer.position() + deflater.deflate(buffer.array(), buffer.position(), buffer.remaining()));
+        }
+        return buffer;
+    }
+
+    /**
+     * Appends a block of the cells of a board state: the STATE_BLOCK cells from first on,
+     * or up to the last cell of the board
+     * @param buffer a buffer to reuse, the block being appended at its position
+     * @param snapshot the cells of the board
+     * @param first Integer representing the index of the first cell of the block, requires 0 <= first < rows * columns
+     * @return the buffer holding the block up to its position, or a new one if it is too small
+     */
+    ByteBuffer encodeStateBlock(ByteBuffer buffer, BoardSnapshot snapshot, int first) {
+        int end = (int) Math.min((long) snapshot.getRows() * snapshot.getColumns(), (long) first + STATE_BLOCK);
+        runs.clear();
+        int cell = snapshot.get(first) & 0xFF;
+        int length = 1;
+        for(int index = first + 1; index <= end; index++) {
+            int next = index < end ? snapshot.get(index) & 0xFF : -1;
+            if(next == cell) {
+                length++;
+                continue;
+            }
+            if(runs.remaining() < 5)
+                runs = grow(runs, 5);
+            BinaryProtocol.putVarint(runs, (length - 1) << 8 | cell);
+            cell = next;
+            length = 1;
+        }
+        if(stateDeflater == null)
+            stateDeflater = new Deflater(Deflater.BEST_SPEED, true);
+        if(buffer.remaining() < 10)
+            buffer = grow(buffer, 10);
+        BinaryProtocol.putVarint(buffer, end - first);
+        BinaryProtocol.putVarint(buffer, runs.position());
+        return deflate(stateDeflater, buffer);
+    }
+
+    /**
+     * Decodes a block of the cells of a board state written by encodeStateBlock
+     * @param block the block, from its position
+     * @param inflater an inflater of raw deflate streams, reset before use
+     * @param cells receives the packed cells of the block from index 0, requires STATE_BLOCK cells
+     * @return the number of cells of the block
+     * @throws DataFormatException if the block is corrupted
+     */
+    static int decodeStateBlock(ByteBuffer block, Inflater inflater, byte[] cells) throws DataFormatException {
+        int count = BinaryProtocol.getVarint(block);
+        int length = BinaryProtocol.getVarint(block);
+        // a run takes at most 4 bytes
+        if(count == 0 || count > cells.length || length > 4 * count)
+            throw new DataFormatException("Invalid block");
+        ByteBuffer runs = ByteBuffer.wrap(inflate(block, inflater, new byte[length]));
+        int index = 0;
+        while(index < count) {
+            int run = BinaryProtocol.getVarint(runs);
+            int end = index + (run >>> 8) + 1;
+            if(end > count || end <= index)
+                throw new DataFormatException("The runs overflow the block");
+            Arrays.fill(cells, index, end, (byte) run);
+            index = end;
+        }
+        return count;
+    }
+
+    /**
+     * Inflates a raw deflate stream
+     * @param deflated the stream, from its position
+     * @param inflater an inflater of raw deflate streams, reset before use
+     * @param inflated receives all the bytes of the stream
+     * @return inflated
+     * @throws DataFormatException if the stream is corrupted or holds fewer bytes
+     */
+    private static byte[] inflate(ByteBuffer deflated, Inflater inflater, byte[] inflated) throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(deflated.array(), deflated.arrayOffset() + deflated.position(), deflated.remaining());
+        int length = 0;
+        while(length < inflated.length) {
+            int count = inflater.inflate(inflated, length, inflated.length - length);
+            if(count == 0 && (inflater.finished() || inflater.needsInput()))
+                throw new DataFormatException("The runs are truncated");
+            length += count;
+        }
+        return inflated;
+    }
+
+    /**
+     * Releases the native memory of the deflaters, once the connection or the stream is closed
+     */
+    void end() {
+        if(deflater != null)
+            deflater.end();
+        if(stateDeflater != null)
+            stateDeflater.end();
+    }
+
+    /**
+     * @return the cleared buffer holding the type, rows and columns of the response
+     */
+    private static ByteBuffer header(ByteBuffer buffer, byte type, BoardSnapshot snapshot) {
+        buffer = BinaryProtocol.ensureCapacity(buffer, 11);
+        buffer.put(type);
+        BinaryProtocol.putVarint(buffer, snapshot.getRows());
+        BinaryProtocol.putVarint(buffer, snapshot.getColumns());
+        return buffer;
+    }
+
+    /**
+     * @param needed Integer representing the number of bytes needed after the position
+     * @return a buffer at least twice as large holding the same bytes up to the same position
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + needed));
+        larger.put(buffer.array(), 0, buffer.position());
+        return larger;
+    }
+
+    /**
+     * Appends the runs of the cells of a snapshot
+     * @return the buffer holding the runs up to its position, or a new one if it is too small
+     */
+    private static ByteBuffer encodeRuns(ByteBuffer buffer, BoardSnapshot snapshot) {
+        int size = snapshot.getRows() * snapshot.getColumns();
+        int code = BinaryProtocol.code(snapshot.get(0));
+        int length = 1;
+        for(int index = 1; index <= size; index++) {
+            int next = index < size ? BinaryProtocol.code(snapshot.get(index)) : -1;
+            if(next == code && length < MAX_RUN) {
+                length++;
+                continue;
+            }
+            // a run takes at most 5 bytes
+            if(buffer.remaining() < 5)
+                buffer = grow(buffer, 5);
+            BinaryProtocol.putVarint(buffer, (length - 1) << 4 | code);
+            code = next;
+            length = 1;
+        }
+        return buffer;
+    }
+
+    /**
+     * Decodes the payload of a BOARD_RUN_LENGTH response, following its type
+     * @return the board as rendered by the text protocol
+     */
+    static String decodeRunLength(ByteBuffer response) {
+        int rows = BinaryProtocol.getVarint(response);
+        int columns = BinaryProtocol.getVarint(response);
+        StringBuilder board = new StringBuilder(rows * (2 * columns + 1));
+        int index = 0;
+        while(index < rows * columns) {
+            int run = BinaryProtocol.getVarint(response);
+            char cell = BinaryProtocol.toChar(run & 0x0F);
+            for(int end = index + (run >>> 4) + 1; index < end; index++) {
+                int column = index % columns;
+                if(column > 0)
+                    board.append(' ');
+                board.append(cell);
+                if(column == columns - 1)
+                    board.append("\r\n");
+            }
+        }
+        return board.toString();
+    }
+
+    /**
+     * Decodes the payload of a BOARD_DEFLATE response, following its type
+     * @param inflater an inflater of raw deflate streams, reset before use
+     * @return the board as rendered by the text protocol
+     * @throws DataFormatException if the deflated runs are corrupted
+     */
+    static String decodeDeflate(ByteBuffer response, Inflater inflater) throws DataFormatException {
+        int rows = BinaryProtocol.getVarint(response);
+        int columns = BinaryProtocol.getVarint(response);
+        byte[] runs = inflate(response, inflater, new byte[BinaryProtocol.getVarint(response)]);
+        ByteBuffer decoded = ByteBuffer.allocate(10 + runs.length);
+        BinaryProtocol.putVarint(decoded, rows);
+        BinaryProtocol.putVarint(decoded, columns);
+        decoded.put(runs).flip();
+        return decodeRunLength(decoded);
+    }
+}
@@ -0,0 +1,29 @@
+package minesweeper.server;
+
+/**
+ * Observes the changes of a board in the order they are made, for instance to replicate them.
+ * All the methods are called while holding the lock of the board, so they must return quickly
+ * and must not wait for other threads that could need the lock.
+ */
+interface BoardListener {
+
+    /**
+     * Called every time a cell changes
+     * @param index Integer representing the index of the cell, in row order
+     * @param before the packed cell before the change (see BoardCell)
+     * @param after the packed cell after the change
+     */
+    void cellChanged(int index, byte before, byte after);
+
+    /**
+     * Called when a dig hits a bomb, after the changes of the cells it caused
+     * @param index Integer representing the index of the dug cell, in row order
+     */
+    void exploded(int index);
+
+    /**
+     * Called when any cell may have changed without cellChanged being called for each of them,
+     * once the mines of a lazily mined board have been placed or a state restored
+     */
+    void cellsReplaced();
+}
@@ -0,0 +1,146 @@
+package minesweeper.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Applies the commands of all the connections to a board from a single applier thread,
+ * in the order in which they were published into a preallocated ring of slots.
+ * A connection claims the next sequence number with an atomic increment, waits until the
+ * slot of that sequence has been applied one lap earlier, stores its command in the slot
+ * and publishes the sequence number; it then waits for the applier to complete the command.
+ * The applier drains every consecutive published slot as one batch, so the board is only
+ * ever touched by one thread (its monitors are never contended) and moves are applied in
+ * the total order of their sequence numbers.
+ * Thread safe: a slot is only written by the connection owning its sequence number before
+ * the number is published, and only read by the applier after it has been published;
+ * the commands themselves are handed over through their volatile completed flag.
+ */
+public final class BoardPipeline {
+
+    /** Number of times a waiting thread yields before parking, spinning would starve the other side on few cores */
+    private static final int SPINS = 200;
+
+    private final Board board;
+    private final BoardCommand[] slots;
+    /** The sequence number published into every slot, -1 while never published */
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    /** Sequence number of the next command to apply, every slot below being free again */
+    private volatile long applied;
+    private volatile boolean applierParked;
+    private volatile boolean running = true;
+    private final Thread applier;
+
+    /**
+     * Creates a pipeline and starts its applier thread
+     * @param board the board all the commands are applied to
+     * @param capacity number of slots of the ring, a power of two
+     */
+    public BoardPipeline(Board board, int capacity) {
+        if(capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("The capacity must be a power of two");
+        this.board = board;
+        this.slots = new BoardCommand[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++)
+            published.set(i, -1);
+        this.mask = capacity - 1;
+        this.applier = new Thread(new Runnable() {
+            public void run() {
+                applyCommands();
+            }
+        }, "board-applier");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * Applies a command on the applier thread, after all the commands published before it,
+     * and waits for its completion
+     * @param command the filled command of the calling connection, ready to be rendered on return
+     */
+    void execute(BoardCommand command) {
+        if(!running)
+            throw new IllegalStateException("The pipeline is closed");
+        long sequence = claimed.getAndIncrement();
+        int index = (int) sequence & mask;
+        // the slot is free once the command published one lap earlier has been applied
+        while(sequence - slots.length >= applied)
+            Thread.yield();
+
+        command.completed = false;
+        command.waiter = Thread.currentThread();
+        slots[index] = command;
+        published.set(index, sequence);
+        if(applierParked)
+            LockSupport.unpark(applier);
+
+        for(int spins = 0; !command.completed; spins++) {
+            if(spins < SPINS)
+                Thread.yield();
+            else
+                LockSupport.park(this);
+        }
+    }
+
+    /**
+     * The loop of the applier thread: applies every published command in sequence order,
+     * a whole run of consecutive published slots at a time
+     */
+    private void applyCommands() {
+        long next = 0;
+        int spins = 0;
+        while(true) {
+            if(published.get((int) next & mask) != next) {
+                if(!running)
+                    return;
+                if(spins++ < SPINS) {
+                    Thread.yield();
+                    continue;
+                }
+                // check again once parked is visible, so that no publication is missed
+                applierParked = true;
+                if(published.get((int) next & mask) != next && running)
+                    LockSupport.park(this);
+                applierParked = false;
+                spins = 0;
+                continue;
+            }
+
+            long end = next + 1;
+            while(end - next < slots.length && published.get((int) end & mask) == end)
+                end++;
+            for(long sequence = next; sequence < end; sequence++) {
+                int index = (int) sequence & mask;
+                BoardCommand command = slots[index];
+                slots[index] = null;
+                try {
+                    command.applyTo(board);
+                }
+                catch (RuntimeException e) {
+                    command.fail(e);
+                }
+                Thread waiter = command.waiter;
+                command.completed = true;
+                LockSupport.unpark(waiter);
+            }
+            // one volatile write frees all the slots of the batch
+            applied = end;
+            next = end;
+            spins = 0;
+        }
+    }
+
+    /**
+     * Stops the applier thread once it has applied all the published commands.
+     * Must only be called once no connection executes commands anymore.
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(applier);
+        applier.join();
+    }
+}
@@ -0,0 +1,322 @@
+package minesweeper.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps boards ready to be played, so that a new game starts without waiting for its mines
+ * to be placed and counted. The boards are grouped by profile, a topology, a density and the
+ * way their mines are placed (RANDOM, LAZY or NO_GUESS, see generate), and
+ * every profile holds at most capacity boards, generated by daemon worker threads of the lowest
+ * priority whenever a profile runs short. While the machine is loaded (its load average per
+ * processor reaching maxLoad) the workers only keep one board per profile and check the load again
+ * every LOAD_CHECK_MILLIS, leaving the processors to the clients.
+ * A game taking a board from an empty profile is a miss: its board is generated by the caller.
+ * A capacity of 0 disables the workers, every game then being a miss. A worker failing to
+ * generate a board reports the failure and only tries that profile again LOAD_CHECK_MILLIS later.
+ * Thread safe: the profiles and the counters are guarded by the lock of the pool, boards being
+ * generated outside of it; a board is only handed to one caller and never used by the pool again.
+ */
+public final class BoardPool {
+
+    /** Milliseconds between two checks of the load, or of the profiles without a take */
+    private static final long LOAD_CHECK_MILLIS = 1000;
+
+    /** Boards whose mines are placed at random right away */
+    public static final int RANDOM = 0;
+    /** Boards whose mines are only placed on the first dig, away from the dug cell */
+    public static final int LAZY = 1;
+    /** Grid boards solvable without guessing, whose center is already dug */
+    public static final int NO_GUESS = 2;
+
+    /** The boards ready to be played of a topology, a density and a generation */
+    private static final class Profile {
+        final BoardTopology topology;
+        final double density;
+        final int generation;
+        final ArrayDeque<Board> ready = new ArrayDeque<Board>();
+        /** Number of boards being generated by the workers */
+        int generating = 0;
+        /** System.currentTimeMillis() before which the profile is not generated, after a failure */
+        long retryAt = 0;
+
+        Profile(BoardTopology topology, double density, int generation) {
+            this.topology = topology;
+            this.density = density;
+            this.generation = generation;
+        }
+    }
+
+    private final int capacity;
+    /** Load average per processor from which the machine is loaded */
+    private final double maxLoad;
+    private final Map<String, Profile> profiles = new HashMap<String, Profile>();
+    private final Thread[] workers;
+    private boolean stopped = false;
+    private long hits = 0;
+    private long misses = 0;
+    private long generated = 0;
+    private long failed = 0;
+
+    /**
+     * Creates a pool and starts its workers
+     * @param capacity Integer representing the largest number of boards ready per profile, 0 for no pool
+     * @param numberOfWorkers Integer representing the number of threads generating boards, requires > 0
+     * @param maxLoad load average per processor from which only one board per profile is kept ready
+     */
+    public BoardPool(int capacity, int numberOfWorkers, double maxLoad) {
+        this.capacity = capacity;
+        this.maxLoad = maxLoad;
+        workers = new Thread[capacity > 0 ? numberOfWorkers : 0];
+        for(int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    refill();
+                }
+            }, "board-pool-" + i);
+            workers[i].setDaemon(true);
+            workers[i].setPriority(Thread.MIN_PRIORITY);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Creates the pool configured by the system properties minesweeper.pool (boards ready per
+     * profile, 0 by default), minesweeper.poolworkers (threads generating them, 1 by default)
+     * and minesweeper.poolmaxload (load average per processor from which the pool only keeps
+     * one board per profile, 1 by default)
+     * @return the pool
+     */
+    public static BoardPool fromProperties() {
+        return new BoardPool(Integer.getInteger("minesweeper.pool", 0),
+                Integer.getInteger("minesweeper.poolworkers", 1),
+                Double.parseDouble(System.getProperty("minesweeper.poolmaxload", "1")));
+    }
+
+    /**
+     * Tells how the boards of a server are generated, from the system properties
+     * minesweeper.noguess and minesweeper.lazymines as read by MinesweeperServer
+     * @return NO_GUESS, LAZY or RANDOM
+     */
+    static int generationFromProperties() {
+        if(Boolean.getBoolean("minesweeper.noguess"))
+            return NO_GUESS;
+        else if(Boolean.getBoolean("minesweeper.lazymines"))
+            return LAZY;
+        else
+            return RANDOM;
+    }
+
+    /**
+     * Generates a board ready to be played
+     * @param topology the dimensions and adjacency of the board, only the dimensions of a grid
+     * being kept by NO_GUESS
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1,
+     * and density < 1 for NO_GUESS
+     * @param generation RANDOM, LAZY or NO_GUESS
+     * @return the board, owned by the caller
+     */
+    static Board generate(BoardTopology topology, double density, int generation) {
+        switch(generation) {
+        case RANDOM:
+            return Board.createRandom(topology, density);
+        case LAZY:
+            return new Board(topology, density);
+        case NO_GUESS:
+        {
+            int rows = topology.rows();
+            int columns = topology.columns();
+            // a single worker, the pool already runs in the background
+            Board board = new NoGuessBoardGenerator(density, 5000, 1).generate(rows, columns, rows / 2, columns / 2);
+            board.digCell(rows / 2, columns / 2);
+            return board;
+        }
+        default:
+            throw new IllegalArgumentException("Unknown generation " + generation);
+        }
+    }
+
+    /**
+     * @return the profile of a topology, a density and a generation, created if needed
+     */
+    private synchronized Profile profile(BoardTopology topology, double density, int generation) {
+        String key = topology + " " + density + " " + generation;
+        Profile profile = profiles.get(key);
+        if(profile == null) {
+            profile = new Profile(topology, density, generation);
+            profiles.put(key, profile);
+            notifyAll();
+        }
+        return profile;
+    }
+
+    /**
+     * Starts keeping boards ready for a profile before its first game
+     * @param topology the dimensions and adjacency of the boards
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     */
+    public void prepare(BoardTopology topology, double density) {
+        prepare(topology, density, RANDOM);
+    }
+
+    /**
+     * Starts keeping boards ready for a profile before its first game
+     * @param topology the dimensions and adjacency of the boards
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     * @param generation RANDOM, LAZY or NO_GUESS (see generate)
+     */
+    public void prepare(BoardTopology topology, double density, int generation) {
+        profile(topology, density, generation);
+    }
+
+    /**
+     * Takes a board ready to be played, or generates one in the calling thread if none is ready
+     * @param topology the dimensions and adjacency of the board
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     * @return a random board whose mines are placed, owned by the caller
+     */
+    public Board take(BoardTopology topology, double density) {
+        return take(topology, density, RANDOM);
+    }
+
+    /**
+     * Takes a board ready to be played, or generates one in the calling thread if none is ready
+     * @param topology the dimensions and adjacency of the board
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     * @param generation RANDOM, LAZY or NO_GUESS (see generate)
+     * @return a board generated as generation tells, owned by the caller
+     */
+    public Board take(BoardTopology topology, double density, int generation) {
+        Board board;
+        synchronized (this) {
+            board = profile(topology, density, generation).ready.poll();
+            if(board != null)
+                hits++;
+            else
+                misses++;
+            notifyAll();
+        }
+        return board != null ? board : generate(topology, density, generation);
+    }
+
+    /**
+     * Generates boards for the profiles running short until the pool is stopped
+     */
+    private void refill() {
+        try {
+            while(true) {
+                Profile profile = nextProfile();
+                Board board = null;
+                try {
+                    board = generate(profile.topology, profile.density, profile.generation);
+                }
+                catch (RuntimeException | OutOfMemoryError e) {
+                    // the worker goes on, the takes of the profile generating their board meanwhile
+                    e.printStackTrace();
+                }
+                finally {
+                    synchronized (this) {
+                        profile.generating--;
+                        if(board != null) {
+                            profile.ready.add(board);
+                            generated++;
+                        }
+                        else {
+                            failed++;
+                            // the other profiles are refilled meanwhile
+                            profile.retryAt = System.currentTimeMillis() + LOAD_CHECK_MILLIS;
+                        }
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            return;
+        }
+    }
+
+    /**
+     * Waits for a profile holding fewer boards than it should
+     * @return the profile, whose board being generated is counted
+     * @throws InterruptedException once the pool is stopped
+     */
+    private synchronized Profile nextProfile() throws InterruptedException {
+        while(!stopped) {
+            boolean loaded = isLoaded();
+            int target = loaded ? Math.min(1, capacity) : capacity;
+            long now = System.currentTimeMillis();
+            for(Profile profile : profiles.values())
+                if(profile.ready.size() + profile.generating < target && now >= profile.retryAt) {
+                    profile.generating++;
+                    return profile;
+                }
+            wait(LOAD_CHECK_MILLIS);
+        }
+        throw new InterruptedException();
+    }
+
+    /**
+     * @return true if the load average of the machine per processor reaches maxLoad
+     */
+    private boolean isLoaded() {
+        // negative where the load average is not available
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        return load >= 0 && load >= maxLoad * Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Stops the workers once they are done with the boards they are generating
+     */
+    public synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of games that took a board ready to be played
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of games whose board was generated by the caller
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of boards generated by the workers
+     */
+    public synchronized long getGenerated() {
+        return generated;
+    }
+
+    /**
+     * @return the number of boards the workers failed to generate
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the number of boards ready to be played, for all the profiles
+     */
+    public synchronized int getReady() {
+        int ready = 0;
+        for(Profile profile : profiles.values())
+            ready += profile.ready.size();
+        return ready;
+    }
+
+    /**
+     * @return the counters, as answered to the pool command
+     */
+    public synchronized String toString() {
+        return hits + " hits, " + misses + " misses, " + generated + " boards generated, "
+                + getReady() + " boards ready";
+    }
+}
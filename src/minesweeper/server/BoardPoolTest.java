@@ -0,0 +1,232 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Test;
+
+public class BoardPoolTest {
+
+    @Test
+    public void createRandomTest() {
+        Board board = Board.createRandom(new GridTopology(20, 30), 0.2);
+        assertTrue(board.countersMatchScan());
+        assertTrue(board.getMinesRemaining() > 0);
+        assertEquals(600, board.getSafeCellsLeft() + board.getMinesRemaining());
+        assertEquals(0, Board.createRandom(new GridTopology(5, 5), 0).getMinesRemaining());
+    }
+
+    @Test
+    public void poolTest() throws InterruptedException {
+        BoardPool pool = new BoardPool(2, 1, Double.POSITIVE_INFINITY);
+        try {
+            BoardTopology topology = new TorusTopology(40, 40);
+            pool.prepare(topology, 0.1);
+            long deadline = System.currentTimeMillis() + 10000;
+            while(pool.getReady() < 2) {
+                assertTrue("refill timed out", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Board board = pool.take(topology, 0.1);
+            assertEquals("hits", 1, pool.getHits());
+            assertEquals("misses", 0, pool.getMisses());
+            assertEquals("torus 40x40", board.getTopology().toString());
+            assertTrue(board.countersMatchScan());
+
+            // an unknown profile is generated by the caller, then refilled
+            Board other = pool.take(new GridTopology(3, 4), 0.1);
+            assertEquals(1, pool.getMisses());
+            assertEquals("grid 4x3", other.getTopology().toString());
+            while(pool.getReady() < 4) {
+                assertTrue("refill timed out", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertEquals("1 hits, 1 misses, 5 boards generated, 4 boards ready", pool.toString());
+        }
+        finally {
+            pool.stop();
+        }
+        BoardPool disabled = new BoardPool(0, 1, Double.POSITIVE_INFINITY);
+        disabled.take(new GridTopology(3, 3), 0.1);
+        assertEquals("0 hits, 1 misses, 0 boards generated, 0 boards ready", disabled.toString());
+    }
+
+    @Test
+    public void loadedPoolTest() throws InterruptedException {
+        // a load of 0 is always reached, so the pool behaves as on a loaded machine
+        BoardPool pool = new BoardPool(3, 2, 0);
+        try {
+            pool.prepare(new GridTopology(10, 10), 0.2);
+            long deadline = System.currentTimeMillis() + 10000;
+            while(pool.getReady() < 1) {
+                assertTrue("refill timed out", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(1, pool.getReady());
+            assertEquals(1, pool.getGenerated());
+        }
+        finally {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void failedGenerationTest() throws InterruptedException {
+        BoardPool pool = new BoardPool(1, 1, Double.POSITIVE_INFINITY);
+        try {
+            // NoGuessBoardGenerator rejects a density of 1
+            pool.prepare(new GridTopology(5, 5), 1, BoardPool.NO_GUESS);
+            long deadline = System.currentTimeMillis() + 10000;
+            while(pool.getFailed() < 1) {
+                assertTrue("generation timed out", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            // the worker survives and refills the other profiles
+            pool.prepare(new GridTopology(4, 4), 0.1);
+            while(pool.getReady() < 1) {
+                assertTrue("refill timed out", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertEquals(1, pool.getGenerated());
+        }
+        finally {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void startNewGameTest() {
+        Board board = new Board(new boolean[][] {{false, true}, {false, false}});
+        board.digCell(0, 0);
+        board.SetStatusToFlagged(0, 1);
+        BoardSnapshot before = board.snapshot();
+        long version = board.getVersion();
+
+        board.startNewGame(Board.createRandom(new GridTopology(2, 2), 0));
+        assertEquals("playing: 0 mines remaining, 4 safe cells left, 0 flags, 0 explosions", board.getStatus());
+        assertEquals("- -\r\n- -\r\n", board.toString());
+        assertTrue(board.getVersion() > version);
+        // the snapshot taken before still shows the previous game
+        assertEquals("1 F\r\n- -\r\n", before.toString());
+        before.release();
+        board.digCell(1, 1);
+        assertTrue(board.isWon());
+        assertTrue(board.countersMatchScan());
+
+        try {
+            board.startNewGame(Board.createRandom(new GridTopology(3, 2), 0));
+            fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void generateTest() {
+        // the mines of a lazy board are only placed on the first dig
+        Board lazy = BoardPool.generate(new GridTopology(6, 6), 0.3, BoardPool.LAZY);
+        assertEquals(0, lazy.getMinesRemaining());
+        assertEquals(36, lazy.getSafeCellsLeft());
+        // the center of a board solvable without guessing is already dug
+        Board noGuess = BoardPool.generate(new GridTopology(9, 9), 0.1, BoardPool.NO_GUESS);
+        assertTrue(noGuess.getSafeCellsLeft() + noGuess.getMinesRemaining() < 81);
+        assertTrue(noGuess.countersMatchScan());
+    }
+
+    /**
+     * @return a port that is free right now
+     */
+    private static int freePort() throws IOException {
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+        return port;
+    }
+
+    /**
+     * Starts serving in a daemon thread
+     */
+    private static void startServer(final MinesweeperServer server) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Test
+    public void newGameCommandTest() throws IOException {
+        int port = freePort();
+        startServer(new MinesweeperServer(port, true,
+                new Board(new boolean[][] {{true, false}, {false, false}}),
+                new AdmissionControl(0, 0, 0, 0, 0, 0, 0, 0), new BoardPool(1, 1, Double.POSITIVE_INFINITY)));
+        Socket socket = new Socket("localhost", port);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            in.readLine();
+            out.println("dig 0 0");
+            assertEquals(MinesweeperServer.BOOM_MSG, in.readLine());
+            out.println("new");
+            String line = in.readLine();
+            assertTrue(line, line.matches("new game: playing: \\d mines remaining, \\d safe cells left, 0 flags, 0 explosions"));
+            out.println("look");
+            assertEquals("- -", in.readLine());
+            assertEquals("- -", in.readLine());
+            in.readLine();
+            out.println("pool");
+            // the board of the new game was either ready or generated on demand
+            line = in.readLine();
+            assertTrue(line, line.matches("(1 hits, 0 misses|0 hits, 1 misses), \\d boards generated, [01] boards ready"));
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void pipelinedLazyNewGameTest() throws IOException {
+        // the new game of a lazy server is lazy too, and goes through the pipeline
+        System.setProperty("minesweeper.lazymines", "true");
+        int port = freePort();
+        try {
+            startServer(new MinesweeperServer(port, true, 
+                    new Board(new boolean[][] {{true, false}, {false, false}}), true));
+        }
+        finally {
+            System.clearProperty("minesweeper.lazymines");
+        }
+        Socket socket = new Socket("localhost", port);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            in.readLine();
+            out.println("new");
+            assertEquals("new game: playing: 0 mines remaining, 4 safe cells left, 0 flags, 0 explosions", in.readLine());
+            // the first dig and its neighbors hold no bomb, which leaves none on a 2x2 board
+            out.println("dig 0 0");
+            assertEquals("   ", in.readLine());
+            assertEquals("   ", in.readLine());
+            in.readLine();
+            out.println("status");
+            assertTrue(in.readLine().startsWith("won"));
+        }
+        finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package minesweeper.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable view of all the cells of a board at a given version, taken by
+ * Board.snapshot() while holding the board lock and read without any lock.
+ * Its chunks are never modified by the board (see CellStore) until release() is called,
+ * which must happen once the snapshot is not read anymore so that writers stop copying
+ * the chunks it shares; a released snapshot must not be read.
+ * Thread safe: the chunks are not written while the snapshot is open,
+ * and release is idempotent.
+ */
+public final class BoardSnapshot {
+
+    private final CellStore store;
+    private final byte[][] chunks;
+    /** The mapped regions read for the null chunks, or null if the cells are kept on the heap */
+    private final ByteBuffer[] regions;
+    private final int rows;
+    private final int columns;
+    private final long version;
+    private boolean released = false;
+
+    BoardSnapshot(CellStore store, byte[][] chunks, ByteBuffer[] regions, int rows, int columns, long version) {
+        this.store = store;
+        this.chunks = chunks;
+        this.regions = regions;
+        this.rows = rows;
+        this.columns = columns;
+        this.version = version;
+    }
+
+    /**
+     * @return the version of the board the snapshot was taken at, increasing with every change of a cell
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the number of rows of the board
+     */
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the number of columns of the board
+     */
+    int getColumns() {
+        return columns;
+    }
+
+    /**
+     * @param x Integer representing the x coordinate of the cell
+     * @param y Integer representing the y coordinate of the cell
+     * @return the packed cell (see BoardCell), requires the cell to be within the board bounds
+     */
+    byte get(int x, int y) {
+        return get(x * columns + y);
+    }
+
+    /**
+     * @param index Integer representing the index of the cell in row order, requires 0 <= index < rows * columns
+     * @return the packed cell (see BoardCell)
+     */
+    byte get(int index) {
+        byte[] chunk = chunks[index >>> CellStore.CHUNK_BITS];
+        if(chunk != null) 
+            return chunk[index & (CellStore.CHUNK_SIZE - 1)];
+        return regions[index >>> CellStore.REGION_BITS].get(index & (CellStore.REGION_SIZE - 1));
+    }
+
+    /**
+     * Tells the board that the snapshot is not read anymore
+     */
+    public synchronized void release() {
+        if(!released) {
+            released = true;
+            store.release();
+        }
+    }
+
+    /**
+     * Displays the board as a String, rows separated by "\r\n" and cells by a space
+     */
+    public String toString() {
+        StringBuilder toReturn = new StringBuilder(rows * (2 * columns + 1));
+        for(int k = 0; k < rows; k++) {
+            toReturn.append(BoardCell.toChar(get(k, 0)));
+            for(int l = 1; l < columns; l++)
+                toReturn.append(' ').append(BoardCell.toChar(get(k, l)));
+            toReturn.append("\r\n");
+        }
+        return toReturn.toString();
+    }
+}
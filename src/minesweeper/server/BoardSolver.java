@@ -0,0 +1,234 @@
+package minesweeper.server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A deterministic solver deciding whether a bomb layout can be cleared
+ * from a given first click without ever having to guess.
+ * The solver only applies deductions a careful player could make:
+ * the single cell rules (a number whose bombs are all found makes the rest of its
+ * neighbors safe, a number with as many hidden neighbors as missing bombs makes
+ * them all bombs) and the subset rule between two neighboring numbers.
+ * Representation invariant: bombs is a non empty rectangular array and
+ * counts holds the number of adjacent bombs of every cell.
+ * Not thread safe: every instance is meant to be used by a single generating thread.
+ */
+class BoardSolver {
+
+    private final boolean[][] bombs;
+    private final int[][] counts;
+    private final boolean[][] revealed;
+    private final boolean[][] knownBombs;
+    private final int rows;
+    private final int columns;
+    private int safeCellsLeft;
+
+    /**
+     * Creates a solver for the given bomb layout
+     * @param bombs 2D array where true marks a cell holding a bomb
+     */
+    BoardSolver(boolean[][] bombs) {
+        this.bombs = bombs;
+        this.rows = bombs.length;
+        this.columns = bombs[0].length;
+        this.counts = new int[rows][columns];
+        this.revealed = new boolean[rows][columns];
+        this.knownBombs = new boolean[rows][columns];
+        for(int i = 0; i < rows; i++)
+            for(int j = 0; j < columns; j++) {
+                if(!bombs[i][j])
+                    safeCellsLeft++;
+                for(int k = i-1; k <= i+1; k++)
+                    for(int l = j-1; l <= j+1; l++)
+                        if((k != i || l != j) && isWithinBounds(k, l) && bombs[k][l])
+                            counts[i][j]++;
+            }
+        checkRepresentationInvariant();
+    }
+
+    /**
+     * Checks whether the whole board can be cleared by deduction only
+     * @param x Integer representing the x coordinate of the first click
+     * @param y Integer representing the y coordinate of the first click
+     * @return true if every safe cell gets revealed without guessing,
+     * false if the first click is a bomb or the solver gets stuck
+     */
+    boolean solveFrom(int x, int y) {
+        if(!isWithinBounds(x, y) || bombs[x][y])
+            return false;
+        reveal(x, y);
+        boolean progress = true;
+        while(safeCellsLeft > 0 && progress) {
+            if(Thread.currentThread().isInterrupted())
+                return false;
+            progress = applySingleCellRules() || applySubsetRule();
+        }
+        return safeCellsLeft == 0;
+    }
+
+    /**
+     * Applies the single cell rules on every revealed number
+     * @return true if at least one cell was revealed or marked as a bomb
+     */
+    private boolean applySingleCellRules() {
+        boolean progress = false;
+        for(int i = 0; i < rows; i++)
+            for(int j = 0; j < columns; j++) {
+                if(!revealed[i][j] || counts[i][j] == 0)
+                    continue;
+                int hidden = countHiddenNeighbors(i, j);
+                if(hidden == 0)
+                    continue;
+                int missing = counts[i][j] - countKnownBombNeighbors(i, j);
+                if(missing == 0)
+                    progress |= revealHiddenNeighbors(i, j, -1, -1);
+                else if(missing == hidden)
+                    progress |= markHiddenNeighbors(i, j, -1, -1);
+            }
+        return progress;
+    }
+
+    /**
+     * Applies the subset rule: if the hidden neighbors of a are all hidden neighbors of b,
+     * the cells only seen by b hold exactly the difference of their missing bombs
+     * @return true if at least one cell was revealed or marked as a bomb
+     */
+    private boolean applySubsetRule() {
+        for(int ai = 0; ai < rows; ai++)
+            for(int aj = 0; aj < columns; aj++) {
+                if(!isFrontier(ai, aj))
+                    continue;
+                for(int bi = ai-2; bi <= ai+2; bi++)
+                    for(int bj = aj-2; bj <= aj+2; bj++) {
+                        if((bi == ai && bj == aj) || !isWithinBounds(bi, bj) || !isFrontier(bi, bj))
+                            continue;
+                        if(!hiddenNeighborsIncluded(ai, aj, bi, bj))
+                            continue;
+                        int onlyInB = countHiddenNeighbors(bi, bj) - countHiddenNeighbors(ai, aj);
+                        if(onlyInB == 0)
+                            continue;
+                        int missingA = counts[ai][aj] - countKnownBombNeighbors(ai, aj);
+                        int missingB = counts[bi][bj] - countKnownBombNeighbors(bi, bj);
+                        if(missingB == missingA && revealHiddenNeighbors(bi, bj, ai, aj))
+                            return true;
+                        if(missingB - missingA == onlyInB && markHiddenNeighbors(bi, bj, ai, aj))
+                            return true;
+                    }
+            }
+        return false;
+    }
+
+    /**
+     * @return true if the cell is a revealed number that still has hidden neighbors
+     */
+    private boolean isFrontier(int x, int y) {
+        return revealed[x][y] && counts[x][y] > 0 && countHiddenNeighbors(x, y) > 0;
+    }
+
+    /**
+     * @return true if every hidden neighbor of (ax, ay) is also a hidden neighbor of (bx, by)
+     */
+    private boolean hiddenNeighborsIncluded(int ax, int ay, int bx, int by) {
+        for(int k = ax-1; k <= ax+1; k++)
+            for(int l = ay-1; l <= ay+1; l++)
+                if((k != ax || l != ay) && isHidden(k, l) && !isNeighbor(k, l, bx, by))
+                    return false;
+        return true;
+    }
+
+    /**
+     * @return true if (i, j) is a cell of the board adjacent to (x, y)
+     */
+    private boolean isNeighbor(int x, int y, int i, int j) {
+        return isWithinBounds(i, j) && (x != i || y != j) && Math.abs(x - i) <= 1 && Math.abs(y - j) <= 1;
+    }
+
+    private boolean isHidden(int x, int y) {
+        return isWithinBounds(x, y) && !revealed[x][y] && !knownBombs[x][y];
+    }
+
+    private int countHiddenNeighbors(int x, int y) {
+        int number = 0;
+        for(int k = x-1; k <= x+1; k++)
+            for(int l = y-1; l <= y+1; l++)
+                if((k != x || l != y) && isHidden(k, l))
+                    number++;
+        return number;
+    }
+
+    private int countKnownBombNeighbors(int x, int y) {
+        int number = 0;
+        for(int k = x-1; k <= x+1; k++)
+            for(int l = y-1; l <= y+1; l++)
+                if((k != x || l != y) && isWithinBounds(k, l) && knownBombs[k][l])
+                    number++;
+        return number;
+    }
+
+    /**
+     * Reveals the hidden neighbors of (x, y) that are not neighbors of (exceptX, exceptY),
+     * (exceptX, exceptY) being out of the board when no cell has to be excluded
+     * @return true if at least one cell was revealed
+     */
+    private boolean revealHiddenNeighbors(int x, int y, int exceptX, int exceptY) {
+        boolean changed = false;
+        for(int k = x-1; k <= x+1; k++)
+            for(int l = y-1; l <= y+1; l++)
+                if((k != x || l != y) && isHidden(k, l) && !isNeighbor(k, l, exceptX, exceptY)) {
+                    reveal(k, l);
+                    changed = true;
+                }
+        return changed;
+    }
+
+    /**
+     * Marks as bombs the hidden neighbors of (x, y) that are not neighbors of (exceptX, exceptY)
+     * @return true if at least one cell was marked
+     */
+    private boolean markHiddenNeighbors(int x, int y, int exceptX, int exceptY) {
+        boolean changed = false;
+        for(int k = x-1; k <= x+1; k++)
+            for(int l = y-1; l <= y+1; l++)
+                if((k != x || l != y) && isHidden(k, l) && !isNeighbor(k, l, exceptX, exceptY)) {
+                    knownBombs[k][l] = true;
+                    changed = true;
+                }
+        return changed;
+    }
+
+    /**
+     * Reveals a safe cell and flood fills from it the same way Board.digCell does,
+     * using an explicit stack so that large empty areas do not overflow the call stack
+     */
+    private void reveal(int x, int y) {
+        Deque<int[]> toReveal = new ArrayDeque<int[]>();
+        toReveal.push(new int[] {x, y});
+        while(!toReveal.isEmpty()) {
+            int[] cell = toReveal.pop();
+            int i = cell[0];
+            int j = cell[1];
+            if(!isHidden(i, j))
+                continue;
+            revealed[i][j] = true;
+            safeCellsLeft--;
+            if(counts[i][j] == 0)
+                for(int k = i-1; k <= i+1; k++)
+                    for(int l = j-1; l <= j+1; l++)
+                        if((k != i || l != j) && isHidden(k, l))
+                            toReveal.push(new int[] {k, l});
+        }
+    }
+
+    private boolean isWithinBounds(int x, int y) {
+        return x >= 0 && x < rows && y >= 0 && y < columns;
+    }
+
+    /**
+     * Checks the representation invariant
+     */
+    private void checkRepresentationInvariant() {
+        assert bombs != null && rows > 0 && columns > 0;
+        assert counts.length == rows && counts[0].length == columns;
+    }
+}
@@ -2,7 +2,14 @@ package minesweeper.server;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -13,9 +20,17 @@ public class BoardTest {
         new Board(new File("sample_test/FileWithExtraColumn.txt"));
     }
     
-    @Test (expected = RuntimeException.class)
-    public void invalidFileWithExtraRowTest() {
-        new Board(new File("sample_test/FileWithRowColumn.txt"));
+    @Test
+    public void rectangularFileTest() throws IOException {
+        File file = File.createTempFile("rectangle", ".txt");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        writer.write("0 0 0\n0 0 1\n");
+        writer.close();
+        Board b = new Board(file);
+        b.digCell(0,0);
+        String output = "  1 -\r\n  1 -\r\n";
+        assertEquals(output, b.toString());
     }
     
     @Test (expected = RuntimeException.class)
@@ -111,4 +126,297 @@ public class BoardTest {
         
        
     }
+    @Test
+    public void lazyFirstDigNeverBoomsTest() {
+        // every cell except the first dug cell and its neighbors gets a bomb
+        Board b = new Board(5, 1.0);
+        assertEquals("- - - - -\r\n- - - - -\r\n- - - - -\r\n- - - - -\r\n- - - - -\r\n", b.toString());
+        assertEquals("no bomb", b.digCell(2,2));
+        assertEquals(5, b.getBombCount(1,1));
+        assertEquals(0, b.getBombCount(2,2));
+        assertEquals(MinesweeperServer.BOOM_MSG, b.digCell(0,0));
+    }
+    
+    @Test
+    public void lazyKeepsFlagsTest() {
+        Board b = new Board(3, 1.0);
+        b.SetStatusToFlagged(0,0);
+        b.digCell(2,2);
+        assertTrue(b.isStatusFlagged(0,0));
+    }
+    
+    @Test
+    public void lazyDensityFileTest() throws IOException {
+        File file = File.createTempFile("density", ".txt");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        writer.write("density 0 4\n");
+        writer.close();
+        Board b = new Board(file);
+        b.digCell(0,0);
+        String output = "       \r\n       \r\n       \r\n       \r\n";
+        assertEquals(output, b.toString());
+    }
+    
+    @Test
+    public void rectangularLayoutTest() {
+        boolean[][] bombs = {{false, false, false, false}, {true, false, false, false}};
+        Board b = new Board(bombs);
+        b.digCell(0,3);
+        assertEquals("- 1    \r\n- 1    \r\n", b.toString());
+    }
+    
+    @Test
+    public void torusWrapsAroundTest() {
+        boolean[][] bombs = new boolean[3][4];
+        bombs[2][3] = true;
+        Board b = new Board(bombs, new TorusTopology(3, 4));
+        // the bomb in the opposite corner is adjacent through both edges
+        assertEquals(1, b.getBombCount(0,0));
+        b.digCell(0,1);
+        assertEquals("1   1 -\r\n1   1 -\r\n1   1 -\r\n", b.toString());
+    }
+    
+    @Test
+    public void hexNeighborsTest() {
+        boolean[][] bombs = new boolean[3][3];
+        bombs[1][1] = true;
+        Board b = new Board(bombs, new HexTopology(3, 3));
+        // odd row 1 is shifted to the right: (1,1) touches (0,1), (0,2), (2,1) and (2,2) but not (0,0)
+        assertEquals(0, b.getBombCount(0,0));
+        assertEquals(1, b.getBombCount(0,1));
+        assertEquals(1, b.getBombCount(0,2));
+        assertEquals(0, b.getBombCount(2,0));
+        assertEquals(1, b.getBombCount(2,2));
+    }
+    
+    @Test
+    public void largeFloodFillTest() {
+        Board b = new Board(new boolean[2000][2000]);
+        assertEquals("no bomb", b.digCell(1000,1000));
+        assertEquals("out of bounds / cannot be dug", b.digCell(0,0));
+        assertEquals("out of bounds / cannot be dug", b.digCell(1999,1999));
+    }
+    
+    @Test
+    public void chordTest() {
+        boolean[][] bombs = new boolean[3][3];
+        bombs[0][0] = true;
+        Board b = new Board(bombs);
+        b.digCell(1,1);
+        b.SetStatusToFlagged(0,0);
+        assertEquals("no bomb", b.chord(1,1));
+        assertEquals("F 1  \r\n1 1  \r\n     \r\n", b.toString());
+    }
+    
+    @Test
+    public void chordWithoutEnoughFlagsTest() {
+        boolean[][] bombs = new boolean[3][3];
+        bombs[0][0] = true;
+        Board b = new Board(bombs);
+        b.digCell(1,1);
+        assertEquals("flag count does not match / cannot be chorded", b.chord(1,1));
+        assertEquals("- - -\r\n- 1 -\r\n- - -\r\n", b.toString());
+        assertEquals("out of bounds / cannot be chorded", b.chord(0,1));
+    }
+    
+    @Test
+    public void chordWrongFlagTest() {
+        boolean[][] bombs = new boolean[3][3];
+        bombs[0][0] = true;
+        Board b = new Board(bombs);
+        b.digCell(1,1);
+        b.SetStatusToFlagged(0,1);
+        assertEquals(MinesweeperServer.BOOM_MSG, b.chord(1,1));
+        assertTrue(b.isStatusFlagged(0,1));
+    }
+    
+    @Test
+    public void flagRectangleTest() {
+        Board b = new Board(new boolean[3][4]);
+        b.SetStatusToFlagged(1,1);
+        assertEquals(3, b.flagRectangle(1,1,5,2));
+        assertEquals("- - - -\r\n- F F -\r\n- F F -\r\n", b.toString());
+        
+        Board dug = new Board(new boolean[3][4]);
+        dug.digCell(0,0);
+        assertEquals(0, dug.flagRectangle(0,0,3,4));
+    }
+    
+    @Test
+    public void deflagTest() {
+        Board b = new Board(new boolean[3][4]);
+        b.flagRectangle(0,0,3,4);
+        assertEquals(2, b.unflagRectangle(0,2,1,2));
+        assertEquals("F F - -\r\nF F F F\r\nF F F F\r\n", b.toString());
+        assertEquals(10, b.unflagAll());
+        assertEquals("- - - -\r\n- - - -\r\n- - - -\r\n", b.toString());
+    }
+    
+    @Test
+    public void digCellsTest() {
+        boolean[][] bombs = new boolean[2][3];
+        bombs[1][2] = true;
+        Board b = new Board(bombs);
+        assertEquals(2, b.digCells(new int[] {0, 2, 1, 1}));
+        assertEquals("- - 1\r\n- 1 -\r\n", b.toString());
+        // already dug and out of bounds cells are skipped
+        assertEquals(0, b.digCells(new int[] {0, 2, 5, 5}));
+        assertEquals(0, b.getExplosions());
+        assertEquals(2, b.digCells(new int[] {0, 0, 1, 2}));
+        assertEquals(1, b.getExplosions());
+    }
+    
+    @Test
+    public void statusTest() {
+        Board b = new Board(new File("sample_test/twoByTwo.txt"));
+        assertEquals("playing: 2 mines remaining, 2 safe cells left, 0 flags, 0 explosions", b.getStatus());
+        b.SetStatusToFlagged(1,0);
+        assertEquals(1, b.getMinesRemaining());
+        b.digCell(0,0);
+        b.digCell(0,1);
+        assertTrue(b.isWon());
+        assertEquals("won: 1 mines remaining, 0 safe cells left, 1 flags, 0 explosions", b.getStatus());
+    }
+    
+    @Test
+    public void boomCountersTest() {
+        Board b = new Board(new File("sample_test/twoByTwo.txt"));
+        assertEquals(MinesweeperServer.BOOM_MSG, b.digCell(1,0));
+        assertTrue(b.isLost());
+        assertEquals(2, b.getSafeCellsLeft());
+        assertEquals(1, b.getMinesRemaining());
+        assertEquals(1, b.getBombCount(0,0));
+        assertTrue(b.countersMatchScan());
+    }
+    
+    @Test
+    public void countersMatchScanTest() {
+        Random random = new Random(42);
+        Board[] boards = {new Board(20), new Board(new GridTopology(15, 25), 0.2), 
+                new Board(new TorusTopology(12, 9)), new Board(new HexTopology(10, 14))};
+        for(Board b : boards) {
+            int rows = b.getTopology().rows();
+            int columns = b.getTopology().columns();
+            assertTrue(b.countersMatchScan());
+            for(int i = 0; i < 500; i++) {
+                int x = random.nextInt(rows);
+                int y = random.nextInt(columns);
+                switch(random.nextInt(6)) {
+                case 0: b.digCell(x, y); break;
+                case 1: b.SetStatusToFlagged(x, y); break;
+                case 2: b.unflag(x, y); break;
+                case 3: b.chord(x, y); break;
+                case 4: b.flagRectangle(x, y, 3, 3); break;
+                default: b.unflagRectangle(x, y, 2, 4); break;
+                }
+                assertTrue(b.countersMatchScan());
+            }
+            // the adjacent bombs updated after each BOOM match a full recount
+            String board = b.toString();
+            b.SetAdjacentBombs();
+            assertEquals(board, b.toString());
+        }
+    }
+    
+    @Test
+    public void snapshotIsolationTest() {
+        Board b = new Board(new File("sample_test/twoByTwo.txt"));
+        BoardSnapshot before = b.snapshot();
+        b.digCell(0,0);
+        b.SetStatusToFlagged(1,1);
+        BoardSnapshot after = b.snapshot();
+        assertEquals("- -\r\n- -\r\n", before.toString());
+        assertEquals("2 -\r\n- F\r\n", after.toString());
+        assertTrue(after.getVersion() > before.getVersion());
+        before.release();
+        after.release();
+    }
+    
+    @Test
+    public void snapshotAcrossChunksTest() {
+        // a board spanning several chunks, modified in place once no snapshot is open
+        Board b = new Board(new boolean[100][100]);
+        BoardSnapshot untouched = b.snapshot();
+        b.flagRectangle(0, 0, 100, 100);
+        assertFalse(untouched.toString().contains("F"));
+        untouched.release();
+        b.unflagRectangle(0, 0, 50, 100);
+        String board = b.toString();
+        assertEquals(100 * 50, board.length() - board.replace("F", "").length());
+    }
+    
+    @Test
+    public void mappedBoardTest() throws IOException {
+        // a mapped board restored from the state of a heap board plays exactly like it
+        boolean[][] bombs = new boolean[70][90];
+        Random random = new Random(5);
+        for(int i = 0; i < 70; i++) 
+            for(int j = 0; j < 90; j++) 
+                bombs[i][j] = random.nextDouble() < 0.1;
+        Board b = new Board(bombs);
+        File file = File.createTempFile("board", ".cells");
+        file.deleteOnExit();
+        Board mapped = Board.createMapped(file, b.getTopology(), 0.1);
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        b.writeState(new DataOutputStream(state));
+        mapped.restoreState(new DataInputStream(new ByteArrayInputStream(state.toByteArray())), true);
+        assertEquals(Board.FILE_HEADER_SIZE + 70 * 90, file.length());
+        
+        BoardSnapshot before = mapped.snapshot();
+        String board = mapped.toString();
+        for(int i = 0; i < 300; i++) {
+            int x = random.nextInt(70);
+            int y = random.nextInt(90);
+            switch(random.nextInt(3)) {
+            case 0: assertEquals(b.digCell(x, y), mapped.digCell(x, y)); break;
+            case 1: b.SetStatusToFlagged(x, y); mapped.SetStatusToFlagged(x, y); break;
+            default: b.unflag(x, y); mapped.unflag(x, y); break;
+            }
+            assertEquals(b.getStatus(), mapped.getStatus());
+        }
+        // the chunks shared with the snapshot were copied rather than modified in the file
+        assertEquals(board, before.toString());
+        before.release();
+        assertEquals(b.toString(), mapped.toString());
+        assertTrue(mapped.countersMatchScan());
+        
+        mapped.flush();
+        Board reopened = Board.openMapped(file);
+        assertEquals(b.toString(), reopened.toString());
+        assertEquals(b.getStatus(), reopened.getStatus());
+    }
+    
+    @Test
+    public void flushWaitsForSnapshotsTest() throws IOException, InterruptedException {
+        File file = File.createTempFile("board", ".cells");
+        file.deleteOnExit();
+        final Board mapped = Board.createMapped(file, new GridTopology(20, 30), 0.1);
+        mapped.SetStatusToFlagged(1, 1);
+        final BoardSnapshot open = mapped.snapshot();
+        mapped.SetStatusToFlagged(2, 2);
+        final IOException[] failure = new IOException[1];
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    mapped.flush();
+                }
+                catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        flusher.start();
+        Thread.sleep(100);
+        // the flush waits for the snapshot without holding the lock of the board
+        assertTrue(flusher.isAlive());
+        mapped.SetStatusToFlagged(3, 3);
+        open.release();
+        flusher.join(10000);
+        assertFalse(flusher.isAlive());
+        assertNull(failure[0]);
+        Board reopened = Board.openMapped(file);
+        assertEquals(mapped.toString(), reopened.toString());
+        assertEquals(3, reopened.getFlagCount());
+    }
 }
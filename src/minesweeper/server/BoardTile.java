@@ -0,0 +1,343 @@
+package minesweeper.server;
+
+import java.util.Arrays;
+
+/**
+ * One rectangular tile of a grid board too large for a single process, whose bombs are
+ * given by a seeded hash of their coordinates (see hasBomb) so that no process ever holds
+ * the whole layout, and the tile writes its own part straight into the cells of its board.
+ * The tile is backed by a Board surrounded by a ring of ghost cells copying the bombs of the
+ * neighboring tiles, so that the cells of the tile count their adjacent bombs across its edges.
+ * Ghost cells are flagged so that flood fills stop at the edge of the tile; the answers of
+ * the tile then tell which ghost cells the flood fill continues on (fill requests) and which
+ * bombs at the edge were removed by a BOOM (unbomb requests), for PartitionRouter to forward
+ * to the owners of these cells.
+ * Coordinates are global, x being the row and y the column as in Board.
+ * Thread safe: every command holds the lock of the backing board.
+ */
+public final class BoardTile {
+
+    /** Dimensions of the whole board */
+    private final int globalRows;
+    private final int globalColumns;
+    /** Global coordinates of the top left cell of the tile */
+    private final int top;
+    private final int left;
+    private final int rows;
+    private final int columns;
+    /** The tile and its ghost ring, cell (x, y) of the tile being (x - top + 1, y - left + 1) */
+    private final Board board;
+    private final int ghostCells;
+    /** Number of ghost cells still holding a bomb */
+    private int ghostBombs = 0;
+
+    /** Indexes in the backing board of the cells dug and exploded by the current command */
+    private int[] dug = new int[16];
+    private int numberOfDug;
+    private int[] exploded = new int[4];
+    private int numberOfExploded;
+
+    /**
+     * Creates a tile of a board
+     * @param seed the seed of the layout of the whole board
+     * @param density probability for a cell to hold a bomb, requires 0 <= density <= 1
+     * @param globalRows Integer representing the number of rows of the whole board
+     * @param globalColumns Integer representing the number of columns of the whole board
+     * @param top Integer representing the row of the top left cell of the tile
+     * @param left Integer representing the column of the top left cell of the tile
+     * @param rows Integer representing the number of rows of the tile
+     * @param columns Integer representing the number of columns of the tile
+     * @throws IllegalArgumentException if the tile does not fit in the board, or if the tile and its
+     * ghost ring hold more than Integer.MAX_VALUE cells
+     */
+    public BoardTile(long seed, double density, int globalRows, int globalColumns,
+            int top, int left, int rows, int columns) {
+        if(rows <= 0 || columns <= 0 || top < 0 || left < 0
+                || (long) top + rows > globalRows || (long) left + columns > globalColumns)
+            throw new IllegalArgumentException("The tile does not fit in the board");
+        this.globalRows = globalRows;
+        this.globalColumns = globalColumns;
+        this.top = top;
+        this.left = left;
+        this.rows = rows;
+        this.columns = columns;
+
+        if(((long) rows + 2) * ((long) columns + 2) > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("A tile and its ghost ring hold at most " + Integer.MAX_VALUE + " cells");
+
+        board = Board.createFromLayout(new GridTopology(rows + 2, columns + 2), density, new BombLayout() {
+            public boolean hasBomb(int i, int j) {
+                int x = top + i - 1;
+                int y = left + j - 1;
+                boolean bomb = x >= 0 && x < globalRows && y >= 0 && y < globalColumns 
+                        && BoardTile.hasBomb(seed, density, x, y);
+                if(bomb && isGhost(i, j))
+                    ghostBombs++;
+                return bomb;
+            }
+        });
+        for(int i = 0; i < rows + 2; i++)
+            for(int j = 0; j < columns + 2; j++)
+                if(isGhost(i, j))
+                    board.SetStatusToFlagged(i, j);
+        ghostCells = 2 * (rows + columns) + 4;
+
+        board.addListener(new BoardListener() {
+            public void cellChanged(int index, byte before, byte after) {
+                if(!BoardCell.isStatusDug(before) && BoardCell.isStatusDug(after)) {
+                    if(numberOfDug == dug.length)
+                        dug = Arrays.copyOf(dug, 2 * numberOfDug);
+                    dug[numberOfDug++] = index;
+                }
+            }
+            public void exploded(int index) {
+                if(numberOfExploded == exploded.length)
+                    exploded = Arrays.copyOf(exploded, 2 * numberOfExploded);
+                exploded[numberOfExploded++] = index;
+            }
+            public void cellsReplaced() {
+            }
+        });
+    }
+
+    /**
+     * Creates a tile from the specification "SEED DENSITY ROWS COLUMNS TOP LEFT TILEROWS TILECOLUMNS",
+     * as given to a tile server by the system property minesweeper.tile
+     * @param specification the parameters of BoardTile(long, double, int, int, int, int, int, int)
+     * @return the tile
+     */
+    public static BoardTile fromSpecification(String specification) {
+        String[] parameters = specification.trim().split(" +");
+        if(parameters.length != 8)
+            throw new IllegalArgumentException("Invalid tile specification");
+        return new BoardTile(Long.parseLong(parameters[0]), Double.parseDouble(parameters[1]),
+                Integer.parseInt(parameters[2]), Integer.parseInt(parameters[3]),
+                Integer.parseInt(parameters[4]), Integer.parseInt(parameters[5]),
+                Integer.parseInt(parameters[6]), Integer.parseInt(parameters[7]));
+    }
+
+    /**
+     * Tells whether a cell of a seeded board holds a bomb, in O(1) and without any state
+     * @param seed the seed of the layout
+     * @param density probability for a cell to hold a bomb
+     * @param x Integer representing the row of the cell
+     * @param y Integer representing the column of the cell
+     * @return true with probability density, always the same for the same arguments
+     */
+    public static boolean hasBomb(long seed, double density, int x, int y) {
+        // SplitMix64 finalizer over the seed and the coordinates
+        long z = seed + ((long) x << 32 | (y & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53 < density;
+    }
+
+    private boolean isGhost(int i, int j) {
+        return i == 0 || j == 0 || i == rows + 1 || j == columns + 1;
+    }
+
+    /**
+     * @return the board backing the tile, ghost ring included
+     */
+    Board getBoard() {
+        return board;
+    }
+
+    /**
+     * Handles a command of PartitionRouter:
+     * "tile-dig X Y", "tile-fill X Y (X Y)*", "tile-unbomb X Y", "tile-flag X Y", "tile-deflag X Y",
+     * "tile-look" or "tile-status", X and Y being the global row and column of a cell
+     * @param input the command
+     * @return the answer of the command, see the methods below
+     */
+    public String handle(String input) {
+        String[] command = input.split(" ");
+        if(command[0].equals("tile-look"))
+            return look();
+        if(command[0].equals("tile-status"))
+            return status();
+        if(command[0].equals("tile-fill") && command.length % 2 == 1) {
+            int[] coordinates = new int[command.length - 1];
+            for(int c = 0; c < coordinates.length; c++)
+                coordinates[c] = Integer.parseInt(command[c + 1]);
+            return fill(coordinates);
+        }
+        if(command.length != 3)
+            return "invalid";
+        int x = Integer.parseInt(command[1]);
+        int y = Integer.parseInt(command[2]);
+        if(command[0].equals("tile-dig"))
+            return dig(x, y);
+        else if(command[0].equals("tile-unbomb"))
+            return unbomb(x, y);
+        else if(command[0].equals("tile-flag"))
+            return flag(x, y);
+        else if(command[0].equals("tile-deflag"))
+            return deflag(x, y);
+        return "invalid";
+    }
+
+    private boolean contains(int x, int y) {
+        return x >= top && x < top + rows && y >= left && y < left + columns;
+    }
+
+    /**
+     * Digs a cell of the tile
+     * @return "boom N", "ok N" or "invalid", N being the number of cells of the tile dug,
+     * followed by the requests to forward (see requests)
+     */
+    public String dig(int x, int y) {
+        synchronized(board) {
+            if(!contains(x, y))
+                return "invalid";
+            numberOfDug = 0;
+            numberOfExploded = 0;
+            String result = board.digCell(x - top + 1, y - left + 1).equals(MinesweeperServer.BOOM_MSG) ? "boom" : "ok";
+            return result + " " + numberOfDug + requests();
+        }
+    }
+
+    /**
+     * Continues flood fills that reached ghost copies of cells of the tile, digging every cell
+     * and flood filling from it if it is still untouched
+     * @param coordinates the row of every cell followed by its column
+     * @return "ok N" or "invalid", N being the number of cells of the tile dug,
+     * followed by the requests to forward (see requests)
+     */
+    public String fill(int[] coordinates) {
+        synchronized(board) {
+            for(int c = 0; c < coordinates.length; c += 2)
+                if(!contains(coordinates[c], coordinates[c + 1]))
+                    return "invalid";
+            numberOfDug = 0;
+            numberOfExploded = 0;
+            // a flood fill only reaches cells next to a cell without adjacent bomb, which hold no bomb
+            for(int c = 0; c < coordinates.length; c += 2)
+                board.digCell(coordinates[c] - top + 1, coordinates[c + 1] - left + 1);
+            return "ok " + numberOfDug + requests();
+        }
+    }
+
+    /**
+     * Removes the bomb of a ghost cell whose owner dug it, the neighboring cells of the tile
+     * losing an adjacent bomb
+     * @return "ok" or "invalid"
+     */
+    public String unbomb(int x, int y) {
+        synchronized(board) {
+            int i = x - top + 1;
+            int j = y - left + 1;
+            if(i < 0 || j < 0 || i > rows + 1 || j > columns + 1 || !isGhost(i, j))
+                return "invalid";
+            if(board.clearBomb(i, j))
+                ghostBombs--;
+            return "ok";
+        }
+    }
+
+    /**
+     * Flags a cell of the tile
+     * @return "ok 1" if the cell got flagged, "ok 0" if it was not untouched, or "invalid"
+     */
+    public String flag(int x, int y) {
+        synchronized(board) {
+            if(!contains(x, y))
+                return "invalid";
+            boolean flagged = board.isStatusFlagged(x - top + 1, y - left + 1);
+            board.SetStatusToFlagged(x - top + 1, y - left + 1);
+            return !flagged && board.isStatusFlagged(x - top + 1, y - left + 1) ? "ok 1" : "ok 0";
+        }
+    }
+
+    /**
+     * Removes the flag of a cell of the tile
+     * @return "ok 1" if the cell was flagged, "ok 0" otherwise, or "invalid"
+     */
+    public String deflag(int x, int y) {
+        synchronized(board) {
+            if(!contains(x, y))
+                return "invalid";
+            boolean flagged = board.isStatusFlagged(x - top + 1, y - left + 1);
+            board.unflag(x - top + 1, y - left + 1);
+            return flagged ? "ok 1" : "ok 0";
+        }
+    }
+
+    /**
+     * Renders the cells of the tile without its ghost ring
+     * @return the rows of the tile separated by "\r\n", cells separated by a space
+     */
+    public String look() {
+        BoardSnapshot snapshot = board.snapshot();
+        try {
+            StringBuilder rendered = new StringBuilder(rows * (2 * columns + 2));
+            for(int i = 1; i <= rows; i++) {
+                if(i > 1)
+                    rendered.append("\r\n");
+                rendered.append(BoardCell.toChar(snapshot.get(i, 1)));
+                for(int j = 2; j <= columns; j++)
+                    rendered.append(' ').append(BoardCell.toChar(snapshot.get(i, j)));
+            }
+            return rendered.toString();
+        }
+        finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * Counts the cells of the tile without its ghost ring
+     * @return "SAFE FLAGS BOMBS EXPLOSIONS": the number of safe cells that are not dug,
+     * of flags, of bombs and of digs that hit a bomb
+     */
+    public String status() {
+        synchronized(board) {
+            int flags = board.getFlagCount();
+            int bombs = board.getMinesRemaining() + flags;
+            // ghost cells are flagged and never dug
+            return (board.getSafeCellsLeft() - (ghostCells - ghostBombs)) + " " + (flags - ghostCells)
+                    + " " + (bombs - ghostBombs) + " " + board.getExplosions();
+        }
+    }
+
+    /**
+     * Lists the requests the last command needs other tiles to handle:
+     * " F X Y" for every ghost cell next to a cell of the tile dug without adjacent bomb,
+     * where the flood fill continues, and " U X Y" for every cell whose bomb was removed by a
+     * BOOM next to the edge of the tile, whose ghost copies lose their bomb
+     */
+    private String requests() {
+        StringBuilder requests = new StringBuilder();
+        int boardColumns = columns + 2;
+        for(int e = 0; e < numberOfExploded; e++) {
+            int i = exploded[e] / boardColumns;
+            int j = exploded[e] % boardColumns;
+            if(i == 1 || j == 1 || i == rows || j == columns)
+                requests.append(" U ").append(top + i - 1).append(' ').append(left + j - 1);
+        }
+        for(int d = 0; d < numberOfDug; d++) {
+            int i = dug[d] / boardColumns;
+            int j = dug[d] % boardColumns;
+            if(isExploded(dug[d]) || board.getBombCount(i, j) != 0)
+                continue;
+            if(i != 1 && j != 1 && i != rows && j != columns)
+                continue;
+            for(int k = i - 1; k <= i + 1; k++)
+                for(int l = j - 1; l <= j + 1; l++) {
+                    int x = top + k - 1;
+                    int y = left + l - 1;
+                    if(isGhost(k, l) && x >= 0 && x < globalRows && y >= 0 && y < globalColumns)
+                        requests.append(" F ").append(x).append(' ').append(y);
+                }
+        }
+        return requests.toString();
+    }
+
+    private boolean isExploded(int index) {
+        for(int e = 0; e < numberOfExploded; e++)
+            if(exploded[e] == index)
+                return true;
+        return false;
+    }
+}
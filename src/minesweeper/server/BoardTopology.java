@@ -0,0 +1,35 @@
+package minesweeper.server;
+
+/**
+ * The shape of a board: its dimensions and which cells are adjacent to each other.
+ * A cell (x, y) lies on row x and column y, and is identified by the index
+ * x * columns() + y, cells being stored in row order.
+ * Implementations are immutable, hence thread safe, and final so that the neighbor
+ * iteration of the topology a server runs with is devirtualized and inlined by the JIT.
+ */
+public interface BoardTopology {
+
+    /**
+     * @return the number of rows of the board, at least 1
+     */
+    int rows();
+
+    /**
+     * @return the number of columns of the board, at least 1
+     */
+    int columns();
+
+    /**
+     * @return the largest number of neighbors a cell can have, at most 8
+     */
+    int maxNeighbors();
+
+    /**
+     * Writes the indices of the distinct neighbors of a cell without allocating anything
+     * @param x Integer representing the x coordinate of a cell within the board bounds
+     * @param y Integer representing the y coordinate of a cell within the board bounds
+     * @param neighbors array of length at least maxNeighbors() receiving the indices
+     * @return the number of neighbors written at the beginning of neighbors
+     */
+    int neighbors(int x, int y, int[] neighbors);
+}
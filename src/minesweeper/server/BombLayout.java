@@ -0,0 +1,15 @@
+package minesweeper.server;
+
+/**
+ * Tells which cells of a board hold a bomb without storing the layout, so that a board
+ * can be filled from it directly (see Board.createFromLayout).
+ */
+interface BombLayout {
+
+    /**
+     * @param x Integer representing the row of the cell
+     * @param y Integer representing the column of the cell
+     * @return true if the cell holds a bomb
+     */
+    boolean hasBomb(int x, int y);
+}
@@ -0,0 +1,297 @@
+package minesweeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The packed cells of a board in row order (see BoardCell), split into chunks so that
+ * readers take snapshots in O(number of chunks) and render them without holding the board lock.
+ * A snapshot shares the chunks that are current when it is taken; a writer copies a shared
+ * chunk the first time it modifies it while a snapshot is open (copy on write), so the
+ * chunks a snapshot refers to never change. Old chunk versions are not referenced by the
+ * store anymore and get garbage collected as soon as the last snapshot using them is released.
+ * The cells are either kept on the heap, or in a file mapped in memory by regions of
+ * REGION_SIZE cells, which keeps them out of the garbage collected heap and lets the operating
+ * system page in only the parts of the board being played. A mapped chunk is null in chunks
+ * and read and written in place in its region; it is only copied on the heap when a writer
+ * modifies it while a snapshot shares it, and written back to its region by the next write
+ * or force() once no snapshot is open anymore.
+ * Representation invariant: chunks holds ceil(size / CHUNK_SIZE) chunks of CHUNK_SIZE cells,
+ * which are all non null if regions is null and otherwise non null only for the chunks copied
+ * on the heap, and a chunk whose epoch is at most frozenEpoch may be shared with an open snapshot.
+ * Not thread safe: all methods but BoardSnapshot.release, awaitReleased and getOpenSnapshots
+ * must be called while holding the lock of the board owning the store; snapshots are immutable and may be read by any thread.
+ */
+final class CellStore {
+
+    static final int CHUNK_BITS = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    /** A mapped region holds 2^30 cells, as a mapping cannot exceed 2^31 - 1 bytes */
+    static final int REGION_BITS = 30;
+    static final int REGION_SIZE = 1 << REGION_BITS;
+    private static final int REGION_MASK = REGION_SIZE - 1;
+
+    private final int size;
+    private final byte[][] chunks;
+    /** The regions of the file holding the cells, or null if the cells are kept on the heap */
+    private final MappedByteBuffer[] regions;
+    /** The bytes of the file preceding the cells, or null if the cells are kept on the heap */
+    private final MappedByteBuffer header;
+    /** Epoch at which every chunk was allocated or last copied */
+    private final long[] chunkEpochs;
+    /** Incremented every time a snapshot is taken */
+    private long epoch = 1;
+    /** Epoch of the last snapshot: chunks of this epoch or older are shared with it */
+    private long frozenEpoch = 0;
+    /** Number of changes of cells since the creation of the store */
+    private long version = 0;
+    /** Number of snapshots taken and not released yet */
+    private final AtomicInteger openSnapshots = new AtomicInteger();
+    /** Notified when the last open snapshot is released */
+    private final Object released = new Object();
+
+    /**
+     * Creates a store of untouched cells without bombs
+     * @param size Integer representing the number of cells, requires > 0
+     */
+    CellStore(int size) {
+        this.size = size;
+        int numberOfChunks = (size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        chunks = new byte[numberOfChunks][CHUNK_SIZE];
+        regions = null;
+        header = null;
+        chunkEpochs = new long[numberOfChunks];
+        Arrays.fill(chunkEpochs, epoch);
+        checkRepresentationInvariant();
+    }
+
+    /**
+     * Creates a store of the cells kept in a file, which is extended with untouched cells
+     * without bombs if it is too short
+     * @param file the file holding the cells
+     * @param headerSize Integer representing the number of bytes of the file preceding the cells
+     * @param size Integer representing the number of cells, requires > 0
+     * @throws IOException if the file cannot be mapped
+     */
+    CellStore(File file, int headerSize, int size) throws IOException {
+        this.size = size;
+        int numberOfChunks = (size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        chunks = new byte[numberOfChunks][];
+        regions = new MappedByteBuffer[(size + REGION_SIZE - 1) >>> REGION_BITS];
+        // the mappings stay valid once the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if(raf.length() < headerSize + (long) size) 
+                raf.setLength(headerSize + (long) size);
+            FileChannel channel = raf.getChannel();
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize);
+            for(int r = 0; r < regions.length; r++) {
+                long start = (long) r << REGION_BITS;
+                regions[r] = channel.map(FileChannel.MapMode.READ_WRITE, headerSize + start, 
+                        Math.min(REGION_SIZE, size - start));
+            }
+        }
+        chunkEpochs = new long[numberOfChunks];
+        Arrays.fill(chunkEpochs, epoch);
+        checkRepresentationInvariant();
+    }
+
+    /**
+     * @return the number of cells in the store
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param index Integer representing the index of a cell, requires 0 <= index < size()
+     * @return the packed cell
+     */
+    byte get(int index) {
+        byte[] chunk = chunks[index >>> CHUNK_BITS];
+        if(chunk != null) 
+            return chunk[index & CHUNK_MASK];
+        return regions[index >>> REGION_BITS].get(index & REGION_MASK);
+    }
+
+    /**
+     * Replaces a cell, copying its chunk first if an open snapshot shares it
+     * @param index Integer representing the index of a cell, requires 0 <= index < size()
+     * @param cell the new packed cell
+     */
+    void set(int index, byte cell) {
+        byte[] chunk = writableChunk(index >>> CHUNK_BITS);
+        if(chunk != null) 
+            chunk[index & CHUNK_MASK] = cell;
+        else 
+            regions[index >>> REGION_BITS].put(index & REGION_MASK, cell);
+        version++;
+    }
+
+    /**
+     * Makes every chunk writable in place, so that several threads may then
+     * call setUnshared on distinct cells concurrently
+     */
+    void unshareAll() {
+        for(int c = 0; c < chunks.length; c++)
+            writableChunk(c);
+        version++;
+    }
+
+    /**
+     * Replaces a cell of a chunk that cannot be shared with a snapshot;
+     * requires unshareAll to be called after the last snapshot was taken
+     * @param index Integer representing the index of a cell, requires 0 <= index < size()
+     * @param cell the new packed cell
+     */
+    void setUnshared(int index, byte cell) {
+        byte[] chunk = chunks[index >>> CHUNK_BITS];
+        if(chunk != null) 
+            chunk[index & CHUNK_MASK] = cell;
+        else 
+            regions[index >>> REGION_BITS].put(index & REGION_MASK, cell);
+    }
+
+    /**
+     * @return the chunk to write, or null to write the region in place
+     */
+    private byte[] writableChunk(int c) {
+        if(openSnapshots.get() > 0) {
+            if(chunkEpochs[c] <= frozenEpoch) {
+                chunks[c] = chunks[c] != null ? chunks[c].clone() : copyOfRegion(c);
+                chunkEpochs[c] = epoch;
+            }
+        }
+        else if(regions != null && chunks[c] != null) 
+            writeBack(c);
+        return chunks[c];
+    }
+
+    /**
+     * @return a copy on the heap of a chunk kept in its region
+     */
+    private byte[] copyOfRegion(int c) {
+        byte[] copy = new byte[CHUNK_SIZE];
+        int start = c << CHUNK_BITS;
+        regions[start >>> REGION_BITS].get(start & REGION_MASK, copy, 0, Math.min(CHUNK_SIZE, size - start));
+        return copy;
+    }
+
+    /**
+     * Writes a chunk copied on the heap back to its region, which no snapshot may read anymore
+     */
+    private void writeBack(int c) {
+        int start = c << CHUNK_BITS;
+        regions[start >>> REGION_BITS].put(start & REGION_MASK, chunks[c], 0, Math.min(CHUNK_SIZE, size - start));
+        chunks[c] = null;
+    }
+
+    /**
+     * Replaces all the cells by the cells of another store of the same size in O(number of chunks),
+     * taking over its chunks, which the open snapshots of this store do not share
+     * @param other a store kept on the heap without open snapshots, which must not be used anymore
+     * @throws IllegalArgumentException if the stores differ in size
+     * @throws IllegalStateException if either store is kept in a file or other has open snapshots
+     */
+    void adopt(CellStore other) {
+        if(other.size != size)
+            throw new IllegalArgumentException("The stores differ in size");
+        if(regions != null || other.regions != null)
+            throw new IllegalStateException("The cells are kept in a file");
+        if(other.openSnapshots.get() > 0)
+            throw new IllegalStateException("The cells are shared with a snapshot");
+        System.arraycopy(other.chunks, 0, chunks, 0, chunks.length);
+        Arrays.fill(chunkEpochs, epoch);
+        version++;
+    }
+
+    /**
+     * @return the bytes of the file preceding the cells, or null if the cells are kept on the heap
+     */
+    ByteBuffer getHeader() {
+        return header;
+    }
+
+    /**
+     * Writes the cells of a store kept in a file and its header to the storage device,
+     * writing the chunks copied on the heap back to their regions
+     * @throws IllegalStateException if the cells are kept on the heap, or if a snapshot is open
+     * and may still read the regions (see awaitReleased)
+     */
+    void force() {
+        if(regions == null) 
+            throw new IllegalStateException("The cells are not kept in a file");
+        if(openSnapshots.get() > 0) 
+            throw new IllegalStateException("The cells are shared with a snapshot");
+        for(int c = 0; c < chunks.length; c++) 
+            if(chunks[c] != null) 
+                writeBack(c);
+        header.force();
+        for(MappedByteBuffer region : regions) 
+            region.force();
+    }
+
+    /**
+     * @return the number of changes of cells since the creation of the store
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Takes a consistent snapshot of all the cells in O(number of chunks)
+     * @param columns Integer representing the number of columns of the board
+     * @return a snapshot that must be released once read
+     */
+    BoardSnapshot snapshot(int columns) {
+        openSnapshots.incrementAndGet();
+        frozenEpoch = epoch++;
+        return new BoardSnapshot(this, chunks.clone(), regions, size / columns, columns, version);
+    }
+
+    /**
+     * Called once per snapshot when it is released
+     */
+    void release() {
+        if(openSnapshots.decrementAndGet() == 0) {
+            synchronized(released) {
+                released.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until no snapshot is open, without holding the lock of the board, which the
+     * snapshots may be taken again under as soon as this returns
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    void awaitReleased() throws InterruptedException {
+        synchronized(released) {
+            while(openSnapshots.get() > 0) 
+                released.wait();
+        }
+    }
+
+    /**
+     * @return the number of snapshots taken and not released yet
+     */
+    int getOpenSnapshots() {
+        return openSnapshots.get();
+    }
+
+    /**
+     * Checks the representation invariant
+     */
+    private void checkRepresentationInvariant() {
+        assert size > 0;
+        assert chunks.length == (size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        assert chunkEpochs.length == chunks.length;
+        assert regions == null || regions.length == (size + REGION_SIZE - 1) >>> REGION_BITS;
+    }
+}
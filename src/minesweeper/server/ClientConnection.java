@@ -0,0 +1,116 @@
+package minesweeper.server;
+
+import java.net.Socket;
+
+/**
+ * The admission state of a client connection: its rate limits, and the times the reaper
+ * of its AdmissionControl checks to evict it once idle or stuck writing to a slow consumer.
+ * Thread safe: the rate limits are only used by the thread of the connection, and the times
+ * and the eviction flag are volatile, written by that thread and read by the reaper.
+ */
+final class ClientConnection {
+
+    private final Socket socket;
+    /** Number of the connection, from 1 in the order of admission */
+    private final int id;
+    /** One token per command, null if commands are not limited */
+    private final TokenBucket commands;
+    /** One token per cell rendered or changed, null if cells are not limited */
+    private final TokenBucket cells;
+    /** System.nanoTime() of the last request read or answer written */
+    private volatile long lastActivity = System.nanoTime();
+    /** System.nanoTime() at which the pending write started, 0 if the connection is not writing */
+    private volatile long writingSince = 0;
+    /** True from the time a request is read until its answer is written */
+    private volatile boolean busy = false;
+    /** True once the reaper has closed the connection */
+    private volatile boolean evicted = false;
+
+    ClientConnection(Socket socket, int id, TokenBucket commands, TokenBucket cells) {
+        this.socket = socket;
+        this.id = id;
+        this.commands = commands;
+        this.cells = cells;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Called for every request read, before it is parsed, so that the connection is not idle
+     * until the request is answered
+     */
+    void beginCommand() {
+        busy = true;
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Called once a request needs no answer
+     */
+    void endCommand() {
+        busy = false;
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Called for every request read, before it is admitted
+     * @param expensive true if the command renders the board or may change many cells
+     * @return true if the command is admitted, false if it must be throttled
+     */
+    boolean admit(boolean expensive) {
+        lastActivity = System.nanoTime();
+        if(expensive && cells != null && !cells.hasTokens())
+            return false;
+        return commands == null || commands.tryTake(1);
+    }
+
+    /**
+     * Charges the cells an admitted command has rendered or changed
+     * @param count number of cells
+     */
+    void charge(long count) {
+        if(cells != null)
+            cells.charge(count);
+    }
+
+    /**
+     * Called before writing an answer, which may block while the client does not read
+     */
+    void beginWrite() {
+        writingSince = System.nanoTime();
+    }
+
+    /**
+     * Called once an answer has been written
+     */
+    void endWrite() {
+        writingSince = 0;
+        endCommand();
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    long getWritingSince() {
+        return writingSince;
+    }
+
+    boolean isBusy() {
+        return busy;
+    }
+
+    boolean isEvicted() {
+        return evicted;
+    }
+
+    void evict() {
+        evicted = true;
+    }
+}
@@ -0,0 +1,84 @@
+package minesweeper.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Measures the bytes on the wire and the CPU time of the thread encoding a look, for the text
+ * protocol and for every encoding of BoardEncoder, on boards in three states: untouched, opened
+ * by the first dig, and played by MOVES random digs and flags on top of it.
+ * Usage: CompressionBenchmark [SIZE...]
+ */
+public class CompressionBenchmark {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Encodes a snapshot repeatedly in a mode, -1 standing for the text protocol
+     */
+    private static void measure(BoardSnapshot snapshot, String name, int mode, int level, int iterations) {
+        BoardEncoder encoder = new BoardEncoder();
+        if(mode >= 0)
+            encoder.setMode(mode, level);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        long bytes = 0;
+        for(int round = 0; round < 2; round++) {
+            long start = THREADS.getCurrentThreadCpuTime();
+            for(int i = 0; i < iterations; i++) {
+                if(mode < 0)
+                    bytes = (snapshot.toString() + "\n").getBytes(StandardCharsets.US_ASCII).length;
+                else {
+                    buffer = encoder.encode(buffer, snapshot);
+                    bytes = buffer.position() + BinaryProtocol.varintSize(buffer.position());
+                }
+            }
+            // the first round warms up
+            if(round == 1)
+                System.out.printf("  %-10s %12d bytes %10.2f ms%n", name, bytes,
+                        (THREADS.getCurrentThreadCpuTime() - start) / 1e6 / iterations);
+        }
+        encoder.end();
+    }
+
+    private static void measure(Board board, String state) {
+        int cells = board.getTopology().rows() * board.getTopology().columns();
+        int iterations = Math.max(2, 20000000 / cells);
+        System.out.println(board.getTopology() + ", " + state + ": " + board.getStatus());
+        BoardSnapshot snapshot = board.snapshot();
+        measure(snapshot, "text", -1, 0, iterations);
+        measure(snapshot, "packed", BoardEncoder.PACKED, 0, iterations);
+        measure(snapshot, "rle", BoardEncoder.RUN_LENGTH, 0, iterations);
+        measure(snapshot, "deflate 1", BoardEncoder.DEFLATE, 1, iterations);
+        measure(snapshot, "deflate 6", BoardEncoder.DEFLATE, 6, iterations);
+        snapshot.release();
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 10000};
+        if(args.length > 0) {
+            sizes = new int[args.length];
+            for(int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        for(int size : sizes) {
+            Board board = new Board(new GridTopology(size, size), 0.15);
+            measure(board, "untouched");
+            board.digCell(size / 2, size / 2);
+            measure(board, "opened");
+            Random random = new Random(1);
+            int moves = size * size / 50;
+            for(int move = 0; move < moves; move++) {
+                int x = random.nextInt(size);
+                int y = random.nextInt(size);
+                if(move % 4 == 0)
+                    board.SetStatusToFlagged(x, y);
+                else
+                    board.digCell(x, y);
+            }
+            measure(board, "played " + moves + " moves");
+        }
+    }
+}
@@ -3,6 +3,8 @@ package minesweeper.server;
 import static org.junit.Assert.*; 
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 
@@ -165,4 +167,95 @@ public class ConcurrencyTest {
     }
     
 
+
+    /**
+     * checks that the commands of many connections applied by a pipeline
+     * are all applied exactly once
+     * @throws InterruptedException
+     */
+    @Test
+    public void pipelineAppliesEveryCommandTest() throws InterruptedException {
+        final Board b = new Board(new boolean[20][20]);
+        final BoardPipeline pipeline = new BoardPipeline(b, 8);
+        // an assertion failing in a connection thread would only end that thread
+        final AtomicInteger rendered = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] connections = new Thread[20];
+        for(int i = 0; i < connections.length; i++) {
+            final int row = i;
+            connections[i] = new Thread(new Runnable() {
+                public void run() {
+                    BoardCommand command = new BoardCommand();
+                    try {
+                        for(int j = 0; j < 20; j++) {
+                            command.set(BoardCommand.FLAG_RECT, row, j, 1, 1, null);
+                            pipeline.execute(command);
+                            if(command.render().equals("flagged 1 cells"))
+                                rendered.incrementAndGet();
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            connections[i].start();
+        }
+        for(Thread connection : connections) 
+            connection.join();
+        pipeline.close();
+        
+        assertNull(failure.get());
+        assertEquals(400, rendered.get());
+        assertEquals(400, b.getFlagCount());
+        assertTrue(b.countersMatchScan());
+    }
+    /**
+     * checks that the commands of a single connection are applied
+     * by the pipeline in order, with the same outcomes as without pipeline
+     * @throws InterruptedException
+     */
+    @Test
+    public void pipelineOrderTest() throws InterruptedException {
+        boolean[][] bombs = {{false, false, true}, {false, false, false}, {true, false, false}};
+        Board b = new Board(bombs);
+        Board reference = new Board(bombs);
+        BoardPipeline pipeline = new BoardPipeline(b, 2);
+        BoardCommand command = new BoardCommand();
+        int[][] moves = {{BoardCommand.FLAG, 0, 0}, {BoardCommand.DIG, 0, 0}, {BoardCommand.DEFLAG, 0, 0},
+                {BoardCommand.DIG, 0, 0}, {BoardCommand.DIG, 2, 0}, {BoardCommand.CHORD, 1, 1},
+                {BoardCommand.STATUS, 0, 0}, {BoardCommand.LOOK, 0, 0}};
+        for(int[] move : moves) {
+            command.set(move[0], move[1], move[2], 0, 0, null);
+            pipeline.execute(command);
+            String pipelined = command.render();
+            command.set(move[0], move[1], move[2], 0, 0, null);
+            command.applyTo(reference);
+            assertEquals(command.render(), pipelined);
+        }
+        pipeline.close();
+    }
+    /**
+     * checks that an exception thrown while applying a command reaches its connection
+     * and that the pipeline keeps applying the next commands
+     * @throws InterruptedException
+     */
+    @Test
+    public void pipelineFailureTest() throws InterruptedException {
+        Board b = new Board(new boolean[2][2]);
+        BoardPipeline pipeline = new BoardPipeline(b, 4);
+        BoardCommand command = new BoardCommand();
+        command.set(BoardCommand.DIG_LIST, 0, 0, 0, 0, new int[] {0});
+        pipeline.execute(command);
+        try {
+            command.render();
+            fail("expected the failure of the command");
+        }
+        catch (IllegalArgumentException e) {
+        }
+        command.set(BoardCommand.FLAG, 1, 1, 0, 0, null);
+        pipeline.execute(command);
+        assertEquals("- -\r\n- F\r\n", command.render());
+        pipeline.close();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,458 @@
+package minesweeper.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Records a game to an append-only log, which GameReplay reads back to rebuild the board at any time.
+ * The log starts with MAGIC, followed by frames of the binary protocol (see BinaryProtocol.writeFrame):
+ *
+ * KEYFRAME :== KEYFRAME_RECORD TIME CELLS STATE BLOCK+, TIME being 8 bytes of milliseconds since
+ * the epoch, CELLS 4 bytes holding the number of cells of the board and STATE the state of the
+ * board written by Board.writeStateHeader; every BLOCK frame is BLOCK_RECORD followed by a block
+ * of its cells encoded by BoardEncoder.encodeStateBlock
+ * COMMAND :== COMMAND_RECORD DELAY CLIENT OPCODE ARGUMENT* CHANGES (INDEX CELL)* EXPLOSIONS INDEX*,
+ * every field being a varint but the CELL bytes: DELAY is the number of milliseconds since the
+ * previous record, CLIENT the id of the connection (0 for none), OPCODE the opcode of the command
+ * in the binary protocol (OTHER for the changes made outside of a command) followed by its
+ * ARGUMENT as in the binary protocol but in the row and column order of BoardCommand, and
+ * then come the packed cells the command changed, in the order it changed them, and the
+ * indexes of the cells whose dig exploded.
+ *
+ * The first keyframe holds the initial layout of the bombs; another one follows every
+ * keyframeInterval commands, and whenever all the cells are replaced (lazily placed mines,
+ * new game), so that a seek only replays the commands since the last keyframe.
+ * Commands are recorded by BoardCommand.applyTo, which calls begin and end while holding the
+ * board lock, so that the changes the listener is told about in between belong to the command.
+ * Records are only queued while holding the board lock, a keyframe as a snapshot of the board
+ * taken in O(rows * columns / CHUNK_SIZE), and written by a daemon writer thread which encodes
+ * the keyframes, flushing the log whenever it has nothing left to write. A periodic keyframe is
+ * skipped while another one is still queued, and the clients wait for the writer once
+ * MAX_QUEUED bytes of commands are queued. A failure to write stops the recording.
+ * Thread safe: begin, end and the listener are called while holding the lock of the board, the
+ * queue is guarded by the lock of the recorder, always taken after the board lock, and the
+ * log is only written by the writer thread.
+ */
+final class GameRecorder implements BoardListener {
+
+    /** First bytes of a log, "MSWR" */
+    static final int MAGIC = 0x4D535752;
+    static final byte KEYFRAME_RECORD = 0;
+    static final byte COMMAND_RECORD = 1;
+    static final byte BLOCK_RECORD = 2;
+    /** Opcode of the changes made outside of a recorded command */
+    static final int OTHER = 127;
+
+    /** Bytes of commands the writer may lag behind before the clients wait for it */
+    private static final int MAX_QUEUED = 1 << 26;
+
+    /** A keyframe to be written: the state of the board and a snapshot of its cells */
+    private static final class Keyframe {
+        final long time;
+        final byte[] state;
+        final BoardSnapshot snapshot;
+
+        Keyframe(long time, byte[] state, BoardSnapshot snapshot) {
+            this.time = time;
+            this.state = state;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private final Board board;
+    private final DataOutputStream out;
+    private final int keyframeInterval;
+    private final Thread writer;
+    private ByteBuffer record = ByteBuffer.allocate(256);
+    /** Time of the last record */
+    private long time;
+    /** Number of commands since the last keyframe */
+    private int commands = 0;
+    private boolean inCommand = false;
+    private int client;
+    private int opcode;
+    private int x;
+    private int y;
+    private int height;
+    private int width;
+    private int[] coordinates;
+    private int numberOfChanges = 0;
+    private int[] changedIndexes = new int[64];
+    private byte[] changedCells = new byte[64];
+    private int numberOfExplosions = 0;
+    private int[] explosions = new int[4];
+    /** Keyframe of the board when all its cells were replaced during the current command, or null */
+    private Keyframe replaced;
+
+    /** Records to be written in order, byte[] of command frames or Keyframe, guarded by this */
+    private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+    /** Command frames following the last record of the queue, guarded by this */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    /** Bytes of the command frames taken from pending and not written yet, guarded by this */
+    private long queued = 0;
+    /** Number of keyframes of the queue, guarded by this */
+    private int queuedKeyframes = 0;
+    private boolean closing = false;
+    private IOException failure;
+
+    /**
+     * Creates a log, records the current state of a board as its first keyframe
+     * and starts recording the changes of the board
+     * @param board the board to record
+     * @param file the file of the log, replaced
+     * @param keyframeInterval Integer representing the number of commands between two keyframes, requires > 0
+     * @throws IOException if the file cannot be written
+     */
+    GameRecorder(Board board, File file, int keyframeInterval) throws IOException {
+        this.board = board;
+        this.keyframeInterval = keyframeInterval;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "game-recorder");
+        writer.setDaemon(true);
+        writer.start();
+        synchronized (board) {
+            queueKeyframe(keyframe());
+            board.addListener(this);
+        }
+    }
+
+    /**
+     * @return a keyframe of the board, requires holding the board lock
+     */
+    private Keyframe keyframe() {
+        time = Math.max(time, System.currentTimeMillis());
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        BoardSnapshot snapshot;
+        try {
+            snapshot = board.writeStateHeader(new DataOutputStream(state));
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return new Keyframe(time, state.toByteArray(), snapshot);
+    }
+
+    private synchronized void queueKeyframe(Keyframe keyframe) {
+        if(failure != null || closing) {
+            keyframe.snapshot.release();
+            return;
+        }
+        if(pending.size() > 0) {
+            queued += pending.size();
+            queue.add(pending.toByteArray());
+            pending.reset();
+        }
+        queue.add(keyframe);
+        queuedKeyframes++;
+        commands = 0;
+        notifyAll();
+    }
+
+    /**
+     * Starts recording a command, whose changes are told to the listener until end is called
+     * @param client Integer representing the id of the connection, 0 for none
+     * @param opcode the opcode of the command in the binary protocol
+     * @param x Integer representing the x coordinate of the cell, or of the top left cell of a rectangle
+     * @param y Integer representing the y coordinate of the cell, or of the top left cell of a rectangle
+     * @param height Integer representing the number of rows of a rectangle
+     * @param width Integer representing the number of columns of a rectangle
+     * @param coordinates the x coordinate of every cell to dig followed by its y coordinate, for DIG_LIST
+     */
+    void begin(int client, int opcode, int x, int y, int height, int width, int[] coordinates) {
+        this.client = client;
+        this.opcode = opcode;
+        this.x = x;
+        this.y = y;
+        this.height = height;
+        this.width = width;
+        this.coordinates = coordinates;
+        numberOfChanges = 0;
+        numberOfExplosions = 0;
+        replaced = null;
+        inCommand = true;
+    }
+
+    /**
+     * Queues the command started by begin, after the keyframe of the cells it replaced if any,
+     * and then a keyframe if keyframeInterval commands were queued since the last one
+     */
+    void end() {
+        inCommand = false;
+        if(replaced != null)
+            queueKeyframe(replaced);
+        replaced = null;
+        encodeCommand();
+        queueCommand();
+        if(++commands >= keyframeInterval && periodicKeyframeDue())
+            queueKeyframe(keyframe());
+    }
+
+    /**
+     * @return true if no keyframe is queued, a periodic keyframe being skipped while the writer lags behind
+     */
+    private synchronized boolean periodicKeyframeDue() {
+        return queuedKeyframes == 0;
+    }
+
+    private void encodeCommand() {
+        long now = System.currentTimeMillis();
+        int numberOfArguments = arguments(opcode);
+        record = BinaryProtocol.ensureCapacity(record, 32 + 5 * (coordinates != null ? coordinates.length : 0)
+                + 6 * numberOfChanges + 5 * numberOfExplosions);
+        record.put(COMMAND_RECORD);
+        // the clock may go back, the log keeps its records in order
+        BinaryProtocol.putVarint(record, (int) Math.min(Integer.MAX_VALUE, Math.max(0, now - time)));
+        time = Math.max(time, now);
+        BinaryProtocol.putVarint(record, client);
+        BinaryProtocol.putVarint(record, opcode);
+        if(numberOfArguments < 0) {
+            BinaryProtocol.putVarint(record, coordinates.length / 2);
+            for(int coordinate : coordinates)
+                BinaryProtocol.putVarint(record, Math.max(0, coordinate));
+        }
+        else if(numberOfArguments > 0) {
+            BinaryProtocol.putVarint(record, Math.max(0, x));
+            BinaryProtocol.putVarint(record, Math.max(0, y));
+            if(numberOfArguments == 4) {
+                BinaryProtocol.putVarint(record, Math.max(0, height));
+                BinaryProtocol.putVarint(record, Math.max(0, width));
+            }
+        }
+        BinaryProtocol.putVarint(record, numberOfChanges);
+        for(int i = 0; i < numberOfChanges; i++) {
+            BinaryProtocol.putVarint(record, changedIndexes[i]);
+            record.put(changedCells[i]);
+        }
+        BinaryProtocol.putVarint(record, numberOfExplosions);
+        for(int i = 0; i < numberOfExplosions; i++)
+            BinaryProtocol.putVarint(record, explosions[i]);
+    }
+
+    /**
+     * Queues the command encoded in record, waiting for the writer first if it lags behind
+     */
+    private synchronized void queueCommand() {
+        boolean interrupted = false;
+        while(queued + pending.size() > MAX_QUEUED && failure == null && !closing) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        if(failure != null || closing)
+            return;
+        try {
+            BinaryProtocol.writeFrame(pending, record);
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Writes the queued records until the recorder is closed and they are all written
+     */
+    private void write() {
+        BoardEncoder encoder = new BoardEncoder();
+        ByteBuffer frame = ByteBuffer.allocate(1 << 12);
+        try {
+            while(true) {
+                Object next;
+                synchronized(this) {
+                    while(queue.isEmpty() && pending.size() == 0 && !closing)
+                        wait();
+                    if(queue.isEmpty() && pending.size() == 0)
+                        break;
+                    if(queue.isEmpty()) {
+                        next = pending.toByteArray();
+                        queued += pending.size();
+                        pending.reset();
+                    }
+                    else
+                        next = queue.peek();
+                }
+                if(next instanceof byte[])
+                    out.write((byte[]) next);
+                else {
+                    Keyframe keyframe = (Keyframe) next;
+                    BoardSnapshot snapshot = keyframe.snapshot;
+                    int size = snapshot.getRows() * snapshot.getColumns();
+                    frame.clear();
+                    frame = BinaryProtocol.ensureCapacity(frame, 13 + keyframe.state.length);
+                    frame.put(KEYFRAME_RECORD).putLong(keyframe.time).putInt(size).put(keyframe.state);
+                    BinaryProtocol.writeFrame(out, frame);
+                    for(int first = 0; first < size; first += BoardEncoder.STATE_BLOCK) {
+                        frame.clear();
+                        frame.put(BLOCK_RECORD);
+                        frame = encoder.encodeStateBlock(frame, snapshot, first);
+                        BinaryProtocol.writeFrame(out, frame);
+                    }
+                }
+                boolean idle;
+                synchronized(this) {
+                    if(!queue.isEmpty() && queue.peek() == next) {
+                        queue.poll();
+                        if(next instanceof Keyframe) {
+                            queuedKeyframes--;
+                            ((Keyframe) next).snapshot.release();
+                        }
+                    }
+                    if(next instanceof byte[])
+                        queued -= ((byte[]) next).length;
+                    idle = queue.isEmpty() && pending.size() == 0;
+                    notifyAll();
+                }
+                if(idle)
+                    out.flush();
+            }
+            out.close();
+        }
+        catch (IOException e) {
+            synchronized(this) {
+                failure = e;
+                notifyAll();
+            }
+            e.printStackTrace();
+            try {
+                out.close();
+            }
+            catch (IOException closeFailure) {
+                // the failure to write is reported
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            encoder.end();
+            synchronized(this) {
+                for(Object left : queue)
+                    if(left instanceof Keyframe)
+                        ((Keyframe) left).snapshot.release();
+                queue.clear();
+            }
+        }
+    }
+
+    /**
+     * Bounds the length of a record, so that a corrupted length is rejected before it is allocated
+     * @param cells Integer representing the number of cells of the board of the last keyframe, 0 before the first one
+     * @return the length of the longest KEYFRAME, BLOCK or COMMAND record of a log of such a board
+     */
+    static int maxRecord(long cells) {
+        // the type, time and cells, then a state header whose topology takes at most 65535 bytes
+        long keyframe = 1 + 8 + 4 + 2 + 65535 + 8 + 1 + 4;
+        long block = 1 + BoardEncoder.MAX_STATE_BLOCK;
+        // the varints of a command and its coordinates, every cell being changed at most twice,
+        // and every explosion (one per dug cell, or up to 8 for a chord) changing its neighbors
+        long pairs = BoardCommand.MAX_DIG_LIST + 8;
+        long command = 64 + 10 * pairs + 6 * (2 * cells + 10 * pairs) + 5 * pairs;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(command, Math.max(keyframe, block)));
+    }
+
+    /**
+     * @param opcode the opcode of a recorded command
+     * @return its number of arguments, -1 for DIG_LIST
+     */
+    static int arguments(int opcode) {
+        switch(opcode) {
+        case BinaryProtocol.DIG:
+        case BinaryProtocol.FLAG:
+        case BinaryProtocol.DEFLAG:
+        case BinaryProtocol.CHORD:
+            return 2;
+        case BinaryProtocol.FLAG_RECT:
+        case BinaryProtocol.DEFLAG_RECT:
+        case BinaryProtocol.COUNT:
+            return 4;
+        case BinaryProtocol.DIG_LIST:
+            return -1;
+        default:
+            return 0;
+        }
+    }
+
+    public void cellChanged(int index, byte before, byte after) {
+        boolean outside = !inCommand;
+        if(outside)
+            begin(0, OTHER, 0, 0, 0, 0, null);
+        if(numberOfChanges == changedIndexes.length) {
+            changedIndexes = Arrays.copyOf(changedIndexes, 2 * numberOfChanges);
+            changedCells = Arrays.copyOf(changedCells, 2 * numberOfChanges);
+        }
+        changedIndexes[numberOfChanges] = index;
+        changedCells[numberOfChanges++] = after;
+        if(outside)
+            end();
+    }
+
+    public void exploded(int index) {
+        boolean outside = !inCommand;
+        if(outside)
+            begin(0, OTHER, 0, 0, 0, 0, null);
+        if(numberOfExplosions == explosions.length)
+            explosions = Arrays.copyOf(explosions, 2 * numberOfExplosions);
+        explosions[numberOfExplosions++] = index;
+        if(outside)
+            end();
+    }
+
+    public void cellsReplaced() {
+        if(!inCommand) {
+            queueKeyframe(keyframe());
+            return;
+        }
+        // the changes made so far are part of the replaced state, queued before the following ones
+        if(replaced != null)
+            replaced.snapshot.release();
+        replaced = keyframe();
+        numberOfChanges = 0;
+        numberOfExplosions = 0;
+    }
+
+    /**
+     * Stops recording, waits for the writer to write the queued records and closes the log
+     * @throws IOException if the log cannot be written, or could not be written before
+     */
+    void close() throws IOException {
+        synchronized (board) {
+            board.removeListener(this);
+        }
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while(writer.isAlive()) {
+            try {
+                writer.join();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        synchronized (this) {
+            if(failure != null)
+                throw failure;
+        }
+    }
+}
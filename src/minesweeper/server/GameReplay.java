@@ -0,0 +1,281 @@
+package minesweeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Rebuilds the boards of a game recorded by GameRecorder. Opening a log reads it once to index
+ * its keyframes, skipping their blocks of cells without decoding them; a seek to a time then
+ * reads the last keyframe at or before that time and applies the changes of the following
+ * commands up to that time, in O(commands since the keyframe). A keyframe whose blocks were
+ * not all written, by a server that died in the meantime, ends the log.
+ * Usage: GameReplay LOG [MILLISECONDS]
+ * lists the commands of the log, or prints the board as it was MILLISECONDS after the first keyframe.
+ * Thread safe: the index is immutable once the log is opened, and every seek reads the log
+ * through its own stream.
+ */
+public final class GameReplay {
+
+    private final File file;
+    /** Offset in the log of every keyframe, in the order of the log */
+    private final long[] offsets;
+    /** Time of every keyframe, non decreasing */
+    private final long[] times;
+    private final long commands;
+    private final long lastTime;
+
+    /**
+     * Opens a log and indexes its keyframes, reading the log once
+     * @param file the log written by a GameRecorder
+     * @throws IOException if the log cannot be read or is not a log
+     */
+    public GameReplay(File file) throws IOException {
+        this.file = file;
+        List<long[]> keyframes = new ArrayList<long[]>();
+        long count = 0;
+        long time = 0;
+        // the offset and time of the keyframe whose blocks are being read, and its cells left
+        long[] keyframe = null;
+        int missing = 0;
+        long cells = 0;
+        long length = file.length();
+        try (InputStream in = open(0)) {
+            ByteBuffer record = ByteBuffer.allocate(256);
+            for(long offset = 4; (record = next(in, record, cells, length - offset)) != null;
+                    offset += BinaryProtocol.varintSize(record.limit()) + record.limit()) {
+                byte type = record.get();
+                if(type == GameRecorder.KEYFRAME_RECORD && missing == 0) {
+                    keyframe = new long[] {offset, record.getLong()};
+                    missing = record.getInt();
+                    cells = missing;
+                }
+                else if(type == GameRecorder.BLOCK_RECORD && missing > 0) {
+                    missing -= BinaryProtocol.getVarint(record);
+                    if(missing < 0)
+                        throw new IOException("The blocks overflow the board");
+                    if(missing == 0) {
+                        keyframes.add(keyframe);
+                        time = keyframe[1];
+                    }
+                }
+                else if(type == GameRecorder.COMMAND_RECORD && !keyframes.isEmpty() && missing == 0) {
+                    time += BinaryProtocol.getVarint(record);
+                    count++;
+                }
+                else
+                    throw new IOException("Invalid record");
+            }
+        }
+        catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Invalid record", e);
+        }
+        if(keyframes.isEmpty())
+            throw new IOException("The log has no keyframe");
+        offsets = new long[keyframes.size()];
+        times = new long[keyframes.size()];
+        for(int i = 0; i < offsets.length; i++) {
+            offsets[i] = keyframes.get(i)[0];
+            times[i] = keyframes.get(i)[1];
+        }
+        commands = count;
+        lastTime = time;
+    }
+
+    /**
+     * @param offset Integer representing the offset in the log of a frame, or 0 for the start of the log
+     * @return a stream reading the log from offset, past its MAGIC if offset is 0
+     */
+    private InputStream open(long offset) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            if(offset == 0) {
+                if(new DataInputStream(in).readInt() != GameRecorder.MAGIC)
+                    throw new IOException("Not a game log");
+            }
+            else
+                in.getChannel().position(offset);
+            return new BufferedInputStream(in, 1 << 16);
+        }
+        catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next record of a log, the log of a server that died ending with a partial record
+     * @param cells Integer representing the number of cells of the board of the last keyframe read, 0 before
+     * @param available Integer representing the number of bytes of the log from the record on
+     * @return the buffer holding the record, or null at the end of the log
+     * @throws IOException if the log cannot be read, or if the length of the record is invalid
+     */
+    private static ByteBuffer next(InputStream in, ByteBuffer record, long cells, long available) throws IOException {
+        try {
+            return BinaryProtocol.readFrame(in, record, GameRecorder.maxRecord(cells), available);
+        }
+        catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Rebuilds the board as it was at a time
+     * @param time Integer representing milliseconds since the epoch, requires >= getFirstTime()
+     * @return the board after every record of the log up to time
+     * @throws IOException if the log cannot be read
+     */
+    public Board seek(long time) throws IOException {
+        return replay(time, null);
+    }
+
+    /**
+     * Rebuilds the board as it was at a time, optionally listing the commands replayed
+     * @param time Integer representing milliseconds since the epoch, requires >= getFirstTime()
+     * @param listing the stream the commands are listed to, from the start of the log, or null
+     * not to list them and start from the last keyframe at or before time
+     * @return the board after every record of the log up to time
+     * @throws IOException if the log cannot be read
+     */
+    private Board replay(long time, PrintStream listing) throws IOException {
+        if(time < times[0])
+            throw new IllegalArgumentException("The game was not recorded yet");
+        int keyframe = 0;
+        if(listing == null) {
+            // the last keyframe at or before time
+            int low = 0;
+            int high = times.length - 1;
+            while(low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if(times[middle] <= time)
+                    low = middle;
+                else
+                    high = middle - 1;
+            }
+            keyframe = low;
+        }
+        Board board = null;
+        // the board of the keyframe whose blocks are being read, and its cells read so far
+        Board incoming = null;
+        int received = 0;
+        byte[] block = new byte[BoardEncoder.STATE_BLOCK];
+        Inflater inflater = new Inflater(true);
+        long recordTime = 0;
+        long length = file.length();
+        long cells = 0;
+        try (InputStream in = open(offsets[keyframe])) {
+            ByteBuffer record = ByteBuffer.allocate(1 << 12);
+            for(long offset = offsets[keyframe]; (record = next(in, record, cells, length - offset)) != null;
+                    offset += BinaryProtocol.varintSize(record.limit()) + record.limit()) {
+                byte type = record.get();
+                if(type == GameRecorder.KEYFRAME_RECORD) {
+                    recordTime = record.getLong();
+                    if(recordTime > time)
+                        break;
+                    cells = record.getInt();
+                    incoming = Board.readStateHeader(new DataInputStream(new ByteArrayInputStream(record.array(),
+                            record.position(), record.remaining())));
+                    received = 0;
+                    continue;
+                }
+                if(type == GameRecorder.BLOCK_RECORD) {
+                    int count = BoardEncoder.decodeStateBlock(record, inflater, block);
+                    received += count;
+                    if(incoming.restoreCells(received - count, block, count)) {
+                        board = incoming;
+                        incoming = null;
+                    }
+                    continue;
+                }
+                recordTime += BinaryProtocol.getVarint(record);
+                if(recordTime > time)
+                    break;
+                int client = BinaryProtocol.getVarint(record);
+                int opcode = BinaryProtocol.getVarint(record);
+                int numberOfArguments = GameRecorder.arguments(opcode);
+                if(numberOfArguments < 0)
+                    numberOfArguments = 2 * BinaryProtocol.getVarint(record);
+                StringBuilder command = listing == null ? null : new StringBuilder();
+                for(int i = 0; i < numberOfArguments; i++) {
+                    int argument = BinaryProtocol.getVarint(record);
+                    if(command != null)
+                        command.append(' ').append(argument);
+                }
+                int numberOfChanges = BinaryProtocol.getVarint(record);
+                for(int i = 0; i < numberOfChanges; i++)
+                    board.applyCell(BinaryProtocol.getVarint(record), record.get());
+                int numberOfExplosions = BinaryProtocol.getVarint(record);
+                for(int i = 0; i < numberOfExplosions; i++)
+                    board.applyExplosion(BinaryProtocol.getVarint(record));
+                if(listing != null)
+                    listing.println((recordTime - times[0]) + " ms: client " + client + " opcode " + opcode
+                            + command + ": " + numberOfChanges + " cells changed"
+                            + (numberOfExplosions > 0 ? ", " + numberOfExplosions + " explosions" : ""));
+            }
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | DataFormatException e) {
+            throw new IOException("Invalid record", e);
+        }
+        finally {
+            inflater.end();
+        }
+        return board;
+    }
+
+    /**
+     * @return the time of the first keyframe, at which the recording started, in milliseconds since the epoch
+     */
+    public long getFirstTime() {
+        return times[0];
+    }
+
+    /**
+     * @return the time of the last record, in milliseconds since the epoch
+     */
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * @return the number of commands recorded
+     */
+    public long getCommands() {
+        return commands;
+    }
+
+    /**
+     * @return the number of keyframes recorded
+     */
+    public int getKeyframes() {
+        return times.length;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 1 && args.length != 2) {
+            System.err.println("usage: GameReplay LOG [MILLISECONDS]");
+            return;
+        }
+        GameReplay replay = new GameReplay(new File(args[0]));
+        System.out.println(replay.getCommands() + " commands, " + replay.getKeyframes() + " keyframes, "
+                + (replay.getLastTime() - replay.getFirstTime()) + " ms");
+        if(args.length == 1)
+            replay.replay(Long.MAX_VALUE, System.out);
+        else {
+            Board board = replay.seek(replay.getFirstTime() + Long.parseLong(args[1]));
+            System.out.println(board.getStatus());
+            System.out.print(board);
+        }
+    }
+}
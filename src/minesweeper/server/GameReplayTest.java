@@ -0,0 +1,178 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class GameReplayTest {
+
+    /** Times after every command, and the boards and statuses they left */
+    private final List<Long> times = new ArrayList<Long>();
+    private final List<String> boards = new ArrayList<String>();
+
+    /**
+     * Applies a recorded command and remembers the board it left, the following record
+     * being written at least one millisecond later
+     */
+    private void apply(Board board, GameRecorder recorder, int client, int type, int x, int y,
+            int height, int width, int[] coordinates) throws InterruptedException {
+        BoardCommand command = new BoardCommand();
+        command.record(recorder, client);
+        command.set(type, x, y, height, width, coordinates);
+        command.applyTo(board);
+        remember(board);
+    }
+
+    private void remember(Board board) throws InterruptedException {
+        times.add(System.currentTimeMillis());
+        boards.add(board.getStatus() + "\r\n" + board);
+        Thread.sleep(2);
+    }
+
+    /**
+     * Checks that seeking to the time after every command rebuilds the board it left
+     */
+    private void checkSeeks(GameReplay replay) throws IOException {
+        for(int i = 0; i < times.size(); i++) {
+            Board board = replay.seek(times.get(i));
+            assertEquals("after record " + i, boards.get(i), board.getStatus() + "\r\n" + board);
+            assertTrue(board.countersMatchScan());
+        }
+    }
+
+    @Test
+    public void recordTest() throws IOException, InterruptedException {
+        File file = File.createTempFile("game", ".log");
+        file.deleteOnExit();
+        Board board = new Board(new boolean[][] {
+            {false, false, false, true},
+            {false, false, false, false},
+            {true, false, false, false}});
+        GameRecorder recorder = new GameRecorder(board, file, 2);
+        remember(board);
+        apply(board, recorder, 1, BoardCommand.FLAG, 0, 3, 0, 0, null);
+        apply(board, recorder, 2, BoardCommand.DIG, 0, 0, 0, 0, null);
+        apply(board, recorder, 1, BoardCommand.DEFLAG, 0, 3, 0, 0, null);
+        apply(board, recorder, 2, BoardCommand.FLAG_RECT, 2, 1, 1, 3, null);
+        apply(board, recorder, 1, BoardCommand.DIG_LIST, 0, 0, 0, 0, new int[] {2, 0, 0, 3});
+        apply(board, recorder, 2, BoardCommand.LOOK, 0, 0, 0, 0, null);
+        recorder.close();
+        assertEquals(2, board.getExplosions());
+
+        GameReplay replay = new GameReplay(file);
+        assertEquals(6, replay.getCommands());
+        // the first one, then one every two commands unless the writer still has one to write
+        assertTrue(replay.getKeyframes() >= 1 && replay.getKeyframes() <= 4);
+        assertTrue(replay.getFirstTime() <= times.get(0));
+        assertTrue(replay.getLastTime() <= times.get(times.size() - 1));
+        checkSeeks(replay);
+        assertEquals(2, replay.seek(Long.MAX_VALUE).getExplosions());
+        try {
+            replay.seek(replay.getFirstTime() - 1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void replacedCellsTest() throws IOException, InterruptedException {
+        File file = File.createTempFile("game", ".log");
+        file.deleteOnExit();
+        // the mines are placed by the first dig, replacing all the cells in the middle of the command
+        Board board = new Board(new GridTopology(30, 30), 0.2);
+        GameRecorder recorder = new GameRecorder(board, file, 100);
+        remember(board);
+        apply(board, recorder, 1, BoardCommand.DIG, 10, 10, 0, 0, null);
+        apply(board, recorder, 1, BoardCommand.FLAG, 0, 0, 0, 0, null);
+        // a new game outside of a command is a keyframe on its own
+        board.startNewGame(Board.createRandom(new GridTopology(30, 30), 0.2));
+        remember(board);
+        apply(board, recorder, 3, BoardCommand.DIG, 5, 5, 0, 0, null);
+        recorder.close();
+
+        GameReplay replay = new GameReplay(file);
+        assertEquals(3, replay.getCommands());
+        assertEquals(3, replay.getKeyframes());
+        checkSeeks(replay);
+    }
+
+    @Test
+    public void truncatedLogTest() throws IOException, InterruptedException {
+        File file = File.createTempFile("game", ".log");
+        file.deleteOnExit();
+        Board board = new Board(new boolean[3][3]);
+        GameRecorder recorder = new GameRecorder(board, file, 10);
+        remember(board);
+        apply(board, recorder, 1, BoardCommand.FLAG, 1, 1, 0, 0, null);
+        apply(board, recorder, 1, BoardCommand.FLAG, 2, 2, 0, 0, null);
+        recorder.close();
+        // a server dying in the middle of a write leaves part of its last record
+        RandomAccessFile log = new RandomAccessFile(file, "rw");
+        log.setLength(log.length() - 1);
+        log.close();
+
+        GameReplay replay = new GameReplay(file);
+        assertEquals(1, replay.getCommands());
+        assertEquals(boards.get(1), replay.seek(Long.MAX_VALUE).getStatus() + "\r\n" + replay.seek(Long.MAX_VALUE));
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidLengthTest() throws IOException, InterruptedException {
+        File file = File.createTempFile("game", ".log");
+        file.deleteOnExit();
+        Board board = new Board(new boolean[3][3]);
+        GameRecorder recorder = new GameRecorder(board, file, 10);
+        apply(board, recorder, 1, BoardCommand.FLAG, 1, 1, 0, 0, null);
+        recorder.close();
+        // a record longer than any record of a 3x3 board fails before it is read, a truncated log not
+        assertTrue(GameRecorder.maxRecord(9) < 1 << 28);
+        RandomAccessFile log = new RandomAccessFile(file, "rw");
+        log.seek(log.length());
+        log.write(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F, 0});
+        log.close();
+
+        new GameReplay(file);
+    }
+
+    @Test
+    public void largeKeyframeTest() throws IOException, InterruptedException {
+        File file = File.createTempFile("game", ".log");
+        file.deleteOnExit();
+        // more cells than a block of a keyframe holds
+        Board board = new Board(new GridTopology(1100, 1000), 0.2);
+        GameRecorder recorder = new GameRecorder(board, file, 100);
+        apply(board, recorder, 1, BoardCommand.DIG, 500, 500, 0, 0, null);
+        apply(board, recorder, 2, BoardCommand.FLAG, 0, 0, 0, 0, null);
+        recorder.close();
+        // the log takes less than a fourth of the two bytes per cell of its two keyframes
+        assertTrue(file.length() < 1100 * 1000 / 2);
+
+        GameReplay replay = new GameReplay(file);
+        assertEquals(2, replay.getCommands());
+        assertEquals(2, replay.getKeyframes());
+        checkSeeks(replay);
+
+        // a keyframe whose last block is missing ends the log
+        RandomAccessFile log = new RandomAccessFile(file, "rw");
+        long length = log.length();
+        log.setLength(length / 2);
+        log.close();
+        replay = new GameReplay(file);
+        assertEquals(1, replay.getKeyframes());
+        assertEquals(0, replay.getCommands());
+        assertTrue(replay.seek(Long.MAX_VALUE).countersMatchScan());
+    }
+
+    @Test(expected = IOException.class)
+    public void notALogTest() throws IOException {
+        File file = File.createTempFile("game", ".log");
+        file.deleteOnExit();
+        new GameReplay(file);
+    }
+}
@@ -0,0 +1,60 @@
+package minesweeper.server;
+
+/**
+ * The classic rectangular board where every cell has up to 8 neighbors
+ * and cells on the edges have fewer.
+ */
+public final class GridTopology implements BoardTopology {
+
+    private final int rows;
+    private final int columns;
+
+    /**
+     * @param rows Integer representing the number of rows, requires > 0
+     * @param columns Integer representing the number of columns, requires > 0
+     */
+    public GridTopology(int rows, int columns) {
+        if(rows <= 0 || columns <= 0)
+            throw new IllegalArgumentException("Illegal board dimensions");
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public int maxNeighbors() {
+        return 8;
+    }
+
+    public int neighbors(int x, int y, int[] neighbors) {
+        int index = x * columns + y;
+        if(x > 0 && x < rows - 1 && y > 0 && y < columns - 1) {
+            // inner cells, by far the most common ones, skip the bounds checks
+            neighbors[0] = index - columns - 1;
+            neighbors[1] = index - columns;
+            neighbors[2] = index - columns + 1;
+            neighbors[3] = index - 1;
+            neighbors[4] = index + 1;
+            neighbors[5] = index + columns - 1;
+            neighbors[6] = index + columns;
+            neighbors[7] = index + columns + 1;
+            return 8;
+        }
+        int number = 0;
+        for(int k = x-1; k <= x+1; k++)
+            for(int l = y-1; l <= y+1; l++)
+                if((k != x || l != y) && k >= 0 && k < rows && l >= 0 && l < columns)
+                    neighbors[number++] = k * columns + l;
+        return number;
+    }
+
+    public String toString() {
+        return "grid " + columns + "x" + rows;
+    }
+}
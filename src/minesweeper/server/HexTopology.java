@@ -0,0 +1,58 @@
+package minesweeper.server;
+
+/**
+ * A board of hexagonal cells with up to 6 neighbors, stored as rows where
+ * every odd row is shifted half a cell to the right: (x, y) touches
+ * (x, y-1) and (x, y+1) on its own row, and on the rows above and below
+ * (x-1, y-1), (x-1, y), (x+1, y-1) and (x+1, y) if x is even,
+ * (x-1, y), (x-1, y+1), (x+1, y) and (x+1, y+1) if x is odd.
+ */
+public final class HexTopology implements BoardTopology {
+
+    private final int rows;
+    private final int columns;
+
+    /**
+     * @param rows Integer representing the number of rows, requires > 0
+     * @param columns Integer representing the number of columns, requires > 0
+     */
+    public HexTopology(int rows, int columns) {
+        if(rows <= 0 || columns <= 0)
+            throw new IllegalArgumentException("Illegal board dimensions");
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public int maxNeighbors() {
+        return 6;
+    }
+
+    public int neighbors(int x, int y, int[] neighbors) {
+        int number = 0;
+        int shift = x % 2 == 0 ? -1 : 0;
+        if(y > 0)
+            neighbors[number++] = x * columns + y - 1;
+        if(y < columns - 1)
+            neighbors[number++] = x * columns + y + 1;
+        for(int k = x-1; k <= x+1; k += 2) {
+            if(k < 0 || k >= rows)
+                continue;
+            for(int l = y + shift; l <= y + shift + 1; l++)
+                if(l >= 0 && l < columns)
+                    neighbors[number++] = k * columns + l;
+        }
+        return number;
+    }
+
+    public String toString() {
+        return "hex " + columns + "x" + rows;
+    }
+}
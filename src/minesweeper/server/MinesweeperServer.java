@@ -1,58 +1,205 @@
 package minesweeper.server;
 
 import java.net.*; 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.io.*;
 
 /**
  * The server is thread safe because every time it is accessed by a thread, the thread needs to 
  * acquire a lock on the board object, which is itself thread-safe (see Board class)since it only
- * has atomic methods.
+ * has atomic methods. Boards are rendered from snapshots, outside of the board lock.
+ * In pipelined mode the connections do not lock the board at all: they hand their commands
+ * over to the single thread of a BoardPipeline, which applies them in a total order.
+ * A server following a replication leader only serves look, status and count until it is promoted.
+ * A server owning a tile of a partitioned board only serves the commands of PartitionRouter.
+ * Connections are admitted, rate limited and evicted by an AdmissionControl shared by their threads.
+ * New games take their board from a BoardPool, which keeps boards of the same profile ready.
+ * The commands of the connections may be recorded by a GameRecorder, to be replayed by GameReplay.
  *
  */
 public class MinesweeperServer {
     
-    private int numberOfConnectedClients;
     private final ServerSocket serverSocket;
     /** True if the server should _not_ disconnect a client after a BOOM message. */
     private final boolean debug;
     private final Board board;
+    /** Applies the commands of all the connections, null when they lock the board themselves */
+    private final BoardPipeline pipeline;
+    /** Keeps the board up to date with a leader, null once promoted or if the server leads */
+    private volatile ReplicationFollower follower;
+    /** The tile of a partitioned board the server owns, null if the server owns a whole board */
+    private final BoardTile tile;
+    /** Caps, rate limits and evicts the connections */
+    private final AdmissionControl admission;
+    /** Keeps the boards of the new games ready, null if the server owns a tile */
+    private final BoardPool pool;
+    /** How the boards of the new games are generated, as the first one (see BoardPool.generate) */
+    private final int generation;
+    /** Records the commands of the connections, null if the game is not recorded; set before serving */
+    private GameRecorder recorder;
 
     public static final String CLOSE_MSG = "Terminating connection";
     public static final String BOOM_MSG = "BOOM!";
+    private static final String NO_POOL_MSG = "this server keeps no boards ready";
     /**
      * Make a MinesweeperServer that listens for connections on port.
      * @param port port number, requires 0 <= port <= 65535.
      */
     public MinesweeperServer(int port, boolean debug, Board b) throws IOException {
+        this(port, debug, b, false);
+        }
+    /**
+     * Make a MinesweeperServer that listens for connections on port.
+     * @param port port number, requires 0 <= port <= 65535.
+     * @param pipelined true if the commands of all the connections should be applied
+     * by the single thread of a BoardPipeline instead of by the connection threads
+     */
+    public MinesweeperServer(int port, boolean debug, Board b, boolean pipelined) throws IOException {
+        this(port, debug, b, pipelined, null);
+        }
+    /**
+     * Make a MinesweeperServer that listens for connections on port.
+     * @param port port number, requires 0 <= port <= 65535.
+     * @param pipelined true if the commands of all the connections should be applied
+     * by the single thread of a BoardPipeline instead of by the connection threads
+     * @param follower if not null, keeps b up to date with a leader and the server only
+     * serves look, status and count until promoted
+     */
+    public MinesweeperServer(int port, boolean debug, Board b, boolean pipelined, ReplicationFollower follower) 
+            throws IOException {
+        this(port, debug, b, pipelined, follower, null, AdmissionControl.fromProperties(), BoardPool.fromProperties());
+        }
+    /**
+     * Make a MinesweeperServer owning a tile of a partitioned board, that listens
+     * for the connections of a PartitionRouter on port.
+     * @param port port number, requires 0 <= port <= 65535.
+     * @param tile the tile of the board owned by the server
+     */
+    public MinesweeperServer(int port, boolean debug, BoardTile tile) throws IOException {
+        this(port, debug, tile.getBoard(), false, null, tile, AdmissionControl.fromProperties(), null);
+        }
+    /**
+     * Make a MinesweeperServer that listens for connections on port.
+     * @param port port number, requires 0 <= port <= 65535.
+     * @param admission caps, rate limits and evicts the connections
+     */
+    public MinesweeperServer(int port, boolean debug, Board b, AdmissionControl admission) throws IOException {
+        this(port, debug, b, false, null, null, admission, BoardPool.fromProperties());
+        }
+    /**
+     * Make a MinesweeperServer that listens for connections on port.
+     * @param port port number, requires 0 <= port <= 65535.
+     * @param admission caps, rate limits and evicts the connections
+     * @param pool keeps the boards of the new games ready, starting with the profile of b
+     */
+    public MinesweeperServer(int port, boolean debug, Board b, AdmissionControl admission, BoardPool pool) 
+            throws IOException {
+        this(port, debug, b, false, null, null, admission, pool);
+        }
+    private MinesweeperServer(int port, boolean debug, Board b, boolean pipelined, ReplicationFollower follower, 
+            BoardTile tile, AdmissionControl admission, BoardPool pool) throws IOException {
+        this.tile = tile;
+        this.admission = admission;
+        this.pool = pool;
+        this.generation = BoardPool.generationFromProperties();
+        if(pool != null && !b.isMapped()) 
+            pool.prepare(b.getTopology(), b.getDensity(), generation);
         this.serverSocket = new ServerSocket(port);
         this.debug = debug;
-        this.numberOfConnectedClients=0;
         this.board=b;
+        this.pipeline = pipelined ? new BoardPipeline(b, 1024) : null;
+        this.follower = follower;
         }
     /**
-     * Displays the Board by calling the private methodBoard.toString()
-     * @return String representing the board
+     * Starts streaming the changes of the board to followers if the system property
+     * minesweeper.replication.port is set
+     * @throws IOException if the replication port cannot be listened on
+     */
+    private void lead() throws IOException {
+        String replicationPort = System.getProperty("minesweeper.replication.port");
+        if(replicationPort != null) 
+            new ReplicationLeader(board, Integer.parseInt(replicationPort)).start();
+    }
+    /**
+     * Starts recording the game to the file named by the system property minesweeper.record, with
+     * a keyframe every minesweeper.keyframes commands (10000 by default), if the property is set
+     * @throws IOException if the log cannot be written
+     */
+    private void record() throws IOException {
+        String log = System.getProperty("minesweeper.record");
+        if(log == null) 
+            return;
+        final GameRecorder started = new GameRecorder(board, new File(log), Integer.getInteger("minesweeper.keyframes", 10000));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    started.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        recorder = started;
+    }
+    /**
+     * Stops following the leader, so that the board accepts every command, and starts leading
+     * @return a string telling whether the server has been promoted
      */
-    private String displayBoard() {
-        synchronized(board) {
-            return board.toString();
+    private synchronized String promote() {
+        if(follower == null) 
+            return "not a follower";
+        try {
+            follower.stop();
+            follower = null;
+            lead();
+            return "promoted";
+        }
+        catch (IOException e) {
+            return "promoted, but cannot lead: " + e.getMessage();
         }
     }
     /**
-     * Displays the output of a DIG command
-     * @param x : Integer representing the x coordinate of the cell
-     * @param y : Integer representing the y coordinate of the cell
-     * @return a string representing the BOOM message or the board status
+     * Starts a new game on the board, with a board of the same topology, density and generation
+     * from the pool, applied as any other command; the board is rendered by the following look
+     * @param command the command of the connection
+     * @param connection the admission state of the connection, charged for every cell of the board
+     * @return a string telling the status of the new game, or why it has not started
      */
-    private String outputDigCell(int x, int y) {
-        synchronized(board) {
-            String output = board.digCell(x, y);
-            if(output.equals(BOOM_MSG)) 
-            	return BOOM_MSG;
-            else 
-            	return displayBoard();
-            
+    private String newGame(BoardCommand command, ClientConnection connection) {
+        if(pool == null) 
+            return "no new game: " + NO_POOL_MSG;
+        if(board.isMapped()) 
+            return "no new game: the board is not kept on the heap";
+        if(!connection.admit(true)) 
+        {
+            admission.throttled();
+            return AdmissionControl.THROTTLED_MSG;
         }
+        // a board missing from the pool is generated here rather than by the applier
+        command.setNewGame(pool.take(board.getTopology(), board.getDensity(), generation));
+        String outcome = execute(command);
+        connection.charge(command.getCells());
+        return outcome;
+    }
+    /**
+     * Applies a parsed command, on the pipeline if there is one and in the calling thread otherwise
+     * @param command the command of the connection, whose outcome is then rendered outside of the board lock
+     */
+    private void apply(BoardCommand command) {
+        if(pipeline != null) 
+            pipeline.execute(command);
+        else 
+            command.applyTo(board);
+    }
+    /**
+     * Applies a parsed command and renders its outcome outside of the board lock
+     * @param command the command of the connection
+     * @return a string representing the BOOM message, the command message or the board
+     */
+    private String execute(BoardCommand command) {
+        apply(command);
+        return command.render();
     }
     /**
      * Run the server, listening for client connections and handling them.  
@@ -61,36 +208,63 @@ public class MinesweeperServer {
      * (IOExceptions from individual clients do *not* terminate serve()).
      */
     public void serve() throws IOException {
-        while (true) {
-            // block until a client connects
-             addExtraThread(serverSocket.accept()).start();
+        try {
+            while (true) {
+                // block until a client connects
+                Socket socket = serverSocket.accept();
+                try {
+                    ClientConnection connection = admission.admit(socket);
+                    if (connection == null) 
+                    {
+                        // a short line fits in the empty send buffer of the new socket, so this does not block
+                        new PrintWriter(socket.getOutputStream(), true).println(AdmissionControl.FULL_MSG);
+                        socket.close();
+                    }
+                    else 
+                        addExtraThread(connection).start();
+                }
+                catch (IOException e) 
+                {
+                    // a client that resets its connection at once only loses that connection
+                    e.printStackTrace();
+                    socket.close();
+                }
+            }
+        }
+        finally {
+            admission.close();
         }
     }
-    private Thread addExtraThread(final Socket s) {
-    	synchronized(this)
-    	{
-    		numberOfConnectedClients++;
-    	}
+    /**
+     * Stops accepting connections, which makes serve() return by throwing, and stops evicting
+     * the connections; the connections already accepted are served until they close
+     * @throws IOException if the server socket cannot be closed
+     */
+    public void close() throws IOException {
+        serverSocket.close();
+        admission.close();
+    }
+    private Thread addExtraThread(final ClientConnection connection) {
+    	final Socket s = connection.getSocket();
     	return new Thread(new Runnable()  {
     	
     	public void run() {
         
     		try 
     	{
-            handleConnection(s);
+            handleConnection(s, connection);
         } 
     		catch (IOException e) 
     	{
-            e.printStackTrace(); 
+            // an evicted connection fails reading or writing its closed socket
+            if (!connection.isEvicted()) 
+                e.printStackTrace(); 
         } 
     		finally 
     	{
             try 
         { 
-            	synchronized(this) 
-            	{
-            	numberOfConnectedClients--;
-                }
+            	admission.release(connection);
 	            s.close();
         } 
             catch (IOException e) 
@@ -107,34 +281,48 @@ public class MinesweeperServer {
     /**
      * Handle a single client connection.  Returns when client disconnects.
      * @param socket socket where the client is connected
+     * @param connection the admission state of the connection
      * @throws IOException if connection has an error or terminates unexpectedly
      */
-    private void handleConnection(Socket socket) throws IOException {
+    private void handleConnection(Socket socket, ClientConnection connection) throws IOException {
+        // a large board leaves in several segments, the last of which must not wait for an ack
+        socket.setTcpNoDelay(true);
         BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         PrintWriter output = new PrintWriter(socket.getOutputStream(), true);
+        BoardCommand command = new BoardCommand();
+        if(recorder != null) 
+            command.record(recorder, connection.getId());
 
-        synchronized(this) 
-        {
-        output.println("Welcome to Minesweeper. " + "\""  +
-        numberOfConnectedClients + "\"" + " people are playing including you. Type \'help\' for help." 
-        );
-        }
+        send(output, "Welcome to Minesweeper. " + "\""  +
+        admission.getConnected() + "\"" + " people are playing including you. Type \'help\' for help.", 
+        connection);
 
         try {
             for (String readline = input.readLine(); readline!=null; readline=input.readLine()) {
-                String outcome = handleRequest(readline);
+                connection.beginCommand();
+                if (readline.equals(BinaryProtocol.HANDSHAKE) && tile == null) 
+                {
+                    // nothing follows the handshake until it is answered, so input has not buffered any frame
+                    send(output, BinaryProtocol.HANDSHAKE, connection);
+                    handleBinaryConnection(socket.getInputStream(), 
+                            new BufferedOutputStream(socket.getOutputStream()), command, connection);
+                    break;
+                }
+                String outcome = handleRequest(readline, command, connection);
                 
-                if(outcome != null) 
+                if(outcome == null) 
+                    connection.endCommand();
+                else 
                 {
                      if(outcome.equals(BOOM_MSG) && debug == false) 
                      {
-                        output.println(outcome);
+                        send(output, outcome, connection);
                         break;
                      }
                      else if(outcome.equals(CLOSE_MSG)) 
                             break;
                      else 
-                        output.println(outcome);
+                        send(output, outcome, connection);
                 }
             }
         } 
@@ -145,81 +333,334 @@ public class MinesweeperServer {
         }
     }
 
+    /**
+     * Writes a line to a client, which may block until the client reads or is evicted
+     * @param output output of the connection, flushed by println
+     * @param line the line to write
+     * @param connection the admission state of the connection
+     */
+    private static void send(PrintWriter output, String line, ClientConnection connection) {
+        connection.beginWrite();
+        output.println(line);
+        connection.endWrite();
+    }
+
+    /**
+     * Handle a client connection switched to the binary protocol.  Returns when client disconnects.
+     * @param in input of the connection, past the handshake
+     * @param out buffered output of the connection, past the handshake
+     * @param command the command of the connection
+     * @param connection the admission state of the connection
+     * @throws IOException if connection has an error or terminates unexpectedly
+     */
+    private void handleBinaryConnection(InputStream in, OutputStream out, BoardCommand command, 
+            ClientConnection connection) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(64);
+        ByteBuffer response = ByteBuffer.allocate(256);
+        BoardEncoder encoder = new BoardEncoder();
+        try {
+            while ((request = BinaryProtocol.readFrame(in, request, BinaryProtocol.MAX_REQUEST)) != null) {
+                connection.beginCommand();
+                response = handleBinaryRequest(request, response, command, encoder, connection);
+                if (response == null) 
+                    return;
+                connection.beginWrite();
+                BinaryProtocol.writeFrame(out, response);
+                out.flush();
+                connection.endWrite();
+                if (response.get(0) == BinaryProtocol.BOOM && debug == false) 
+                    return;
+            }
+        }
+        finally {
+            encoder.end();
+        }
+    }
+
+    /**
+     * handler for client requests of the binary protocol
+     * @param request buffer holding the request frame
+     * @param response buffer to reuse for the response
+     * @param command the command of the connection, filled and executed for board commands
+     * @param encoder the encoder of the boards of the connection
+     * @param connection the admission state of the connection
+     * @return a buffer holding the response up to its position, or null if the client said bye
+     */
+    private ByteBuffer handleBinaryRequest(ByteBuffer request, ByteBuffer response, BoardCommand command, 
+            BoardEncoder encoder, ClientConnection connection) {
+        try {
+            int opcode = request.get();
+            if (opcode == BinaryProtocol.BYE) 
+                return null;
+            else if (opcode == BinaryProtocol.COMPRESS) 
+            {
+                int mode = BinaryProtocol.getVarint(request);
+                int level = request.hasRemaining() ? BinaryProtocol.getVarint(request) : 1;
+                if (request.hasRemaining()) 
+                    return BinaryProtocol.encodeInvalid(response);
+                encoder.setMode(mode, level);
+                return BinaryProtocol.encodeMessage(response, "compression " + mode + " " + level);
+            }
+            else if (opcode == BinaryProtocol.PROMOTE) 
+                return BinaryProtocol.encodeMessage(response, promote());
+            else if (opcode == BinaryProtocol.CLIENTS) 
+                return BinaryProtocol.encodeMessage(response, admission.toString());
+            else if (opcode == BinaryProtocol.POOL) 
+                return BinaryProtocol.encodeMessage(response, pool == null ? NO_POOL_MSG : pool.toString());
+            else if (follower != null && opcode != BinaryProtocol.LOOK && opcode != BinaryProtocol.STATUS 
+                    && opcode != BinaryProtocol.COUNT) 
+                return BinaryProtocol.encodeMessage(response, "read only: this server follows a leader");
+            else if (opcode == BinaryProtocol.NEW_GAME) 
+                return BinaryProtocol.encodeMessage(response, newGame(command, connection));
+            
+            switch (opcode) {
+            case BinaryProtocol.DIG: 
+            case BinaryProtocol.FLAG: 
+            case BinaryProtocol.DEFLAG: 
+            case BinaryProtocol.CHORD: 
+            {
+                int column = BinaryProtocol.getVarint(request);
+                command.set(opcode, BinaryProtocol.getVarint(request), column, 0, 0, null);
+                break;
+            }
+            case BinaryProtocol.FLAG_RECT: 
+            case BinaryProtocol.DEFLAG_RECT: 
+            case BinaryProtocol.COUNT: 
+            {
+                int column = BinaryProtocol.getVarint(request);
+                int row = BinaryProtocol.getVarint(request);
+                int width = BinaryProtocol.getVarint(request);
+                command.set(opcode, row, column, BinaryProtocol.getVarint(request), width, null);
+                break;
+            }
+            case BinaryProtocol.DIG_LIST: 
+            {
+                int count = BinaryProtocol.getVarint(request);
+                // every pair takes at least 2 bytes
+                if (count == 0 || count > request.remaining() / 2) 
+                    return BinaryProtocol.encodeInvalid(response);
+                int[] coordinates = new int[2 * count];
+                for (int i = 0; i < coordinates.length; i += 2) 
+                {
+                    coordinates[i + 1] = BinaryProtocol.getVarint(request);
+                    coordinates[i] = BinaryProtocol.getVarint(request);
+                }
+                command.set(opcode, 0, 0, 0, 0, coordinates);
+                break;
+            }
+            case BinaryProtocol.LOOK: 
+            case BinaryProtocol.STATUS: 
+            case BinaryProtocol.DEFLAG_ALL: 
+                command.set(opcode, 0, 0, 0, 0, null);
+                break;
+            default: 
+                return BinaryProtocol.encodeInvalid(response);
+            }
+            if (request.hasRemaining()) 
+                return BinaryProtocol.encodeInvalid(response);
+        } 
+        catch (BufferUnderflowException | IllegalArgumentException e) 
+        {
+            return BinaryProtocol.encodeInvalid(response);
+        }
+        if (!connection.admit(command.isExpensive())) 
+        {
+            admission.throttled();
+            return BinaryProtocol.encodeMessage(response, AdmissionControl.THROTTLED_MSG);
+        }
+        apply(command);
+        connection.charge(command.getCells());
+        return command.renderBinary(response, encoder);
+    }
+
     /**
      * handler for client input 
      * @param String representing the input to be parsed
+     * @param command the command of the connection, filled and executed for board commands
+     * @param connection the admission state of the connection
      * @return String representing the board's status or Boom message or Close message
      */
-    private String handleRequest(String input) {
-        String validRegex = "(look)|(dig \\d+ \\d+)|(flag \\d+ \\d+)|" +"(deflag \\d+ \\d+)|(help)|(bye)";
+    private String handleRequest(String input, BoardCommand command, ClientConnection connection) {
+        if (tile != null) 
+        {
+            if (input.equals("bye")) 
+                return CLOSE_MSG;
+            else if (input.matches("tile-[a-z]+( -?\\d+ -?\\d+)*")) 
+                return tile.handle(input);
+            else 
+                return "tile server: commands are sent to the router";
+        }
+        String validRegex = "(look)|(dig \\d+ \\d+)|(flag \\d+ \\d+)|" +"(deflag \\d+ \\d+)|(chord \\d+ \\d+)|" +
+            "(flag-rect \\d+ \\d+ \\d+ \\d+)|(deflag-rect \\d+ \\d+ \\d+ \\d+)|(deflag-all)|" +
+            "(count \\d+ \\d+ \\d+ \\d+)|" +
+            "(dig-list( \\d+ \\d+)+)|(status)|(promote)|(clients)|(new)|(pool)|(help)|(bye)";
         if(!input.matches(validRegex)) 
             return null;
         
         String[] inputArray = input.split(" ");
         if (inputArray[0].equals("bye")) 
             return CLOSE_MSG;   
-        else if (inputArray[0].equals("dig")) 
-            //return outputDigCell(Integer.parseInt(inputArray[1]), Integer.parseInt(inputArray[2]));  
-        	return outputDigCell(Integer.parseInt(inputArray[2]), Integer.parseInt(inputArray[1]));
         else if (inputArray[0].equals("help")) 
-           return  "The following commands are available : look, dig, flag, deflag, help, bye"; 
+           return  "The following commands are available : look, dig, flag, deflag, chord, " + 
+                   "flag-rect, deflag-rect, deflag-all, dig-list, status, count, promote, clients, new, pool, help, bye, " + 
+                   "binary (switches to the binary protocol, see BinaryProtocol)"; 
+        else if (inputArray[0].equals("promote")) 
+            return promote();
+        else if (inputArray[0].equals("clients")) 
+            return admission.toString();
+        else if (inputArray[0].equals("pool")) 
+            return pool == null ? NO_POOL_MSG : pool.toString();
+        else if (follower != null && !inputArray[0].equals("look") && !inputArray[0].equals("status") 
+                && !inputArray[0].equals("count")) 
+            return "read only: this server follows a leader";
+        else if (inputArray[0].equals("new")) 
+            return newGame(command, connection);
+        else if (inputArray[0].equals("dig")) 
+        	command.set(BoardCommand.DIG, Integer.parseInt(inputArray[2]), Integer.parseInt(inputArray[1]), 0, 0, null);
+        else if (inputArray[0].equals("chord")) 
+        	command.set(BoardCommand.CHORD, Integer.parseInt(inputArray[2]), Integer.parseInt(inputArray[1]), 0, 0, null);
+        else if (inputArray[0].equals("dig-list")) 
+        {
+            if (inputArray.length / 2 > BoardCommand.MAX_DIG_LIST) 
+                return null;
+            int[] coordinates = new int[inputArray.length - 1];
+            for (int i = 1; i < inputArray.length; i += 2) 
+            {
+                coordinates[i - 1] = Integer.parseInt(inputArray[i + 1]);
+                coordinates[i] = Integer.parseInt(inputArray[i]);
+            }
+            command.set(BoardCommand.DIG_LIST, 0, 0, 0, 0, coordinates);
+        }
+        else if (inputArray[0].equals("flag-rect")) 
+            command.set(BoardCommand.FLAG_RECT, Integer.parseInt(inputArray[2]), Integer.parseInt(inputArray[1]), 
+                    Integer.parseInt(inputArray[4]), Integer.parseInt(inputArray[3]), null);
+        else if (inputArray[0].equals("deflag-rect")) 
+            command.set(BoardCommand.DEFLAG_RECT, Integer.parseInt(inputArray[2]), Integer.parseInt(inputArray[1]), 
+                    Integer.parseInt(inputArray[4]), Integer.parseInt(inputArray[3]), null);
+        else if (inputArray[0].equals("deflag-all")) 
+            command.set(BoardCommand.DEFLAG_ALL, 0, 0, 0, 0, null);
+        else if (inputArray[0].equals("count")) 
+            command.set(BoardCommand.COUNT, Integer.parseInt(inputArray[2]), Integer.parseInt(inputArray[1]), 
+                    Integer.parseInt(inputArray[4]), Integer.parseInt(inputArray[3]), null);
+        else if (inputArray[0].equals("status")) 
+            command.set(BoardCommand.STATUS, 0, 0, 0, 0, null);
         else  if (inputArray[0].equals("look")) 
-                return displayBoard();                   
+            command.set(BoardCommand.LOOK, 0, 0, 0, 0, null);
         else if (inputArray[0].equals("flag")) 
-        {
-        	//board.SetStatusToFlagged(Integer.parseInt(inputArray[1]),Integer.parseInt(inputArray[2]));
-        	board.SetStatusToFlagged(Integer.parseInt(inputArray[2]),Integer.parseInt(inputArray[1]));
-            return displayBoard();
-        } 
+        	command.set(BoardCommand.FLAG, Integer.parseInt(inputArray[2]), Integer.parseInt(inputArray[1]), 0, 0, null);
         else if (inputArray[0].equals("deflag")) 
+        	command.set(BoardCommand.DEFLAG, Integer.parseInt(inputArray[2]), Integer.parseInt(inputArray[1]), 0, 0, null);
+        else 
+            throw new UnsupportedOperationException();
+        
+        if (!connection.admit(command.isExpensive())) 
         {
-            //board.unflag(Integer.parseInt(inputArray[1]),Integer.parseInt(inputArray[2]));
-        	board.unflag(Integer.parseInt(inputArray[2]),Integer.parseInt(inputArray[1]));
-            return displayBoard();
+            admission.throttled();
+            return AdmissionControl.THROTTLED_MSG;
         }
-       
-        throw new UnsupportedOperationException();
+        String outcome = execute(command);
+        connection.charge(command.getCells());
+        return outcome;
     }
     
 
     /**
      * Start a MinesweeperServer running on the default port (4444).
      * 
-     * Usage: MinesweeperServer [DEBUG [(-s SIZE | -f FILE)]]
+     * Usage: MinesweeperServer [DEBUG [(-s SIZE | -s WIDTHxHEIGHT | -f FILE)]]
      * 
      * The DEBUG argument should be either 'true' or 'false'. The server should disconnect a client
      * after a BOOM message if and only if the DEBUG flag is set to 'false'.
      * 
      * SIZE is an optional integer argument specifying that a random board of size SIZE*SIZE should
      * be generated. E.g. "MinesweeperServer false -s 15" starts the server initialized with a
-     * random board of size 15*15.
+     * random board of size 15*15. WIDTHxHEIGHT specifies a random rectangular board instead, e.g.
+     * "MinesweeperServer false -s 30x16" starts the server with a board of 30 columns and 16 rows.
      * 
      * FILE is an optional argument specifying a file pathname where a board has been stored. If
      * this argument is given, the stored board should be loaded as the starting board. E.g.
      * "MinesweeperServer false -f boardfile.txt" starts the server initialized with the board
-     * stored in boardfile.txt, however large it happens to be (but the board may be assumed to be
-     * square).
+     * stored in boardfile.txt, however large it happens to be (all its lines must have the same
+     * length, but the board does not have to be square).
      * 
      * The board file format, for use by the "-f" option, is specified by the following grammar:
      * 
-     * FILE :== LINE+
+     * FILE :== LINE+ | LAZY
      * LINE :== (VAL SPACE)* VAL NEWLINE
      * VAL :== 0 | 1
+     * LAZY :== "density" SPACE DENSITY SPACE SIZE (SPACE SIZE)? NEWLINE
      * SPACE :== " "
      * NEWLINE :== "\n" 
      * 
+     * A LAZY file only sets the probability DENSITY for a cell to hold a bomb and the size of the
+     * board, either SIZE*SIZE or WIDTH HEIGHT; its mines are placed on the first dig, away from the dug cell and its neighbors.
+     * 
      * If neither FILE nor SIZE is given, generate a random board of size 10x10. If no arguments are
      * specified, do the same and additionally assume DEBUG is 'false'. FILE and SIZE may not be
      * specified simultaneously, and if one is specified, DEBUG must also be specified.
      * 
      * The system property minesweeper.customport may be used to specify a listening port other than
      * the default (used by the autograder only).
+     * 
+     * The system property minesweeper.noguess may be set to 'true' so that random boards are
+     * generated solvable without guessing, always as grids; the center cell is then dug before the first client
+     * connects, so that every player starts from the same guaranteed safe opening.
+     * 
+     * The system property minesweeper.lazymines may be set to 'true' so that the mines of random
+     * boards are only placed on the first dig, which then never hits a bomb.
+     * 
+     * The system property minesweeper.topology may be set to 'grid' (the default), 'torus' or 'hex'
+     * to choose how the cells of random boards are adjacent to each other.
+     * 
+     * The system property minesweeper.pipeline may be set to 'true' so that the commands of all
+     * the clients are applied one after the other by a single thread instead of by the client
+     * threads contending for the board lock.
+     * 
+     * The system property minesweeper.replication.port may be set to a port on which follower
+     * servers can connect to receive every change of the board. The system property
+     * minesweeper.follow may be set to HOST:PORT so that the server copies the board of the leader
+     * listening there instead of creating its own, ignoring FILE and SIZE; it then only serves
+     * look, status and count until a client sends promote, typically once the leader has died.
+     * 
+     * The system property minesweeper.tile may be set to "SEED DENSITY ROWS COLUMNS TOP LEFT
+     * TILEROWS TILECOLUMNS" so that the server owns one tile of a partitioned board instead of a
+     * whole board, ignoring FILE and SIZE (see BoardTile and PartitionRouter).
+     * 
+     * The system properties minesweeper.maxclients, minesweeper.rate, minesweeper.burst,
+     * minesweeper.cellrate, minesweeper.cellburst, minesweeper.idletimeout, minesweeper.writetimeout
+     * and minesweeper.sendbuffer cap the number of clients, limit the rate of their commands and
+     * evict the idle and slow ones (see AdmissionControl.fromProperties); the clients command
+     * reports how many clients were rejected, throttled and evicted.
+     * 
+     * The new command starts a new random game on a board of the same topology, taken from a pool
+     * of boards generated in the background. The system properties minesweeper.pool,
+     * minesweeper.poolworkers and minesweeper.poolmaxload set how many boards are kept ready, how
+     * many low priority threads generate them and from which load they slow down (see
+     * BoardPool.fromProperties); by default no board is kept ready and the
+     * board of a new game is generated on demand. The pool command reports its hits and misses.
+     * 
+     * The system property minesweeper.record may be set to a file path so that every command of
+     * the clients is recorded in that file with the cells it changed, along with a keyframe of the
+     * whole board every minesweeper.keyframes commands, and replayed by GameReplay.
+     * 
+     * The count command answers how many cells of a rectangle are flagged, dug and untouched
+     * without scanning it (see Board.countRegion).
+     * 
+     * Besides the text protocol, clients may switch their connection to the binary protocol
+     * described in BinaryProtocol by sending the line "binary".
+     * 
+     * The system property minesweeper.mapped may be set to a file path so that the cells of the
+     * board are kept in that file mapped in memory rather than on the heap (see CellStore). The
+     * board of an existing file is resumed, ignoring FILE and SIZE; otherwise a random board of
+     * size SIZE whose mines are placed on the first dig is created in the file. The game is
+     * written to the file when the server exits.
      */
     public static void main(String[] args) {
         // We parse the command-line arguments for you. Do not change this method.
         boolean debug = false;
         File file = null;
         Integer size = 10; // Default size.
+        Integer height = 10;
         try {
             if (args.length != 0 && args.length != 1 && args.length != 3)
               throw new IllegalArgumentException();
@@ -235,11 +676,13 @@ public class MinesweeperServer {
             if (args.length == 3) {
                 if (args[1].equals("-s")) {
                     try {
-                        size = Integer.parseInt(args[2]);
+                        String[] dimensions = args[2].split("x", 2);
+                        size = Integer.parseInt(dimensions[0]);
+                        height = dimensions.length == 2 ? Integer.parseInt(dimensions[1]) : size;
                     } catch (NumberFormatException e) {
                         throw new IllegalArgumentException();
                     }
-                    if (size < 0)
+                    if (size < 0 || height < 0)
                         throw new IllegalArgumentException();
                 } else if (args[1].equals("-f")) {
                     file = new File(args[2]);
@@ -248,12 +691,13 @@ public class MinesweeperServer {
                         return;
                     }
                     size = null;
+                    height = null;
                 } else {
                     throw new IllegalArgumentException();
                 }
             }
         } catch (IllegalArgumentException e) {
-            System.err.println("usage: MinesweeperServer DEBUG [(-s SIZE | -f FILE)]");
+            System.err.println("usage: MinesweeperServer DEBUG [(-s SIZE | -s WIDTHxHEIGHT | -f FILE)]");
             return;
         }
         // Allow the autograder to change the port number programmatically.
@@ -266,7 +710,7 @@ public class MinesweeperServer {
         }
         try {
         	//System.out.print("trying");
-            runMinesweeperServer(debug, file, size, port);
+            runMinesweeperServer(debug, file, size, height, port);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -286,20 +730,116 @@ public class MinesweeperServer {
     public static void runMinesweeperServer(boolean debug, File file, Integer size, int port)
             throws IOException
     {
+        runMinesweeperServer(debug, file, size, size, port);
+    }
+
+    /**
+     * Start a MinesweeperServer running on the specified port, with either a random new board or a
+     * board loaded from a file. Either the file or the width and height arguments must be null, but not both.
+     * 
+     * @param debug The server should disconnect a client after a BOOM message if and only if this
+     *        argument is false.
+     * @param width If this argument is not null, start with a random board of width columns.
+     * @param height If this argument is not null, start with a random board of height rows.
+     * @param file If this argument is not null, start with a board loaded from the specified file,
+     *        according to the input file format defined in the JavaDoc for main().
+     * @param port The network port on which the server should listen.
+     */
+    public static void runMinesweeperServer(boolean debug, File file, Integer width, Integer height, int port)
+            throws IOException
+    {
         
-        if(file == null && size == null) 
+        if(file == null && (width == null || height == null)) 
             throw new IllegalArgumentException("Must pass a size or file");
         
+        String tileSpecification = System.getProperty("minesweeper.tile");
+        if(tileSpecification != null) 
+        {
+            new MinesweeperServer(port, debug, BoardTile.fromSpecification(tileSpecification)).serve();
+            return;
+        }
+        
         Board newBoard;
-        if(file != null) 
+        ReplicationFollower follower = null;
+        String leader = System.getProperty("minesweeper.follow");
+        String mappedProp = System.getProperty("minesweeper.mapped");
+        File mapped = mappedProp == null ? null : new File(mappedProp);
+        if(leader != null) 
+        {
+            // copy the board of the leader and keep it up to date
+            String[] address = leader.split(":", 2);
+            follower = new ReplicationFollower(address[0], Integer.parseInt(address[1]));
+            follower.start();
+            newBoard = follower.getBoard();
+        }
+        else if(mapped != null && mapped.length() > 0) 
+            newBoard = Board.openMapped(mapped); // resume the game stored in the file
+        else if(file != null) 
             newBoard  = new Board(file); // create the board based on the given file
-        else if (size != null && size > 0) 
-            newBoard = new Board(size); // create the board randomly
-        else
+        else if (width <= 0 || height <= 0) 
             throw new IllegalArgumentException("Illegal size input");
+        else if (mapped != null) 
+            newBoard = Board.createMapped(mapped, createTopology(width, height), BoardCell.BOMB_PROBABILITY);
+        else if (Boolean.getBoolean("minesweeper.noguess")) 
+        {
+            // create a board solvable without guessing from its center
+            newBoard = new NoGuessBoardGenerator().generate(height, width, height / 2, width / 2);
+            newBoard.digCell(height / 2, width / 2);
+        }
+        else if (Boolean.getBoolean("minesweeper.lazymines")) 
+            newBoard = new Board(createTopology(width, height), BoardCell.BOMB_PROBABILITY); // place the mines on the first dig
+        else 
+            newBoard = new Board(createTopology(width, height)); // create the board randomly
         
         
-        MinesweeperServer server = new MinesweeperServer(port, debug, newBoard);
+        MinesweeperServer server = new MinesweeperServer(port, debug, newBoard, Boolean.getBoolean("minesweeper.pipeline"), 
+                follower);
+        if(follower == null) 
+        {
+            server.lead();
+            server.record();
+        }
+        if(mapped != null && follower == null) 
+        {
+            final Board stored = newBoard;
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try {
+                        stored.flush();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
         server.serve();
     }
+
+    /**
+     * Creates the topology named by the system property minesweeper.topology
+     * @param width Integer representing the number of columns of the board
+     * @param height Integer representing the number of rows of the board
+     * @return the dimensions and adjacency of a random board
+     */
+    private static BoardTopology createTopology(int width, int height) {
+        return createTopology(System.getProperty("minesweeper.topology", "grid"), width, height);
+    }
+
+    /**
+     * Creates a topology given its name
+     * @param topology 'grid', 'torus' or 'hex'
+     * @param width Integer representing the number of columns of the board
+     * @param height Integer representing the number of rows of the board
+     * @return the dimensions and adjacency of a board
+     */
+    static BoardTopology createTopology(String topology, int width, int height) {
+        if (topology.equals("grid")) 
+            return new GridTopology(height, width);
+        else if (topology.equals("torus")) 
+            return new TorusTopology(height, width);
+        else if (topology.equals("hex")) 
+            return new HexTopology(height, width);
+        else 
+            throw new IllegalArgumentException("Unknown topology " + topology);
+    }
 }
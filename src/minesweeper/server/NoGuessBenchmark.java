@@ -0,0 +1,35 @@
+package minesweeper.server;
+
+/**
+ * Reports the average time NoGuessBoardGenerator takes to generate a board of every size,
+ * and how many of its boards were solvable rather than fallbacks.
+ * Usage: NoGuessBenchmark [DENSITY [SIZE...]]
+ */
+public class NoGuessBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        double density = args.length > 0 ? Double.parseDouble(args[0]) : BoardCell.BOMB_PROBABILITY;
+        int[] sizes = {10, 20, 30, 50, 100};
+        if(args.length > 1) {
+            sizes = new int[args.length - 1];
+            for(int i = 1; i < args.length; i++)
+                sizes[i - 1] = Integer.parseInt(args[i]);
+        }
+        NoGuessBoardGenerator generator = new NoGuessBoardGenerator(density, 5000,
+                Runtime.getRuntime().availableProcessors());
+        for(int s : sizes) {
+            int solved = 0;
+            long start = System.nanoTime();
+            for(int run = 0; run < RUNS; run++) {
+                boolean[][] layout = generator.generateLayout(s, s / 2, s / 2);
+                if(new BoardSolver(layout).solveFrom(s / 2, s / 2))
+                    solved++;
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(s + "x" + s + ": " + (elapsed / RUNS / 1000000) + " ms per board, "
+                    + solved + "/" + RUNS + " without fallback");
+        }
+    }
+}
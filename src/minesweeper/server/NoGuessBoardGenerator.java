@@ -0,0 +1,135 @@
+package minesweeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Generates boards that can be solved without guessing from a guaranteed safe first click.
+ * Candidate layouts are generated and solved in parallel, one worker per core;
+ * as soon as one worker finds a solvable layout the remaining workers are cancelled.
+ * If no solvable layout is found before the timeout, a random layout whose first click
+ * is still safe is returned instead.
+ * Thread safe: the generator has no mutable state and every worker owns its candidate.
+ */
+public class NoGuessBoardGenerator {
+
+    private final double density;
+    private final long timeoutMillis;
+    private final int numberOfWorkers;
+
+    /**
+     * Creates a generator using the default bomb probability, one worker per core
+     * and a timeout of 5 seconds
+     */
+    public NoGuessBoardGenerator() {
+        this(BoardCell.BOMB_PROBABILITY, 5000, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a generator
+     * @param density probability for a cell to hold a bomb, requires 0 <= density < 1
+     * @param timeoutMillis time after which the generator falls back to a random layout
+     * @param numberOfWorkers number of candidates generated and solved in parallel, requires > 0
+     */
+    public NoGuessBoardGenerator(double density, long timeoutMillis, int numberOfWorkers) {
+        if(density < 0 || density >= 1 || numberOfWorkers <= 0)
+            throw new IllegalArgumentException("Illegal generator parameters");
+        this.density = density;
+        this.timeoutMillis = timeoutMillis;
+        this.numberOfWorkers = numberOfWorkers;
+    }
+
+    /**
+     * Generates a board of size s*s that is solvable without guessing when first dug at (x, y)
+     * @param s Integer representing the size of the board
+     * @param x Integer representing the x coordinate of the first click
+     * @param y Integer representing the y coordinate of the first click
+     * @return a board whose cell (x, y) and its neighbors hold no bomb
+     */
+    public Board generate(int s, int x, int y) {
+        return generate(s, s, x, y);
+    }
+
+    /**
+     * Generates a rectangular board that is solvable without guessing when first dug at (x, y)
+     * @param rows Integer representing the number of rows of the board
+     * @param columns Integer representing the number of columns of the board
+     * @param x Integer representing the x coordinate of the first click
+     * @param y Integer representing the y coordinate of the first click
+     * @return a board whose cell (x, y) and its neighbors hold no bomb
+     */
+    public Board generate(int rows, int columns, int x, int y) {
+        return new Board(generateLayout(rows, columns, x, y));
+    }
+
+    /**
+     * Generates the bomb layout of a square board solvable without guessing from (x, y)
+     * @return 2D array where true marks a cell holding a bomb, falling back to
+     * a layout that is only first click safe if the timeout expires
+     */
+    boolean[][] generateLayout(int s, int x, int y) {
+        return generateLayout(s, s, x, y);
+    }
+
+    /**
+     * Generates the bomb layout of a rectangular board solvable without guessing from (x, y)
+     * @return 2D array where true marks a cell holding a bomb, falling back to
+     * a layout that is only first click safe if the timeout expires
+     */
+    boolean[][] generateLayout(final int rows, final int columns, final int x, final int y) {
+        if(rows <= 0 || columns <= 0 || x < 0 || x >= rows || y < 0 || y >= columns)
+            throw new IllegalArgumentException("Illegal size or first click");
+        List<Callable<boolean[][]>> workers = new ArrayList<Callable<boolean[][]>>();
+        for(int i = 0; i < numberOfWorkers; i++)
+            workers.add(new Callable<boolean[][]>() {
+                public boolean[][] call() throws InterruptedException {
+                    while(true) {
+                        if(Thread.currentThread().isInterrupted())
+                            throw new InterruptedException();
+                        boolean[][] candidate = randomLayout(rows, columns, x, y);
+                        if(new BoardSolver(candidate).solveFrom(x, y))
+                            return candidate;
+                    }
+                }
+            });
+
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfWorkers);
+        try {
+            // invokeAny cancels the remaining workers once one of them returns
+            return executor.invokeAny(workers, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            return randomLayout(rows, columns, x, y);
+        }
+        catch (ExecutionException e) {
+            return randomLayout(rows, columns, x, y);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return randomLayout(rows, columns, x, y);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Places bombs independently with probability density,
+     * keeping the first click and its neighbors free of bombs
+     */
+    private boolean[][] randomLayout(int rows, int columns, int x, int y) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean[][] layout = new boolean[rows][columns];
+        for(int i = 0; i < rows; i++)
+            for(int j = 0; j < columns; j++)
+                layout[i][j] = (Math.abs(i - x) > 1 || Math.abs(j - y) > 1) && random.nextDouble() < density;
+        return layout;
+    }
+}
@@ -0,0 +1,50 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class NoGuessBoardGeneratorTest {
+
+    @Test
+    public void solvableLayoutTest() {
+        boolean[][] bombs = {
+                {false, false, false},
+                {false, false, false},
+                {false, false, true}};
+        assertTrue(new BoardSolver(bombs).solveFrom(0, 0));
+    }
+
+    @Test
+    public void fiftyFiftyLayoutTest() {
+        // the two bottom cells can only be told apart by guessing
+        boolean[][] bombs = {
+                {false, false},
+                {false, false},
+                {true, false}};
+        assertFalse(new BoardSolver(bombs).solveFrom(0, 0));
+    }
+
+    @Test
+    public void bombFirstClickTest() {
+        boolean[][] bombs = {{true, false}, {false, false}};
+        assertFalse(new BoardSolver(bombs).solveFrom(0, 0));
+    }
+
+    @Test
+    public void generatedLayoutIsSolvableTest() {
+        NoGuessBoardGenerator generator = new NoGuessBoardGenerator(0.15, 10000, 2);
+        boolean[][] layout = generator.generateLayout(12, 6, 6);
+        for(int i = 5; i <= 7; i++)
+            for(int j = 5; j <= 7; j++)
+                assertFalse(layout[i][j]);
+        assertTrue(new BoardSolver(layout).solveFrom(6, 6));
+    }
+
+    @Test
+    public void timeoutFallbackIsFirstClickSafeTest() {
+        NoGuessBoardGenerator generator = new NoGuessBoardGenerator(0.9, 50, 2);
+        Board b = generator.generate(20, 0, 0);
+        assertEquals("no bomb", b.digCell(0, 0));
+    }
+}
@@ -0,0 +1,391 @@
+package minesweeper.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves a grid board partitioned into tiles owned by separate MinesweeperServer processes
+ * (see BoardTile), forwarding every command to the owner of its cell.
+ * Flood fills and BOOMs next to the edge of a tile are continued by a border propagation
+ * protocol: the answer of a tile lists the ghost cells the flood fill goes on with and the
+ * bombs removed next to its edge, the router forwards them to their owners, batching the
+ * fills of every owner, and repeats with their answers until no request is left.
+ * Digs, flags and deflags answer with the number of cells they changed, summed over the
+ * tiles, rather than with the board, which only look renders.
+ * The cells are numbered as in Board, x being the row and y the column; clients use the text
+ * protocol of MinesweeperServer, where X is the column and Y the row.
+ * Thread safe: commands are applied one at a time while holding the lock of the router,
+ * so that the tiles always see whole commands in a total order.
+ */
+public class PartitionRouter {
+
+    private final int rows;
+    private final int columns;
+    private final int tileRows;
+    private final int tileColumns;
+    private final int tilesDown;
+    private final int tilesAcross;
+    private final Tile[] tiles;
+    /** Number of cells dug by the tiles for the current command */
+    private long numberOfDug;
+
+    /**
+     * The connection to the owner of a tile
+     */
+    private static class Tile {
+        private final BufferedReader in;
+        private final PrintWriter out;
+        private final int rows;
+
+        Tile(String host, int port, int rows) throws IOException, InterruptedException {
+            Socket socket = null;
+            // the owner may still be starting
+            for(int attempt = 0; socket == null; attempt++) {
+                try {
+                    socket = new Socket(host, port);
+                }
+                catch (IOException e) {
+                    if(attempt == 400)
+                        throw e;
+                    Thread.sleep(50);
+                }
+            }
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.out = new PrintWriter(socket.getOutputStream(), true);
+            this.rows = rows;
+            in.readLine();
+        }
+
+        /**
+         * Sends a command and reads its answer, made of lines lines
+         */
+        String send(String command, int lines) throws IOException {
+            out.println(command);
+            StringBuilder answer = new StringBuilder(in.readLine());
+            for(int i = 1; i < lines; i++)
+                answer.append("\r\n").append(in.readLine());
+            return answer.toString();
+        }
+    }
+
+    /**
+     * Connects to the owners of the tiles of a board
+     * @param rows Integer representing the number of rows of the board
+     * @param columns Integer representing the number of columns of the board
+     * @param tileRows Integer representing the number of rows of every tile but the last ones
+     * @param tileColumns Integer representing the number of columns of every tile but the last ones
+     * @param host name of the host of the owners
+     * @param ports the port of the owner of every tile, tiles being in row order
+     */
+    public PartitionRouter(int rows, int columns, int tileRows, int tileColumns, String host, int[] ports)
+            throws IOException, InterruptedException {
+        this.rows = rows;
+        this.columns = columns;
+        this.tileRows = tileRows;
+        this.tileColumns = tileColumns;
+        tilesDown = (rows + tileRows - 1) / tileRows;
+        tilesAcross = (columns + tileColumns - 1) / tileColumns;
+        if(ports.length != tilesDown * tilesAcross)
+            throw new IllegalArgumentException("One port per tile is needed");
+        checkTileSize(tileRows, tileColumns);
+        tiles = new Tile[ports.length];
+        for(int t = 0; t < tiles.length; t++)
+            tiles[t] = new Tile(host, ports[t], Math.min(tileRows, rows - t / tilesAcross * tileRows));
+    }
+
+    /**
+     * Checks that a tile and its ghost ring can be held by a Board
+     * @throws IllegalArgumentException if they hold more than Integer.MAX_VALUE cells
+     */
+    static void checkTileSize(int tileRows, int tileColumns) {
+        if(tileRows <= 0 || tileColumns <= 0 || ((long) tileRows + 2) * ((long) tileColumns + 2) > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("A tile and its ghost ring hold at most " + Integer.MAX_VALUE + " cells");
+    }
+
+    /**
+     * @return the specification of tile t of a board, for the system property minesweeper.tile
+     */
+    static String tileSpecification(long seed, double density, int rows, int columns,
+            int tileRows, int tileColumns, int t) {
+        int tilesAcross = (columns + tileColumns - 1) / tileColumns;
+        int top = t / tilesAcross * tileRows;
+        int left = t % tilesAcross * tileColumns;
+        return seed + " " + density + " " + rows + " " + columns + " " + top + " " + left + " "
+                + Math.min(tileRows, rows - top) + " " + Math.min(tileColumns, columns - left);
+    }
+
+    /**
+     * Starts the owners of all the tiles of a board as MinesweeperServer processes on this host
+     * @param ports the port of the owner of every tile, tiles being in row order
+     * @return the started processes
+     */
+    public static Process[] startTiles(long seed, double density, int rows, int columns,
+            int tileRows, int tileColumns, int[] ports) throws IOException {
+        checkTileSize(tileRows, tileColumns);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process[] processes = new Process[ports.length];
+        for(int t = 0; t < ports.length; t++)
+            processes[t] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "-Dminesweeper.tile=" + tileSpecification(seed, density, rows, columns, tileRows, tileColumns, t),
+                    "-Dminesweeper.customport=" + ports[t],
+                    MinesweeperServer.class.getName(), "true").inheritIO().start();
+        return processes;
+    }
+
+    private Tile owner(int x, int y) {
+        return tiles[x / tileRows * tilesAcross + y / tileColumns];
+    }
+
+    private boolean isWithinBoardBounds(int x, int y) {
+        return x >= 0 && x < rows && y >= 0 && y < columns;
+    }
+
+    /**
+     * Forwards the requests listed in the answer of a tile, and those of the answers
+     * to these requests, until none is left, adding the cells they dug to numberOfDug
+     * @param answer the answer of a tile to a dig (see BoardTile.dig)
+     * @return the first word of the answer
+     */
+    private String propagate(String answer) throws IOException {
+        Map<Tile, StringBuilder> fills = new LinkedHashMap<Tile, StringBuilder>();
+        String result = collect(answer, fills);
+        while(!fills.isEmpty()) {
+            Map<Tile, StringBuilder> round = fills;
+            fills = new LinkedHashMap<Tile, StringBuilder>();
+            for(Map.Entry<Tile, StringBuilder> fill : round.entrySet())
+                collect(fill.getKey().send("tile-fill" + fill.getValue(), 1), fills);
+        }
+        return result;
+    }
+
+    /**
+     * Forwards the unbomb requests of an answer and adds its fill requests to fills
+     * @return the first word of the answer
+     */
+    private String collect(String answer, Map<Tile, StringBuilder> fills) throws IOException {
+        String[] words = answer.split(" ");
+        if(words.length < 2)
+            return words[0];
+        numberOfDug += Long.parseLong(words[1]);
+        for(int w = 2; w + 2 < words.length; w += 3) {
+            int x = Integer.parseInt(words[w + 1]);
+            int y = Integer.parseInt(words[w + 2]);
+            if(words[w].equals("F")) {
+                Tile tile = owner(x, y);
+                if(!fills.containsKey(tile))
+                    fills.put(tile, new StringBuilder());
+                fills.get(tile).append(' ').append(x).append(' ').append(y);
+            }
+            else {
+                // every other owner of a neighbor of the cell holds a ghost copy of it
+                Tile[] notified = new Tile[9];
+                int numberOfNotified = 0;
+                for(int k = x - 1; k <= x + 1; k++)
+                    for(int l = y - 1; l <= y + 1; l++) {
+                        if(!isWithinBoardBounds(k, l) || owner(k, l) == owner(x, y)
+                                || Arrays.asList(notified).contains(owner(k, l)))
+                            continue;
+                        notified[numberOfNotified++] = owner(k, l);
+                        owner(k, l).send("tile-unbomb " + x + " " + y, 1);
+                    }
+            }
+        }
+        return words[0];
+    }
+
+    /**
+     * Digs a cell, flood filling across the tiles
+     * @param x Integer representing the row of the cell
+     * @param y Integer representing the column of the cell
+     * @return BOOM_MSG if the cell held a bomb, "dug N cells" otherwise
+     */
+    public synchronized String dig(int x, int y) throws IOException {
+        numberOfDug = 0;
+        if(isWithinBoardBounds(x, y)
+                && propagate(owner(x, y).send("tile-dig " + x + " " + y, 1)).equals("boom"))
+            return MinesweeperServer.BOOM_MSG;
+        return "dug " + numberOfDug + " cells";
+    }
+
+    /**
+     * Flags a cell
+     * @param x Integer representing the row of the cell
+     * @param y Integer representing the column of the cell
+     * @return "flagged N cells", N being 1 if the cell was untouched and 0 otherwise
+     */
+    public synchronized String flag(int x, int y) throws IOException {
+        return "flagged " + changed(x, y, "tile-flag") + " cells";
+    }
+
+    /**
+     * Removes the flag of a cell
+     * @param x Integer representing the row of the cell
+     * @param y Integer representing the column of the cell
+     * @return "deflagged N cells", N being 1 if the cell was flagged and 0 otherwise
+     */
+    public synchronized String deflag(int x, int y) throws IOException {
+        return "deflagged " + changed(x, y, "tile-deflag") + " cells";
+    }
+
+    /**
+     * Sends a command about a single cell to its owner
+     * @return the number of cells the owner changed, 0 if the cell is outside of the board
+     */
+    private int changed(int x, int y, String command) throws IOException {
+        if(!isWithinBoardBounds(x, y))
+            return 0;
+        String[] answer = owner(x, y).send(command + " " + x + " " + y, 1).split(" ");
+        return answer.length == 2 ? Integer.parseInt(answer[1]) : 0;
+    }
+
+    /**
+     * Displays the whole board, rows separated by "\r\n" and cells by a space as Board.toString()
+     */
+    public synchronized String look() throws IOException {
+        StringBuilder board = new StringBuilder();
+        for(int down = 0; down < tilesDown; down++) {
+            String[][] lines = new String[tilesAcross][];
+            for(int across = 0; across < tilesAcross; across++) {
+                Tile tile = tiles[down * tilesAcross + across];
+                lines[across] = tile.send("tile-look", tile.rows).split("\r\n");
+            }
+            for(int i = 0; i < lines[0].length; i++) {
+                for(int across = 0; across < tilesAcross; across++) {
+                    if(across > 0)
+                        board.append(' ');
+                    board.append(lines[across][i]);
+                }
+                board.append("\r\n");
+            }
+        }
+        return board.toString();
+    }
+
+    /**
+     * Describes the state of the game as Board.getStatus(), summing the counters of the tiles
+     */
+    public synchronized String status() throws IOException {
+        long safeCellsLeft = 0, flags = 0, bombs = 0, explosions = 0;
+        for(Tile tile : tiles) {
+            String[] counters = tile.send("tile-status", 1).split(" ");
+            safeCellsLeft += Long.parseLong(counters[0]);
+            flags += Long.parseLong(counters[1]);
+            bombs += Long.parseLong(counters[2]);
+            explosions += Long.parseLong(counters[3]);
+        }
+        String state = safeCellsLeft == 0 ? "won" : explosions > 0 ? "lost" : "playing";
+        return state + ": " + (bombs - flags) + " mines remaining, " + safeCellsLeft +
+                " safe cells left, " + flags + " flags, " + explosions + " explosions";
+    }
+
+    /**
+     * handler for client input, in the text protocol of MinesweeperServer
+     * @return String representing the board, the status, the Boom message or the Close message,
+     * or null if the input is invalid
+     */
+    private String handleRequest(String input) throws IOException {
+        if(!input.matches("(look)|(dig \\d+ \\d+)|(flag \\d+ \\d+)|(deflag \\d+ \\d+)|(status)|(help)|(bye)"))
+            return null;
+        String[] inputArray = input.split(" ");
+        if(inputArray[0].equals("bye"))
+            return MinesweeperServer.CLOSE_MSG;
+        else if(inputArray[0].equals("help"))
+            return "The following commands are available : look, dig, flag, deflag, status, help, bye";
+        else if(inputArray[0].equals("look"))
+            return look();
+        else if(inputArray[0].equals("status"))
+            return status();
+        int x = Integer.parseInt(inputArray[2]);
+        int y = Integer.parseInt(inputArray[1]);
+        if(inputArray[0].equals("dig"))
+            return dig(x, y);
+        else if(inputArray[0].equals("flag"))
+            return flag(x, y);
+        else
+            return deflag(x, y);
+    }
+
+    /**
+     * Serves clients on port, disconnecting them after a BOOM message unless debug is true.
+     * Never returns unless an exception is thrown.
+     */
+    public void serve(int port, final boolean debug) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        while(true) {
+            final Socket socket = serverSocket.accept();
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                        PrintWriter output = new PrintWriter(socket.getOutputStream(), true);
+                        output.println("Welcome to Minesweeper. Type 'help' for help.");
+                        for(String line = input.readLine(); line != null; line = input.readLine()) {
+                            String outcome = handleRequest(line);
+                            if(outcome == null)
+                                continue;
+                            if(outcome.equals(MinesweeperServer.CLOSE_MSG))
+                                break;
+                            output.println(outcome);
+                            if(outcome.equals(MinesweeperServer.BOOM_MSG) && !debug)
+                                break;
+                        }
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    finally {
+                        try {
+                            socket.close();
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * Starts the owners of the tiles of a seeded board as processes on the ports following
+     * the port of the router, then serves the board on the default port (4444) or the port
+     * given by the system property minesweeper.customport.
+     * Usage: PartitionRouter DEBUG WIDTHxHEIGHT TILEWIDTHxTILEHEIGHT [SEED [DENSITY]]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length < 3 || args.length > 5) {
+            System.err.println("usage: PartitionRouter DEBUG WIDTHxHEIGHT TILEWIDTHxTILEHEIGHT [SEED [DENSITY]]");
+            return;
+        }
+        boolean debug = Boolean.parseBoolean(args[0]);
+        String[] size = args[1].split("x");
+        String[] tileSize = args[2].split("x");
+        int columns = Integer.parseInt(size[0]);
+        int rows = Integer.parseInt(size[1]);
+        int tileColumns = Integer.parseInt(tileSize[0]);
+        int tileRows = Integer.parseInt(tileSize[1]);
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+        double density = args.length > 4 ? Double.parseDouble(args[4]) : BoardCell.BOMB_PROBABILITY;
+        int port = Integer.parseInt(System.getProperty("minesweeper.customport", "4444"));
+
+        int[] ports = new int[((rows + tileRows - 1) / tileRows) * ((columns + tileColumns - 1) / tileColumns)];
+        for(int t = 0; t < ports.length; t++)
+            ports[t] = port + 1 + t;
+        final Process[] processes = startTiles(seed, density, rows, columns, tileRows, tileColumns, ports);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                for(Process process : processes)
+                    process.destroy();
+            }
+        }));
+        new PartitionRouter(rows, columns, tileRows, tileColumns, "localhost", ports).serve(port, debug);
+    }
+}
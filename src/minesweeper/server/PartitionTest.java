@@ -0,0 +1,132 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PartitionTest {
+
+    /**
+     * @return ports that are free right now
+     */
+    private static int[] freePorts(int number) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[number];
+        int[] ports = new int[number];
+        for(int i = 0; i < number; i++) {
+            sockets[i] = new ServerSocket(0);
+            ports[i] = sockets[i].getLocalPort();
+        }
+        for(ServerSocket socket : sockets)
+            socket.close();
+        return ports;
+    }
+
+    @Test
+    public void hasBombTest() {
+        int bombs = 0;
+        for(int x = 0; x < 200; x++)
+            for(int y = 0; y < 200; y++) {
+                assertEquals(BoardTile.hasBomb(42, 0.2, x, y), BoardTile.hasBomb(42, 0.2, x, y));
+                if(BoardTile.hasBomb(42, 0.2, x, y))
+                    bombs++;
+            }
+        assertTrue(bombs > 7000 && bombs < 9000);
+        assertFalse(BoardTile.hasBomb(42, 0, 3, 4));
+        assertTrue(BoardTile.hasBomb(42, 1, 3, 4));
+    }
+
+    /**
+     * checks tiles without processes: a flood fill stops at the ghost ring
+     * and asks the neighboring tile to go on
+     */
+    @Test
+    public void tileRequestsTest() {
+        BoardTile tile = new BoardTile(1, 0, 4, 8, 0, 0, 4, 4);
+        String answer = tile.dig(0, 0);
+        // no bomb: the 16 cells of the tile are dug
+        assertTrue(answer.startsWith("ok 16 F "));
+        assertTrue(answer.contains(" F 3 4"));
+        assertFalse(answer.contains(" U "));
+        assertEquals("0 0 0 0", tile.status());
+        assertEquals("invalid", tile.dig(0, 4));
+        assertEquals("ok 0", tile.flag(1, 1));
+    }
+
+    @Test
+    public void tileSizeTest() {
+        // the tile fits in an int, but not with its ghost ring
+        try {
+            new BoardTile(1, 0.2, 1 << 20, 1 << 20, 0, 0, 1 << 15, (1 << 16) - 2);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            PartitionRouter.checkTileSize(46340, 46340);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        PartitionRouter.checkTileSize(46338, 46338);
+        BoardTile tile = new BoardTile(5, 0.3, 40, 40, 10, 20, 10, 20);
+        assertEquals("ok 1", tile.flag(12, 25));
+        assertEquals("ok 0", tile.flag(12, 25));
+        assertEquals("ok 1", tile.deflag(12, 25));
+        assertEquals("ok 0", tile.deflag(12, 25));
+    }
+
+    /**
+     * checks that a board partitioned across 4 tile server processes plays
+     * exactly as a single process board with the same layout
+     */
+    @Test
+    public void partitionedMatchesSingleBoardTest() throws IOException, InterruptedException {
+        long seed = 7;
+        double density = 0.12;
+        int rows = 21;
+        int columns = 26;
+        boolean[][] bombs = new boolean[rows][columns];
+        for(int x = 0; x < rows; x++)
+            for(int y = 0; y < columns; y++)
+                bombs[x][y] = BoardTile.hasBomb(seed, density, x, y);
+        Board reference = new Board(bombs);
+
+        int[] ports = freePorts(4);
+        Process[] processes = PartitionRouter.startTiles(seed, density, rows, columns, 11, 13, ports);
+        try {
+            PartitionRouter router = new PartitionRouter(rows, columns, 11, 13, "localhost", ports);
+            assertEquals(reference.toString(), router.look());
+            assertEquals(reference.getStatus(), router.status());
+
+            Random random = new Random(3);
+            for(int move = 0; move < 150; move++) {
+                int x = random.nextInt(rows);
+                int y = random.nextInt(columns);
+                int kind = random.nextInt(10);
+                int safeCellsLeft = reference.getSafeCellsLeft();
+                int flags = reference.getFlagCount();
+                if(kind < 7) {
+                    String expected = reference.digCell(x, y).equals(MinesweeperServer.BOOM_MSG)
+                            ? MinesweeperServer.BOOM_MSG : "dug " + (safeCellsLeft - reference.getSafeCellsLeft()) + " cells";
+                    assertEquals(expected, router.dig(x, y));
+                }
+                else if(kind < 9) {
+                    reference.SetStatusToFlagged(x, y);
+                    assertEquals("flagged " + (reference.getFlagCount() - flags) + " cells", router.flag(x, y));
+                }
+                else {
+                    reference.unflag(x, y);
+                    assertEquals("deflagged " + (flags - reference.getFlagCount()) + " cells", router.deflag(x, y));
+                }
+                assertEquals(reference.toString(), router.look());
+                assertEquals(reference.getStatus(), router.status());
+            }
+        }
+        finally {
+            for(Process process : processes)
+                process.destroy();
+        }
+    }
+}
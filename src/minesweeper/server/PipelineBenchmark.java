@@ -0,0 +1,98 @@
+package minesweeper.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compares the throughput and latency of commands applied by the connection threads
+ * contending for the board lock with commands applied by the single thread of a BoardPipeline.
+ * Every producer stands for a connection, flagging and deflagging random cells in a loop.
+ * Usage: PipelineBenchmark [SIZE [SECONDS]]
+ */
+public class PipelineBenchmark {
+
+    private static final int[] PRODUCERS = {1, 8, 64};
+
+    /**
+     * Runs a number of producers against the board
+     * @param pipeline the pipeline applying the commands, null to apply them under the board lock
+     * @return the latencies of all the commands in nanoseconds, sorted
+     */
+    private static long[] measure(final Board board, final BoardPipeline pipeline, int numberOfProducers,
+            long millis) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final long[][] latencies = new long[numberOfProducers][];
+        final int rows = board.getTopology().rows();
+        final int columns = board.getTopology().columns();
+        Thread[] producers = new Thread[numberOfProducers];
+        for(int p = 0; p < numberOfProducers; p++) {
+            final int producer = p;
+            producers[p] = new Thread(new Runnable() {
+                public void run() {
+                    BoardCommand command = new BoardCommand();
+                    long[] measured = new long[1 << 16];
+                    int operations = 0;
+                    while(running.get()) {
+                        int x = ThreadLocalRandom.current().nextInt(rows);
+                        int y = ThreadLocalRandom.current().nextInt(columns);
+                        int type = operations % 2 == 0 ? BoardCommand.FLAG_RECT : BoardCommand.DEFLAG_RECT;
+                        command.set(type, x, y, 1, 1, null);
+                        long start = System.nanoTime();
+                        if(pipeline != null)
+                            pipeline.execute(command);
+                        else
+                            command.applyTo(board);
+                        command.render();
+                        if(operations == measured.length)
+                            measured = Arrays.copyOf(measured, measured.length * 2);
+                        measured[operations++] = System.nanoTime() - start;
+                    }
+                    latencies[producer] = Arrays.copyOf(measured, operations);
+                }
+            });
+            producers[p].start();
+        }
+        Thread.sleep(millis);
+        running.set(false);
+        for(Thread producer : producers)
+            producer.join();
+
+        int total = 0;
+        for(long[] measured : latencies)
+            total += measured.length;
+        long[] all = new long[total];
+        int offset = 0;
+        for(long[] measured : latencies) {
+            System.arraycopy(measured, 0, all, offset, measured.length);
+            offset += measured.length;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        Board board = new Board(size);
+        BoardPipeline pipeline = new BoardPipeline(board, 1024);
+        // warm up both paths
+        measure(board, null, 8, 1000);
+        measure(board, pipeline, 8, 1000);
+        for(boolean pipelined : new boolean[] {false, true}) {
+            for(int numberOfProducers : PRODUCERS) {
+                long[] latencies = measure(board, pipelined ? pipeline : null, numberOfProducers, seconds * 1000L);
+                long total = 0;
+                for(long latency : latencies)
+                    total += latency;
+                System.out.printf("%-8s %2d producers: %9.0f commands/s, mean %8.1f us, p99 %8.1f us, p99.9 %9.1f us%n",
+                        pipelined ? "pipeline" : "locked", numberOfProducers,
+                        latencies.length / (double) seconds,
+                        total / 1000.0 / latencies.length,
+                        latencies[(int) (latencies.length * 0.99)] / 1000.0,
+                        latencies[(int) (latencies.length * 0.999)] / 1000.0);
+            }
+        }
+        pipeline.close();
+    }
+}
@@ -0,0 +1,56 @@
+package minesweeper.server;
+
+/**
+ * Measures how long a new game waits for its board: generated on demand by Board(BoardTopology)
+ * and by Board.createRandom, and taken from a BoardPool that had time to fill up.
+ * Usage: PoolBenchmark [SIZE...]
+ */
+public class PoolBenchmark {
+
+    private static final int GAMES = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] sizes = {100, 1000, 3000};
+        if(args.length > 0) {
+            sizes = new int[args.length];
+            for(int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        for(int size : sizes) {
+            BoardTopology topology = new GridTopology(size, size);
+            // the first round warms up
+            long constructor = 0;
+            long random = 0;
+            for(int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for(int game = 0; game < GAMES; game++)
+                    new Board(topology);
+                constructor = (System.nanoTime() - start) / GAMES;
+                start = System.nanoTime();
+                for(int game = 0; game < GAMES; game++)
+                    Board.createRandom(topology, BoardCell.BOMB_PROBABILITY);
+                random = (System.nanoTime() - start) / GAMES;
+            }
+
+            BoardPool pool = new BoardPool(GAMES, 1, Double.POSITIVE_INFINITY);
+            pool.prepare(topology, BoardCell.BOMB_PROBABILITY);
+            while(pool.getReady() < GAMES)
+                Thread.sleep(10);
+            long start = System.nanoTime();
+            for(int game = 0; game < GAMES; game++)
+                pool.take(topology, BoardCell.BOMB_PROBABILITY);
+            long taken = (System.nanoTime() - start) / GAMES;
+            pool.stop();
+
+            Board board = Board.createRandom(topology, BoardCell.BOMB_PROBABILITY);
+            Board fresh = Board.createRandom(topology, BoardCell.BOMB_PROBABILITY);
+            start = System.nanoTime();
+            board.startNewGame(fresh);
+            long started = System.nanoTime() - start;
+
+            System.out.printf("%s: Board(topology) %.2f ms, createRandom %.2f ms, pool take %.1f us, "
+                    + "startNewGame %.1f us (%s)%n", topology, constructor / 1e6, random / 1e6, taken / 1e3,
+                    started / 1e3, pool);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package minesweeper.server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares the text protocol with the binary protocol (see BinaryProtocol).
+ * The codec part renders the same snapshot as text, the way look answers, and encodes it as a
+ * BOARD response, then decodes the BOARD as a client does. The connection part plays flags
+ * and deflags, each answered with the whole board, over a text connection and over a binary
+ * connection to a server on localhost, counting the bytes sent and received.
+ * Usage: ProtocolBenchmark [SIZE [MOVES]]
+ */
+public class ProtocolBenchmark {
+
+    /**
+     * An input stream counting the bytes read through it
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if(read > 0)
+                count += read;
+            return read;
+        }
+    }
+
+    private static void codec(Board board, int iterations) {
+        BoardSnapshot snapshot = board.snapshot();
+        long bytes = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++)
+            bytes += (snapshot.toString() + "\n").getBytes(StandardCharsets.US_ASCII).length;
+        double text = (System.nanoTime() - start) / 1e3 / iterations;
+        long textBytes = bytes / iterations;
+
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        bytes = 0;
+        start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            buffer = BinaryProtocol.encodeBoard(buffer, snapshot);
+            bytes += buffer.position() + BinaryProtocol.varintSize(buffer.position());
+        }
+        double binary = (System.nanoTime() - start) / 1e3 / iterations;
+        long binaryBytes = bytes / iterations;
+
+        start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            ByteBuffer response = ByteBuffer.wrap(buffer.array(), 1, buffer.position() - 1);
+            BinaryProtocol.decodeBoard(response);
+        }
+        double decode = (System.nanoTime() - start) / 1e3 / iterations;
+        snapshot.release();
+
+        System.out.printf("codec %dx%d: text %d bytes %.1f us, binary %d bytes %.1f us (%.1fx smaller), "
+                + "binary decoded to text %.1f us%n", board.getTopology().rows(), board.getTopology().columns(),
+                textBytes, text, binaryBytes, binary, (double) textBytes / binaryBytes, decode);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int moves = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        for(int side : new int[] {size, 10 * size}) {
+            Board board = new Board(new GridTopology(side, side), 0.15);
+            board.digCell(side / 2, side / 2);
+            board.flagRectangle(0, 0, side / 10, side / 10);
+            int iterations = (int) Math.max(3, 20000000L / ((long) side * side));
+            codec(board, iterations / 4);
+            codec(board, iterations);
+        }
+
+        Board board = new Board(new GridTopology(size, size), 0.15);
+        board.digCell(size / 2, size / 2);
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+        final MinesweeperServer server = new MinesweeperServer(port, true, board);
+        Thread serving = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        for(int round = 0; round < 2; round++) {
+            Socket socket = new Socket("localhost", port);
+            CountingInputStream counted = new CountingInputStream(socket.getInputStream());
+            BufferedReader in = new BufferedReader(new InputStreamReader(counted, StandardCharsets.US_ASCII));
+            OutputStream out = socket.getOutputStream();
+            in.readLine();
+            long sent = 0;
+            long received = counted.count;
+            long start = System.nanoTime();
+            for(int move = 0; move < moves; move++) {
+                byte[] request = ((move % 2 == 0 ? "flag " : "deflag ") + (move / 2 % size) + " 0\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+                out.write(request);
+                out.flush();
+                sent += request.length;
+                // the board ends with a line break of its own before the one of println
+                for(int line = 0; line <= size; line++)
+                    in.readLine();
+            }
+            double text = (System.nanoTime() - start) / 1e9;
+            long textReceived = counted.count - received;
+            long textSent = sent;
+            socket.close();
+
+            socket = new Socket("localhost", port);
+            InputStream input = socket.getInputStream();
+            counted = new CountingInputStream(input);
+            // a frame is written as its length then its bytes, which must leave in a single segment
+            out = new BufferedOutputStream(socket.getOutputStream());
+            for(int c = counted.read(); c != '\n'; c = counted.read())
+                ;
+            out.write((BinaryProtocol.HANDSHAKE + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            for(int c = counted.read(); c != '\n'; c = counted.read())
+                ;
+            ByteBuffer request = ByteBuffer.allocate(16);
+            ByteBuffer response = ByteBuffer.allocate(16);
+            sent = 0;
+            received = counted.count;
+            start = System.nanoTime();
+            for(int move = 0; move < moves; move++) {
+                BinaryProtocol.encodeRequest(request, move % 2 == 0 ? BinaryProtocol.FLAG : BinaryProtocol.DEFLAG,
+                        move / 2 % size, 0);
+                BinaryProtocol.writeFrame(out, request);
+                out.flush();
+                sent += request.position() + 1;
+                response = BinaryProtocol.readFrame(counted, response, Integer.MAX_VALUE);
+            }
+            double binary = (System.nanoTime() - start) / 1e9;
+            long binaryReceived = counted.count - received;
+            socket.close();
+
+            System.out.printf("connection %dx%d, %d flags and deflags: text %.0f moves/s, %.1f bytes sent and %.0f "
+                    + "received per move; binary %.0f moves/s, %.1f bytes sent and %.0f received per move%n",
+                    size, size, moves, moves / text, (double) textSent / moves, (double) textReceived / moves,
+                    moves / binary, (double) sent / moves, (double) binaryReceived / moves);
+        }
+    }
+}
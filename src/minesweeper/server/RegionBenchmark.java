@@ -0,0 +1,84 @@
+package minesweeper.server;
+
+import java.util.Random;
+
+/**
+ * Measures Board.countRegion against scanning the rectangles of a played board, and the cost
+ * the index adds to the moves once it is built.
+ * Usage: RegionBenchmark [SIZE...]
+ */
+public class RegionBenchmark {
+
+    private static final int QUERIES = 2000;
+    private static final int MOVES = 1000000;
+
+    /**
+     * Flags and unflags random cells
+     * @return moves per second
+     */
+    private static double moves(Board board, int size, Random random) {
+        long start = System.nanoTime();
+        for(int move = 0; move < MOVES; move++) {
+            int x = random.nextInt(size);
+            int y = random.nextInt(size);
+            if(move % 2 == 0)
+                board.SetStatusToFlagged(x, y);
+            else
+                board.unflag(x, y);
+        }
+        return MOVES / ((System.nanoTime() - start) / 1e9);
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 10000};
+        if(args.length > 0) {
+            sizes = new int[args.length];
+            for(int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        for(int size : sizes) {
+            Board board = new Board(new GridTopology(size, size), 0.15);
+            board.digCell(size / 2, size / 2);
+            Random random = new Random(1);
+            double without = moves(board, size, random);
+
+            long start = System.nanoTime();
+            board.countRegion(0, 0, 1, 1);
+            long build = System.nanoTime() - start;
+            double with = moves(board, size, random);
+
+            int[][] rectangles = new int[QUERIES][];
+            for(int q = 0; q < QUERIES; q++) {
+                int x = random.nextInt(size);
+                int y = random.nextInt(size);
+                rectangles[q] = new int[] {x, y, 1 + random.nextInt(size - x), 1 + random.nextInt(size - y)};
+            }
+            long checksum = 0;
+            // the first round warms up
+            double indexed = 0;
+            for(int round = 0; round < 2; round++) {
+                start = System.nanoTime();
+                for(int[] r : rectangles)
+                    checksum += board.countRegion(r[0], r[1], r[2], r[3])[0];
+                indexed = (System.nanoTime() - start) / 1e3 / QUERIES;
+            }
+            int scans = Math.max(1, QUERIES * 1000 / size / size);
+            start = System.nanoTime();
+            for(int q = 0; q < scans; q++) {
+                int[] r = rectangles[q];
+                int flags = 0;
+                synchronized (board) {
+                    for(int i = r[0]; i < r[0] + r[2]; i++)
+                        for(int j = r[1]; j < r[1] + r[3]; j++)
+                            if(board.isStatusFlagged(i, j))
+                                flags++;
+                }
+                checksum += flags;
+            }
+            double scanned = (System.nanoTime() - start) / 1e3 / scans;
+            System.out.printf("%dx%d: build %.1f ms, count %.2f us, scan %.0f us, moves %.2fM/s without index, "
+                    + "%.2fM/s with it (%d)%n", size, size, build / 1e6, indexed, scanned, without / 1e6,
+                    with / 1e6, checksum);
+        }
+    }
+}
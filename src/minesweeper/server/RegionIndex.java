@@ -0,0 +1,179 @@
+package minesweeper.server;
+
+/**
+ * Counts the flagged and dug cells of any rectangle of a board in O(log(rows) * log(columns)),
+ * with two 2D Fenwick trees over blocks of 2^blockBits * 2^blockBits cells, updated in
+ * O(log(rows) * log(columns)) whenever the status of a cell changes. The blocks lying entirely
+ * inside a rectangle are counted by the trees, and the cells of the other blocks it overlaps,
+ * along its sides, are read from the store: with blocks of one cell there are none, with larger
+ * blocks the index takes 2^(2 * blockBits) times less memory than one int per cell and per tree.
+ * Representation invariant: flagged[(i - 1) * blockColumns + j - 1] holds the number of flagged
+ * cells of the blocks of rows i - lowbit(i) to i - 1 and columns j - lowbit(j) to j - 1,
+ * lowbit(n) being n & -n, and dug the same for the dug cells.
+ * Not thread safe: it must only be used while holding the lock of the board owning the store.
+ */
+final class RegionIndex {
+
+    private final CellStore cells;
+    private final int rows;
+    private final int columns;
+    private final int blockBits;
+    private final int blockRows;
+    private final int blockColumns;
+    private final int[] flagged;
+    private final int[] dug;
+
+    /**
+     * Builds the index of all the cells of a store in O(rows * columns)
+     * @param cells the packed cells of a board in row order
+     * @param rows Integer representing the number of rows of the board
+     * @param columns Integer representing the number of columns of the board
+     * @param blockBits Integer representing the log2 of the side of a block, requires 0 <= blockBits < 16
+     */
+    RegionIndex(CellStore cells, int rows, int columns, int blockBits) {
+        this.cells = cells;
+        this.rows = rows;
+        this.columns = columns;
+        this.blockBits = blockBits;
+        blockRows = ((rows - 1) >> blockBits) + 1;
+        blockColumns = ((columns - 1) >> blockBits) + 1;
+        flagged = new int[blockRows * blockColumns];
+        dug = new int[blockRows * blockColumns];
+        for(int i = 0; i < rows; i++)
+            for(int j = 0; j < columns; j++) {
+                byte cell = cells.get(i * columns + j);
+                int block = (i >> blockBits) * blockColumns + (j >> blockBits);
+                if(BoardCell.isStatusFlagged(cell))
+                    flagged[block]++;
+                else if(BoardCell.isStatusDug(cell))
+                    dug[block]++;
+            }
+        // a 2D Fenwick tree is a Fenwick tree of every row, then of every column of the result
+        toFenwick(flagged);
+        toFenwick(dug);
+        checkRepresentationInvariant();
+    }
+
+    /**
+     * @param size Integer representing the number of cells of a board
+     * @return the blockBits of the index of the board: cells for up to 2^20 cells, 8 * 8 blocks beyond
+     */
+    static int blockBits(int size) {
+        return size <= 1 << 20 ? 0 : 3;
+    }
+
+    /**
+     * Turns the counts of every block into a 2D Fenwick tree in place, in O(number of blocks)
+     */
+    private void toFenwick(int[] tree) {
+        for(int i = 1; i <= blockRows; i++)
+            for(int j = 1; j <= blockColumns; j++) {
+                int parent = j + (j & -j);
+                if(parent <= blockColumns)
+                    tree[(i - 1) * blockColumns + parent - 1] += tree[(i - 1) * blockColumns + j - 1];
+            }
+        for(int i = 1; i <= blockRows; i++) {
+            int parent = i + (i & -i);
+            if(parent <= blockRows)
+                for(int j = 1; j <= blockColumns; j++)
+                    tree[(parent - 1) * blockColumns + j - 1] += tree[(i - 1) * blockColumns + j - 1];
+        }
+    }
+
+    /**
+     * Records the change of a cell, called for every write of the board
+     * @param index Integer representing the index of the cell, in row order
+     * @param before the packed cell before the change
+     * @param after the packed cell after the change
+     */
+    void cellChanged(int index, byte before, byte after) {
+        boolean wasFlagged = BoardCell.isStatusFlagged(before);
+        boolean wasDug = BoardCell.isStatusDug(before);
+        boolean isFlagged = BoardCell.isStatusFlagged(after);
+        boolean isDug = BoardCell.isStatusDug(after);
+        if(wasFlagged == isFlagged && wasDug == isDug)
+            return;
+        int i = (index / columns) >> blockBits;
+        int j = (index % columns) >> blockBits;
+        if(wasFlagged != isFlagged)
+            add(flagged, i, j, isFlagged ? 1 : -1);
+        if(wasDug != isDug)
+            add(dug, i, j, isDug ? 1 : -1);
+    }
+
+    private void add(int[] tree, int blockRow, int blockColumn, int delta) {
+        for(int i = blockRow + 1; i <= blockRows; i += i & -i)
+            for(int j = blockColumn + 1; j <= blockColumns; j += j & -j)
+                tree[(i - 1) * blockColumns + j - 1] += delta;
+    }
+
+    /**
+     * @return the sum of the blocks of the rows 0 to blockRow - 1 and the columns 0 to blockColumn - 1
+     */
+    private int prefix(int[] tree, int blockRow, int blockColumn) {
+        int sum = 0;
+        for(int i = blockRow; i > 0; i -= i & -i)
+            for(int j = blockColumn; j > 0; j -= j & -j)
+                sum += tree[(i - 1) * blockColumns + j - 1];
+        return sum;
+    }
+
+    /**
+     * Counts the cells of a rectangle of the board by status
+     * @param firstRow Integer representing the first row of the rectangle, requires >= 0
+     * @param firstColumn Integer representing the first column of the rectangle, requires >= 0
+     * @param lastRow Integer representing the row following the rectangle, requires <= rows
+     * @param lastColumn Integer representing the column following the rectangle, requires <= columns
+     * @return the number of flagged cells of the rectangle followed by its number of dug cells
+     */
+    int[] count(int firstRow, int firstColumn, int lastRow, int lastColumn) {
+        int[] counts = new int[2];
+        if(firstRow >= lastRow || firstColumn >= lastColumn)
+            return counts;
+        int side = 1 << blockBits;
+        // the blocks lying entirely inside the rectangle
+        int innerFirstRow = (firstRow + side - 1) >> blockBits;
+        int innerLastRow = lastRow >> blockBits;
+        int innerFirstColumn = (firstColumn + side - 1) >> blockBits;
+        int innerLastColumn = lastColumn >> blockBits;
+        if(innerFirstRow >= innerLastRow || innerFirstColumn >= innerLastColumn) {
+            scan(counts, firstRow, firstColumn, lastRow, lastColumn);
+            return counts;
+        }
+        counts[0] = prefix(flagged, innerLastRow, innerLastColumn) - prefix(flagged, innerFirstRow, innerLastColumn)
+                - prefix(flagged, innerLastRow, innerFirstColumn) + prefix(flagged, innerFirstRow, innerFirstColumn);
+        counts[1] = prefix(dug, innerLastRow, innerLastColumn) - prefix(dug, innerFirstRow, innerLastColumn)
+                - prefix(dug, innerLastRow, innerFirstColumn) + prefix(dug, innerFirstRow, innerFirstColumn);
+        // the cells of the rectangle along its sides, outside of the inner blocks
+        int top = innerFirstRow << blockBits;
+        int bottom = innerLastRow << blockBits;
+        scan(counts, firstRow, firstColumn, top, lastColumn);
+        scan(counts, bottom, firstColumn, lastRow, lastColumn);
+        scan(counts, top, firstColumn, bottom, innerFirstColumn << blockBits);
+        scan(counts, top, innerLastColumn << blockBits, bottom, lastColumn);
+        return counts;
+    }
+
+    /**
+     * Adds the flagged and dug cells of a rectangle, read from the store, to counts
+     */
+    private void scan(int[] counts, int firstRow, int firstColumn, int lastRow, int lastColumn) {
+        for(int i = firstRow; i < lastRow; i++)
+            for(int j = firstColumn; j < lastColumn; j++) {
+                byte cell = cells.get(i * columns + j);
+                if(BoardCell.isStatusFlagged(cell))
+                    counts[0]++;
+                else if(BoardCell.isStatusDug(cell))
+                    counts[1]++;
+            }
+    }
+
+    /**
+     * Checks the representation invariant
+     */
+    private void checkRepresentationInvariant() {
+        assert blockBits >= 0 && blockBits < 16;
+        assert flagged.length == blockRows * blockColumns && dug.length == flagged.length;
+        assert prefix(flagged, blockRows, blockColumns) >= 0 && prefix(dug, blockRows, blockColumns) >= 0;
+    }
+}
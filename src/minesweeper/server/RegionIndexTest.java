@@ -0,0 +1,115 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RegionIndexTest {
+
+    /**
+     * Counts the flagged and dug cells of a rectangle by scanning it
+     */
+    private static int[] scan(CellStore cells, int columns, int firstRow, int firstColumn, int lastRow, int lastColumn) {
+        int[] counts = new int[2];
+        for(int i = firstRow; i < lastRow; i++)
+            for(int j = firstColumn; j < lastColumn; j++) {
+                byte cell = cells.get(i * columns + j);
+                if(BoardCell.isStatusFlagged(cell))
+                    counts[0]++;
+                else if(BoardCell.isStatusDug(cell))
+                    counts[1]++;
+            }
+        return counts;
+    }
+
+    /**
+     * Changes random cells of a store and checks random rectangles against a scan
+     */
+    private static void checkIndex(int rows, int columns, int blockBits) {
+        Random random = new Random(blockBits);
+        CellStore cells = new CellStore(rows * columns);
+        for(int i = 0; i < cells.size(); i++) {
+            int status = random.nextInt(3);
+            cells.set(i, status == 0 ? BoardCell.create(false)
+                    : status == 1 ? BoardCell.setStatusToFlagged(BoardCell.create(false))
+                    : BoardCell.setStatusToDug(BoardCell.create(false)));
+        }
+        RegionIndex index = new RegionIndex(cells, rows, columns, blockBits);
+        for(int round = 0; round < 500; round++) {
+            int cell = random.nextInt(cells.size());
+            byte before = cells.get(cell);
+            byte after = BoardCell.isStatusFlagged(before) ? BoardCell.removeFlag(before)
+                    : BoardCell.isStatusDug(before) ? BoardCell.setStatusToFlagged(BoardCell.create(false))
+                    : BoardCell.setStatusToDug(before);
+            cells.set(cell, after);
+            index.cellChanged(cell, before, after);
+
+            int firstRow = random.nextInt(rows + 1);
+            int lastRow = firstRow + random.nextInt(rows + 1 - firstRow);
+            int firstColumn = random.nextInt(columns + 1);
+            int lastColumn = firstColumn + random.nextInt(columns + 1 - firstColumn);
+            assertArrayEquals(scan(cells, columns, firstRow, firstColumn, lastRow, lastColumn),
+                    index.count(firstRow, firstColumn, lastRow, lastColumn));
+        }
+        assertArrayEquals(scan(cells, columns, 0, 0, rows, columns), index.count(0, 0, rows, columns));
+    }
+
+    @Test
+    public void cellIndexTest() {
+        checkIndex(37, 53, 0);
+        checkIndex(1, 1, 0);
+    }
+
+    @Test
+    public void blockIndexTest() {
+        checkIndex(37, 53, 2);
+        checkIndex(3, 100, 2);
+        checkIndex(64, 64, 3);
+    }
+
+    @Test
+    public void countRegionTest() throws IOException {
+        Board board = new Board(new boolean[][] {
+            {false, false, false, true},
+            {false, false, false, false},
+            {true, false, false, false}});
+        assertArrayEquals(new int[] {0, 0, 12}, board.countRegion(0, 0, 3, 4));
+        board.SetStatusToFlagged(0, 3);
+        board.SetStatusToFlagged(2, 0);
+        board.digCell(0, 0);
+        // the flood fill digs the 6 cells of the first two rows next to an empty cell
+        assertArrayEquals(new int[] {2, 6, 4}, board.countRegion(0, 0, 3, 4));
+        assertArrayEquals(new int[] {1, 2, 1}, board.countRegion(1, 0, 5, 2));
+        assertArrayEquals(new int[] {0, 0, 0}, board.countRegion(5, 5, 2, 2));
+        board.unflag(0, 3);
+        assertArrayEquals(new int[] {1, 6, 5}, board.countRegion(-1, -1, 10, 10));
+
+        // restoring a state replaces the cells without telling the index about each of them
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new Board(new boolean[3][4]).writeState(new DataOutputStream(bytes));
+        board.restoreState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), true);
+        assertArrayEquals(new int[] {0, 0, 12}, board.countRegion(0, 0, 3, 4));
+        board.SetStatusToFlagged(1, 1);
+        assertArrayEquals(new int[] {1, 0, 3}, board.countRegion(1, 1, 2, 2));
+    }
+
+    @Test
+    public void countCommandTest() {
+        Board board = new Board(new boolean[][] {{false, true}, {false, false}});
+        board.SetStatusToFlagged(0, 1);
+        board.digCell(1, 0);
+        BoardCommand command = new BoardCommand();
+        // x 1 y 0 width 1 height 2 in the text protocol: the right column
+        command.set(BoardCommand.COUNT, 0, 1, 2, 1, null);
+        assertFalse(command.isExpensive());
+        command.applyTo(board);
+        assertEquals("1 flagged, 0 dug, 1 untouched", command.render());
+    }
+}
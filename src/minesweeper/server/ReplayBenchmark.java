@@ -0,0 +1,85 @@
+package minesweeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures the cost of recording a game with a GameRecorder: the time of a recorded command
+ * against an unrecorded one, the longest command, which tells whether a command waited for
+ * a keyframe to be written, and the bytes the log takes, and then the time of GameReplay
+ * to index the log, to replay it entirely and to seek to random times.
+ * Usage: ReplayBenchmark [SIZE [COMMANDS [KEYFRAME_INTERVAL]]]
+ */
+public class ReplayBenchmark {
+
+    private static final int SEEKS = 20;
+
+    /** Nanoseconds taken by the longest command of the last play */
+    private static long longest;
+
+    /**
+     * Flags and deflags random cells of a board and digs a few of them
+     * @return the nanoseconds taken per command
+     */
+    private static double play(Board board, GameRecorder recorder, int size, int commands) {
+        Random random = new Random(0);
+        BoardCommand command = new BoardCommand();
+        if(recorder != null)
+            command.record(recorder, 1);
+        longest = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < commands; i++) {
+            int type = i % 10 == 0 ? BoardCommand.DIG : i % 2 == 0 ? BoardCommand.FLAG : BoardCommand.DEFLAG;
+            command.set(type, random.nextInt(size), random.nextInt(size), 0, 0, null);
+            long applied = System.nanoTime();
+            command.applyTo(board);
+            longest = Math.max(longest, System.nanoTime() - applied);
+        }
+        return (double) (System.nanoTime() - start) / commands;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int keyframeInterval = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        BoardTopology topology = new GridTopology(size, size);
+        File file = File.createTempFile("replay", ".log");
+        file.deleteOnExit();
+
+        // the first round warms up
+        double unrecorded = 0;
+        double recorded = 0;
+        long longestUnrecorded = 0;
+        long longestRecorded = 0;
+        for(int round = 0; round < 2; round++) {
+            unrecorded = play(Board.createRandom(topology, BoardCell.BOMB_PROBABILITY), null, size, commands);
+            longestUnrecorded = longest;
+            Board board = Board.createRandom(topology, BoardCell.BOMB_PROBABILITY);
+            GameRecorder recorder = new GameRecorder(board, file, keyframeInterval);
+            recorded = play(board, recorder, size, commands);
+            longestRecorded = longest;
+            recorder.close();
+        }
+        long bytes = file.length();
+
+        long start = System.nanoTime();
+        GameReplay replay = new GameReplay(file);
+        long indexed = System.nanoTime() - start;
+        start = System.nanoTime();
+        replay.seek(replay.getLastTime());
+        long replayed = System.nanoTime() - start;
+        Random random = new Random(0);
+        start = System.nanoTime();
+        for(int i = 0; i < SEEKS; i++)
+            replay.seek(replay.getFirstTime() + (long) (random.nextDouble() * (replay.getLastTime() - replay.getFirstTime())));
+        long seek = (System.nanoTime() - start) / SEEKS;
+
+        System.out.printf("%s, %d commands, keyframe every %d: unrecorded %.2f us (longest %.2f ms), "
+                + "recorded %.2f us (longest %.2f ms) per command%n", topology, commands, keyframeInterval,
+                unrecorded / 1e3, longestUnrecorded / 1e6, recorded / 1e3, longestRecorded / 1e6);
+        System.out.printf("log %d bytes with %d keyframes of %d cells, %.1f bytes per command%n", bytes,
+                replay.getKeyframes(), size * size, (double) bytes / commands);
+        System.out.printf("index %.1f ms, full replay %.1f ms, seek %.2f ms%n", indexed / 1e6, replayed / 1e6, seek / 1e6);
+    }
+}
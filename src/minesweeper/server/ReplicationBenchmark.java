@@ -0,0 +1,122 @@
+package minesweeper.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the replication lag of follower server processes on localhost.
+ * The leader board lives in this process; every follower is a MinesweeperServer process
+ * started with minesweeper.follow. After every flag or deflag of the leader, the status of
+ * each follower is polled over its text port until it matches, which bounds the lag from above
+ * by one round trip. The boards of the followers are then compared with the leader's, and the
+ * first follower is promoted once the leader is closed.
+ * Usage: ReplicationBenchmark [SIZE [FOLLOWERS [MOVES]]]
+ */
+public class ReplicationBenchmark {
+
+    /**
+     * A text client of a follower server
+     */
+    private static class Client {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Client(int port) throws IOException, InterruptedException {
+            Socket connected = null;
+            for(int attempt = 0; connected == null; attempt++) {
+                try {
+                    connected = new Socket("localhost", port);
+                }
+                catch (IOException e) {
+                    if(attempt == 200)
+                        throw e;
+                    Thread.sleep(50);
+                }
+            }
+            socket = connected;
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+            in.readLine();
+        }
+
+        /**
+         * Sends a command and reads its answer, made of lines lines
+         */
+        String send(String command, int lines) throws IOException {
+            out.println(command);
+            StringBuilder answer = new StringBuilder();
+            for(int i = 0; i < lines; i++)
+                answer.append(in.readLine()).append("\r\n");
+            return answer.toString();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int numberOfFollowers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int moves = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        Board board = new Board(size);
+        ReplicationLeader leader = new ReplicationLeader(board, 0);
+        leader.start();
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process[] processes = new Process[numberOfFollowers];
+        Client[] clients = new Client[numberOfFollowers];
+        try {
+            for(int f = 0; f < numberOfFollowers; f++) {
+                int port = leader.getPort() + 1 + f;
+                processes[f] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "-Dminesweeper.follow=localhost:" + leader.getPort(),
+                        "-Dminesweeper.customport=" + port,
+                        MinesweeperServer.class.getName(), "true").inheritIO().start();
+                clients[f] = new Client(port);
+            }
+
+            long[] lags = new long[moves * numberOfFollowers];
+            int measured = 0;
+            for(int move = 0; move < moves; move++) {
+                int x = ThreadLocalRandom.current().nextInt(size);
+                int y = ThreadLocalRandom.current().nextInt(size);
+                long start = System.nanoTime();
+                if(board.isStatusFlagged(x, y))
+                    board.unflag(x, y);
+                else
+                    board.SetStatusToFlagged(x, y);
+                String status = board.getStatus() + "\r\n";
+                for(Client client : clients) {
+                    while(!client.send("status", 1).equals(status))
+                        ;
+                    lags[measured++] = System.nanoTime() - start;
+                }
+            }
+            Arrays.sort(lags);
+            System.out.printf("%d followers, %d moves: lag p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                    numberOfFollowers, moves, lags[lags.length / 2] / 1000.0,
+                    lags[(int) (lags.length * 0.99)] / 1000.0, lags[lags.length - 1] / 1000.0);
+
+            // the board ends with a line break of its own before the one of println
+            String expected = board.toString() + "\r\n";
+            for(int f = 0; f < numberOfFollowers; f++)
+                System.out.println("follower " + f + " board identical: "
+                        + clients[f].send("look", size + 1).equals(expected));
+
+            leader.close();
+            System.out.println("follower 0 before promotion: " + clients[0].send("flag 0 0", 1).trim());
+            System.out.println("follower 0 " + clients[0].send("promote", 1).trim() + ", then: "
+                    + clients[0].send("status", 1).trim());
+        }
+        finally {
+            for(Process process : processes)
+                if(process != null)
+                    process.destroy();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package minesweeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps a copy of the board of a ReplicationLeader up to date, so that it can be looked at
+ * without loading the leader and take over if the leader dies.
+ * The copy is built from the state the leader sends first; every following frame is then
+ * applied while holding the lock of the copy, so that readers only see the copy between
+ * two commands of the leader. A whole state sent again is built aside, block after block,
+ * and only then replaces the cells of the copy (see Board.startNewGame).
+ * Once stopped, the follower drops the frames it has read but not applied yet, so that
+ * they never overwrite the moves of the clients of a promoted copy.
+ * Thread safe: the copy is only changed while holding its lock, and the version of the
+ * leader it matches is volatile; the state being received is only used by the thread
+ * reading the frames.
+ */
+public final class ReplicationFollower {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final Board board;
+    /** Version of the leader board the copy matches, once all the frames received are applied */
+    private volatile long leaderVersion;
+    /** Leader version of the last frame read, made visible once its records are applied */
+    private long leaderVersionAfterFrame;
+    private volatile boolean following = true;
+    /** The thread applying the frames of the leader, null until started */
+    private Thread applier;
+    /** The board being built from a state whose blocks are being received, or null */
+    private Board incoming;
+    /** Number of cells of incoming received so far */
+    private int received;
+    private final byte[] block = new byte[BoardEncoder.STATE_BLOCK];
+    private final Inflater inflater = new Inflater(true);
+
+    /**
+     * Connects to a leader and builds the copy of its board from the state it sends first
+     * @param host name of the host of the leader
+     * @param port port number the leader listens for followers on
+     * @throws IOException if the leader cannot be reached or does not send a state
+     */
+    public ReplicationFollower(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        in = new DataInputStream(socket.getInputStream());
+        DataInputStream records = new DataInputStream(new ByteArrayInputStream(readFrame()));
+        if(records.readByte() != ReplicationLeader.STATE)
+            throw new IOException("The leader did not send its state first");
+        incoming = Board.readStateHeader(records);
+        received = 0;
+        Board copy = null;
+        while(copy == null) {
+            byte[] frame = readFrame();
+            if(frame.length == 0 || frame[0] != ReplicationLeader.BLOCK)
+                throw new IOException("The leader did not send the cells of its state");
+            copy = receiveBlock(frame);
+        }
+        board = copy;
+        leaderVersion = leaderVersionAfterFrame;
+    }
+
+    /**
+     * Sets the cells of a frame holding a block of the state being received
+     * @return the board built from the state once its last block is received, null before
+     */
+    private Board receiveBlock(byte[] frame) throws IOException {
+        if(incoming == null)
+            throw new IOException("A block was sent without a state");
+        try {
+            int count = BoardEncoder.decodeStateBlock(ByteBuffer.wrap(frame, 1, frame.length - 1), inflater, block);
+            if(count > incoming.getTopology().rows() * incoming.getTopology().columns() - received)
+                throw new IOException("The blocks overflow the board");
+            received += count;
+            if(!incoming.restoreCells(received - count, block, count))
+                return null;
+        }
+        catch (DataFormatException | RuntimeException e) {
+            throw new IOException("Invalid block", e);
+        }
+        Board complete = incoming;
+        incoming = null;
+        return complete;
+    }
+
+    /**
+     * @return the copy of the board of the leader
+     */
+    public Board getBoard() {
+        return board;
+    }
+
+    /**
+     * @return the version of the leader board that the copy matches
+     */
+    public long getLeaderVersion() {
+        return leaderVersion;
+    }
+
+    /**
+     * @return true until the leader is gone or the follower is stopped
+     */
+    public boolean isFollowing() {
+        return following;
+    }
+
+    /**
+     * Starts applying the changes of the leader in a background thread,
+     * until the leader is gone or the follower is stopped
+     */
+    public synchronized void start() {
+        applier = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(true) {
+                        byte[] frame = readFrame();
+                        if(frame.length > 0 && frame[0] == ReplicationLeader.BLOCK) {
+                            Board complete = receiveBlock(frame);
+                            if(complete != null) {
+                                synchronized(board) {
+                                    if(!following)
+                                        return;
+                                    board.startNewGame(complete);
+                                    leaderVersion = leaderVersionAfterFrame;
+                                }
+                            }
+                        }
+                        else
+                            applyRecords(new DataInputStream(new ByteArrayInputStream(frame)));
+                    }
+                }
+                catch (IOException e) {
+                    // the leader is gone or the follower has been stopped
+                }
+                finally {
+                    following = false;
+                    inflater.end();
+                }
+            }
+        }, "replication-follower");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * Stops following the leader, so that the copy can be changed by its own clients,
+     * and waits for the applier to finish the frame it may be applying
+     */
+    public void stop() throws IOException {
+        following = false;
+        socket.close();
+        Thread started;
+        synchronized(this) {
+            started = applier;
+        }
+        if(started == null || started == Thread.currentThread())
+            return;
+        boolean interrupted = false;
+        while(true) {
+            try {
+                started.join();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Reads the next frame of the leader, setting the leader version it leads to
+     * @return the records of the frame
+     * @throws IOException if the connection fails or the length of the frame is invalid
+     */
+    private byte[] readFrame() throws IOException {
+        int length = in.readInt();
+        long version = in.readLong();
+        if(length < 0 || length > ReplicationLeader.MAX_FRAME)
+            throw new IOException("Invalid frame length " + length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        leaderVersionAfterFrame = version;
+        return frame;
+    }
+
+    /**
+     * Applies all the records of a frame as one atomic change of the copy, unless the follower is stopped
+     */
+    private void applyRecords(DataInputStream records) throws IOException {
+        synchronized(board) {
+            if(!following)
+                return;
+            try {
+                while(true) {
+                    byte type;
+                    try {
+                        type = records.readByte();
+                    }
+                    catch (EOFException e) {
+                        break;
+                    }
+                    if(type == ReplicationLeader.CELL)
+                        board.applyCell(records.readInt(), records.readByte());
+                    else if(type == ReplicationLeader.EXPLOSION)
+                        board.applyExplosion(records.readInt());
+                    else if(type == ReplicationLeader.STATE) {
+                        // the cells follow in frames of their own, the copy being replaced once they all arrived
+                        incoming = Board.readStateHeader(records);
+                        received = 0;
+                    }
+                    else
+                        throw new IOException("Unknown record " + type);
+                }
+            }
+            finally {
+                if(incoming == null)
+                    leaderVersion = leaderVersionAfterFrame;
+            }
+        }
+    }
+}
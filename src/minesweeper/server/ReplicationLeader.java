@@ -0,0 +1,292 @@
+package minesweeper.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams the ordered changes of a board to follower processes (see ReplicationFollower).
+ * A follower first receives the whole state of the board, then every change of a cell and
+ * every explosion, in the order they were made, and again the whole state whenever all the
+ * cells were replaced at once (lazily placed mines, new game).
+ * Changes are appended to a buffer per follower while holding the board lock, and sent by
+ * a thread per follower as frames taken while holding the board lock too, so that a frame
+ * always holds whole commands and followers never apply half of a flood fill.
+ * A whole state is not buffered: the sender takes a snapshot of the board, which supersedes
+ * the changes buffered so far, and streams its cells encoded by BoardEncoder in frames of
+ * STATE_BLOCK cells without holding the board lock, the changes made meanwhile being buffered.
+ * A follower whose buffer of changes grows beyond MAX_PENDING bytes is disconnected.
+ * Thread safe: the followers are only accessed while holding the board lock, and the buffer
+ * of every follower while holding its own lock, always after the board lock; sockets are
+ * never closed while holding the board lock.
+ */
+public final class ReplicationLeader {
+
+    static final byte CELL = 'C';
+    static final byte EXPLOSION = 'X';
+    static final byte STATE = 'S';
+    /** Type of the frames holding a block of the cells of a state, see BoardEncoder.encodeStateBlock */
+    static final byte BLOCK = 'B';
+
+    /** Size of the changes a follower may lag behind before being disconnected */
+    private static final int MAX_PENDING = 1 << 26;
+    /** Largest frame sent to a follower: the changes buffered, or a block of a state and its type */
+    static final int MAX_FRAME = Math.max(MAX_PENDING, 1 + BoardEncoder.MAX_STATE_BLOCK);
+
+    private final Board board;
+    private final ServerSocket serverSocket;
+    /** Connected followers, only accessed while holding the board lock */
+    private final List<Follower> followers = new ArrayList<Follower>();
+    private final BoardListener listener = new BoardListener() {
+        public void cellChanged(int index, byte before, byte after) {
+            for(Follower follower : followers)
+                follower.appendCell(index, after);
+        }
+        public void exploded(int index) {
+            for(Follower follower : followers)
+                follower.appendExplosion(index);
+        }
+        public void cellsReplaced() {
+            for(Follower follower : followers)
+                follower.appendState();
+        }
+    };
+
+    /**
+     * A connected follower along with the changes not sent to it yet
+     */
+    private class Follower implements Runnable {
+        private final Socket socket;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final DataOutputStream records = new DataOutputStream(pending);
+        /** True if the whole state is to be sent, the changes made until then being part of it */
+        private boolean stateNeeded = false;
+        private boolean closed = false;
+
+        Follower(Socket socket) {
+            this.socket = socket;
+        }
+
+        synchronized void appendCell(int index, byte cell) {
+            if(closed || stateNeeded)
+                return;
+            try {
+                records.writeByte(CELL);
+                records.writeInt(index);
+                records.writeByte(cell);
+            }
+            catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            appended();
+        }
+
+        synchronized void appendExplosion(int index) {
+            if(closed || stateNeeded)
+                return;
+            try {
+                records.writeByte(EXPLOSION);
+                records.writeInt(index);
+            }
+            catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            appended();
+        }
+
+        /**
+         * Asks the sender to send the whole state of the board instead of the changes buffered
+         */
+        synchronized void appendState() {
+            if(closed)
+                return;
+            stateNeeded = true;
+            pending.reset();
+            notify();
+        }
+
+        private void appended() {
+            if(pending.size() > MAX_PENDING) {
+                closed = true;
+                pending.reset();
+                // the board lock is held and the sender may be blocked writing to the follower,
+                // so the socket is closed by another thread
+                Thread closer = new Thread(new Runnable() {
+                    public void run() {
+                        close();
+                    }
+                }, "replication-closer");
+                closer.setDaemon(true);
+                closer.start();
+            }
+            notify();
+        }
+
+        synchronized void close() {
+            closed = true;
+            pending.reset();
+            notify();
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void run() {
+            BoardEncoder encoder = new BoardEncoder();
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                ByteBuffer block = ByteBuffer.allocate(1 << 12);
+                while(true) {
+                    synchronized(this) {
+                        while(pending.size() == 0 && !stateNeeded && !closed)
+                            wait();
+                        if(closed)
+                            return;
+                    }
+                    byte[] frame;
+                    BoardSnapshot snapshot = null;
+                    long version;
+                    synchronized(board) {
+                        synchronized(this) {
+                            if(stateNeeded) {
+                                stateNeeded = false;
+                                pending.reset();
+                                ByteArrayOutputStream state = new ByteArrayOutputStream();
+                                DataOutputStream header = new DataOutputStream(state);
+                                header.writeByte(STATE);
+                                snapshot = board.writeStateHeader(header);
+                                frame = state.toByteArray();
+                            }
+                            else {
+                                frame = pending.toByteArray();
+                                pending.reset();
+                            }
+                        }
+                        version = board.getVersion();
+                    }
+                    try {
+                        writeFrame(out, frame, frame.length, version);
+                        if(snapshot != null) {
+                            long size = (long) snapshot.getRows() * snapshot.getColumns();
+                            for(int first = 0; first < size; first += BoardEncoder.STATE_BLOCK) {
+                                block.clear();
+                                block.put(BLOCK);
+                                block = encoder.encodeStateBlock(block, snapshot, first);
+                                writeFrame(out, block.array(), block.position(), version);
+                            }
+                        }
+                    }
+                    finally {
+                        if(snapshot != null)
+                            snapshot.release();
+                    }
+                    out.flush();
+                }
+            }
+            catch (IOException e) {
+                // the follower is gone, it is dropped below
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                encoder.end();
+                synchronized(board) {
+                    followers.remove(this);
+                }
+                close();
+            }
+        }
+
+        private void writeFrame(DataOutputStream out, byte[] frame, int length, long version) throws IOException {
+            out.writeInt(length);
+            out.writeLong(version);
+            out.write(frame, 0, length);
+        }
+    }
+
+    /**
+     * Makes a leader listening for followers on port
+     * @param board the board whose changes are streamed
+     * @param port port number, requires 0 <= port <= 65535, 0 picking any free port
+     * @throws IOException if the port cannot be listened on
+     */
+    public ReplicationLeader(Board board, int port) throws IOException {
+        this.board = board;
+        this.serverSocket = new ServerSocket(port);
+    }
+
+    /**
+     * @return the port the leader listens for followers on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts listening to the changes of the board and accepting followers in a background thread
+     */
+    public void start() {
+        board.addListener(listener);
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(true)
+                        follow(serverSocket.accept());
+                }
+                catch (IOException e) {
+                    // the leader has been closed
+                }
+            }
+        }, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Registers a new follower, starting its stream with the current state of the board
+     */
+    private void follow(Socket socket) {
+        Follower follower = new Follower(socket);
+        synchronized(board) {
+            follower.appendState();
+            followers.add(follower);
+        }
+        Thread sender = new Thread(follower, "replication-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * @return the number of connected followers
+     */
+    public int getFollowerCount() {
+        synchronized(board) {
+            return followers.size();
+        }
+    }
+
+    /**
+     * Stops streaming the changes of the board and disconnects all the followers
+     */
+    public void close() throws IOException {
+        serverSocket.close();
+        List<Follower> disconnected;
+        synchronized(board) {
+            board.removeListener(listener);
+            disconnected = new ArrayList<Follower>(followers);
+            followers.clear();
+        }
+        for(Follower follower : disconnected)
+            follower.close();
+    }
+}
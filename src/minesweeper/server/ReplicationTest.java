@@ -0,0 +1,215 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class ReplicationTest {
+
+    /**
+     * @return the state of the board as written by writeState
+     */
+    private static byte[] state(Board board) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        board.writeState(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Waits until the follower has applied every change of the leader board
+     */
+    private static void awaitReplication(Board leader, ReplicationFollower follower) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(follower.getLeaderVersion() != leader.getVersion()) {
+            assertTrue("replication timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void stateRoundTripTest() throws IOException {
+        Board b = new Board(new HexTopology(5, 7));
+        b.SetStatusToFlagged(1, 1);
+        b.digCell(3, 3);
+        Board copy = Board.readState(new DataInputStream(new ByteArrayInputStream(state(b))));
+        assertArrayEquals(state(b), state(copy));
+        assertEquals(b.toString(), copy.toString());
+        assertEquals(b.getStatus(), copy.getStatus());
+        assertTrue(copy.countersMatchScan());
+    }
+
+    @Test
+    public void followerMatchesLeaderTest() throws IOException, InterruptedException {
+        boolean[][] bombs = new boolean[30][40];
+        for(int i = 0; i < 30; i++)
+            bombs[i][(i * 7) % 40] = true;
+        Board b = new Board(bombs);
+        ReplicationLeader leader = new ReplicationLeader(b, 0);
+        leader.start();
+        b.SetStatusToFlagged(0, 0);
+        ReplicationFollower first = new ReplicationFollower("localhost", leader.getPort());
+        first.start();
+        b.digCell(29, 0);
+        b.digCell(0, 0);
+        ReplicationFollower second = new ReplicationFollower("localhost", leader.getPort());
+        second.start();
+        b.unflag(0, 0);
+        assertEquals(MinesweeperServer.BOOM_MSG, b.digCell(0, 0));
+        b.flagRectangle(10, 10, 5, 5);
+
+        awaitReplication(b, first);
+        awaitReplication(b, second);
+        assertArrayEquals(state(b), state(first.getBoard()));
+        assertArrayEquals(state(b), state(second.getBoard()));
+        assertEquals(b.getStatus(), first.getBoard().getStatus());
+        assertTrue(second.getBoard().countersMatchScan());
+        assertEquals(2, leader.getFollowerCount());
+
+        leader.close();
+        long deadline = System.currentTimeMillis() + 10000;
+        while(first.isFollowing() && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertFalse(first.isFollowing());
+    }
+
+    @Test
+    public void lazyMinesReplicatedTest() throws IOException, InterruptedException {
+        Board b = new Board(new GridTopology(20, 20), 0.2);
+        ReplicationLeader leader = new ReplicationLeader(b, 0);
+        leader.start();
+        ReplicationFollower follower = new ReplicationFollower("localhost", leader.getPort());
+        follower.start();
+        b.digCell(10, 10);
+
+        awaitReplication(b, follower);
+        assertArrayEquals(state(b), state(follower.getBoard()));
+        assertEquals(b.toString(), follower.getBoard().toString());
+        leader.close();
+    }
+
+    @Test
+    public void encodedStateTest() throws IOException, DataFormatException {
+        // more cells than a block holds
+        Board b = new Board(new GridTopology(1100, 1000), 0.2);
+        b.digCell(500, 500);
+        b.SetStatusToFlagged(0, 0);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        BoardSnapshot snapshot = b.writeStateHeader(new DataOutputStream(header));
+        Board copy = Board.readStateHeader(new DataInputStream(new ByteArrayInputStream(header.toByteArray())));
+        BoardEncoder encoder = new BoardEncoder();
+        Inflater inflater = new Inflater(true);
+        byte[] cells = new byte[BoardEncoder.STATE_BLOCK];
+        int blocks = 0;
+        for(int first = 0; first < 1100 * 1000; first += BoardEncoder.STATE_BLOCK) {
+            ByteBuffer block = encoder.encodeStateBlock(ByteBuffer.allocate(1), snapshot, first);
+            block.flip();
+            int count = BoardEncoder.decodeStateBlock(block, inflater, cells);
+            assertEquals(first + count == 1100 * 1000, copy.restoreCells(first, cells, count));
+            blocks++;
+        }
+        snapshot.release();
+        encoder.end();
+        inflater.end();
+        assertEquals(2, blocks);
+        assertArrayEquals(state(b), state(copy));
+        assertEquals(b.getStatus(), copy.getStatus());
+    }
+
+    @Test
+    public void largeStateReplicatedTest() throws IOException, InterruptedException {
+        Board b = new Board(new GridTopology(1100, 1000), 0.2);
+        b.SetStatusToFlagged(3, 3);
+        ReplicationLeader leader = new ReplicationLeader(b, 0);
+        leader.start();
+        ReplicationFollower follower = new ReplicationFollower("localhost", leader.getPort());
+        follower.start();
+        assertArrayEquals(state(b), state(follower.getBoard()));
+        // placing the mines replaces all the cells, which are sent again
+        b.digCell(600, 600);
+        b.SetStatusToFlagged(0, 0);
+        awaitReplication(b, follower);
+        assertArrayEquals(state(b), state(follower.getBoard()));
+        assertTrue(follower.getBoard().countersMatchScan());
+        leader.close();
+    }
+
+    @Test
+    public void promotedFollowerTest() throws IOException, InterruptedException {
+        Board b = new Board(new boolean[3][3]);
+        ReplicationLeader leader = new ReplicationLeader(b, 0);
+        leader.start();
+        ReplicationFollower follower = new ReplicationFollower("localhost", leader.getPort());
+        follower.start();
+        b.SetStatusToFlagged(1, 1);
+        awaitReplication(b, follower);
+        leader.close();
+        follower.stop();
+
+        // once promoted, the copy keeps its game state and accepts moves
+        Board copy = follower.getBoard();
+        assertTrue(copy.isStatusFlagged(1, 1));
+        copy.unflag(1, 1);
+        copy.digCell(0, 0);
+        assertTrue(copy.isWon());
+        assertTrue(copy.countersMatchScan());
+    }
+
+    @Test
+    public void stoppedFollowerTest() throws IOException, InterruptedException {
+        Board b = new Board(new boolean[3][3]);
+        ReplicationLeader leader = new ReplicationLeader(b, 0);
+        leader.start();
+        ReplicationFollower follower = new ReplicationFollower("localhost", leader.getPort());
+        follower.start();
+        b.SetStatusToFlagged(1, 1);
+        awaitReplication(b, follower);
+        // once stop returns, the applier is done and the changes of the leader are no longer applied
+        follower.stop();
+        assertFalse(follower.isFollowing());
+        b.SetStatusToFlagged(2, 2);
+        Board copy = follower.getBoard();
+        copy.digCell(2, 2);
+        Thread.sleep(100);
+        assertFalse(copy.isStatusFlagged(2, 2));
+        leader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidFrameLengthTest() throws IOException {
+        final ServerSocket fake = new ServerSocket(0);
+        Thread leader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket socket = fake.accept();
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    // a negative length fails as a disconnection rather than allocating the frame
+                    out.writeInt(-1);
+                    out.writeLong(0);
+                    out.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        leader.setDaemon(true);
+        leader.start();
+        try {
+            new ReplicationFollower("localhost", fake.getLocalPort());
+        }
+        finally {
+            fake.close();
+        }
+    }
+}
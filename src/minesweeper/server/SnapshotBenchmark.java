@@ -0,0 +1,85 @@
+package minesweeper.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the latency of flag and deflag operations while concurrent readers keep
+ * rendering the board, either from snapshots (look as it is served now) or while
+ * holding the board lock for the whole render (look as it was served before snapshots).
+ * Usage: SnapshotBenchmark [SIZE [SECONDS]]
+ */
+public class SnapshotBenchmark {
+
+    private static final int[] READERS = {0, 1, 4, 16};
+
+    /**
+     * Runs one writer against a number of readers
+     * @return the writer latencies in nanoseconds, sorted
+     */
+    private static long[] measure(final Board board, int numberOfReaders, final boolean lockedReads,
+            long millis) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] readers = new Thread[numberOfReaders];
+        for(int i = 0; i < numberOfReaders; i++) {
+            readers[i] = new Thread(new Runnable() {
+                public void run() {
+                    while(running.get()) {
+                        if(lockedReads)
+                            synchronized(board) {
+                                board.toString();
+                            }
+                        else
+                            board.toString();
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        int rows = board.getTopology().rows();
+        int columns = board.getTopology().columns();
+        long[] latencies = new long[1 << 20];
+        int operations = 0;
+        long end = System.currentTimeMillis() + millis;
+        while(System.currentTimeMillis() < end && operations < latencies.length) {
+            int x = ThreadLocalRandom.current().nextInt(rows);
+            int y = ThreadLocalRandom.current().nextInt(columns);
+            long start = System.nanoTime();
+            board.SetStatusToFlagged(x, y);
+            board.unflag(x, y);
+            latencies[operations++] = System.nanoTime() - start;
+        }
+
+        running.set(false);
+        for(Thread reader : readers)
+            reader.join();
+        long[] measured = Arrays.copyOf(latencies, operations);
+        Arrays.sort(measured);
+        return measured;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        Board board = new Board(size);
+        // warm up both paths
+        measure(board, 1, false, 1000);
+        measure(board, 1, true, 1000);
+        for(boolean lockedReads : new boolean[] {true, false}) {
+            for(int numberOfReaders : READERS) {
+                long[] latencies = measure(board, numberOfReaders, lockedReads, seconds * 1000L);
+                long total = 0;
+                for(long latency : latencies)
+                    total += latency;
+                System.out.printf("%-9s %2d readers: %8d writes, mean %7.1f us, p99 %7.1f us, p99.9 %8.1f us, max %8.1f us%n",
+                        lockedReads ? "locked" : "snapshot", numberOfReaders, latencies.length,
+                        total / 1000.0 / latencies.length,
+                        latencies[(int) (latencies.length * 0.99)] / 1000.0,
+                        latencies[(int) (latencies.length * 0.999)] / 1000.0,
+                        latencies[latencies.length - 1] / 1000.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package minesweeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares a board whose cells are kept on the heap with a board whose cells are kept in a
+ * memory-mapped file (see CellStore), both with mines placed on the first dig at density 0.2.
+ * Measures the creation, the first dig placing the mines, random digs and flags over a window
+ * of WINDOW x WINDOW cells and over the whole board, rendering when the board is small enough
+ * for its String, and flushing the mapped board; then prints the heap used and the time spent
+ * in garbage collection. Run each store in its own JVM so that they do not share the heap:
+ * the heap store needs -Xmx above SIZE * SIZE bytes, the mapped one does not.
+ * Usage: StorageBenchmark heap|mapped [SIZE [MOVES [WINDOW [FILE]]]]
+ */
+public class StorageBenchmark {
+
+    /** Largest board rendered, its String taking 2 * RENDER_LIMIT bytes */
+    private static final long RENDER_LIMIT = 50000000;
+
+    private static long gcMillis() {
+        long millis = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += gc.getCollectionTime();
+        return millis;
+    }
+
+    private static void report(String what, long start, int operations) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if(operations > 0)
+            System.out.printf("%-26s %9.3f s %12.0f ops/s%n", what, seconds, operations / seconds);
+        else
+            System.out.printf("%-26s %9.3f s%n", what, seconds);
+    }
+
+    /**
+     * Digs, flags and deflags random cells of a square of the board
+     */
+    private static void play(Board board, Random random, int top, int left, int side, int moves) {
+        for(int move = 0; move < moves; move++) {
+            int x = top + random.nextInt(side);
+            int y = left + random.nextInt(side);
+            switch(random.nextInt(4)) {
+            case 0: board.SetStatusToFlagged(x, y); break;
+            case 1: board.unflag(x, y); break;
+            default: board.digCell(x, y); break;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean mapped = args[0].equals("mapped");
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int moves = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+        int window = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+        File file = new File(args.length > 4 ? args[4] : "board.cells");
+        Random random = new Random(1);
+
+        long start = System.nanoTime();
+        Board board = mapped ? Board.createMapped(file, new GridTopology(size, size), 0.2)
+                : new Board(new GridTopology(size, size), 0.2);
+        report((mapped ? "mapped" : "heap") + " " + size + "x" + size + " create", start, 0);
+
+        start = System.nanoTime();
+        board.digCell(size / 2, size / 2);
+        report("first dig placing mines", start, 0);
+
+        int corner = Math.max(0, size / 2 - window / 2);
+        start = System.nanoTime();
+        play(board, random, corner, corner, Math.min(window, size), moves);
+        report("moves in window " + Math.min(window, size), start, moves);
+
+        start = System.nanoTime();
+        play(board, random, 0, 0, size, moves);
+        report("moves anywhere", start, moves);
+
+        if((long) size * size <= RENDER_LIMIT) {
+            start = System.nanoTime();
+            int length = board.toString().length();
+            report("render " + length + " chars", start, 0);
+        }
+
+        if(mapped) {
+            start = System.nanoTime();
+            board.flush();
+            report("flush", start, 0);
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        System.out.printf("heap used %d MB, gc %d ms, %s%n",
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20, gcMillis(), board.getStatus());
+    }
+}
@@ -0,0 +1,65 @@
+package minesweeper.server;
+
+/**
+ * A token bucket refilled at a constant rate up to its burst size.
+ * Costs known up front are taken with tryTake; costs only known once a command has run,
+ * such as the cells opened by a flood fill, are charged afterwards and may leave the bucket
+ * in debt, which is paid back by the refill before anything else is admitted.
+ * Not thread safe: a bucket belongs to one connection.
+ */
+final class TokenBucket {
+
+    /** Tokens added per nanosecond */
+    private final double rate;
+    private final double burst;
+    private double tokens;
+    private long refilled;
+
+    /**
+     * Creates a full bucket
+     * @param perSecond tokens added per second, requires > 0
+     * @param burst largest number of tokens held, requires > 0
+     */
+    TokenBucket(double perSecond, double burst) {
+        this.rate = perSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilled = System.nanoTime();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) * rate);
+        refilled = now;
+    }
+
+    /**
+     * Takes tokens if the bucket holds enough of them
+     * @param cost number of tokens to take
+     * @return true if they were taken
+     */
+    boolean tryTake(double cost) {
+        refill();
+        if(tokens < cost)
+            return false;
+        tokens -= cost;
+        return true;
+    }
+
+    /**
+     * @return true if the bucket is not in debt
+     */
+    boolean hasTokens() {
+        refill();
+        return tokens > 0;
+    }
+
+    /**
+     * Takes tokens, leaving the bucket in debt if it does not hold enough of them
+     * @param cost number of tokens to take
+     */
+    void charge(double cost) {
+        refill();
+        tokens -= cost;
+    }
+}
@@ -0,0 +1,107 @@
+package minesweeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares counting the adjacent bombs of every cell through a BoardTopology
+ * with the hard-coded square paths Board used before topologies existed:
+ * the list allocating getNeighbors and the bounds checked 3x3 loop.
+ * Usage: TopologyBenchmark [SIZE [ROUNDS]]
+ */
+public class TopologyBenchmark {
+
+    private final byte[][] square;
+    private final byte[] cells;
+    private final int size;
+
+    private TopologyBenchmark(int size) {
+        this.size = size;
+        this.square = new byte[size][size];
+        this.cells = new byte[size * size];
+        for(int i = 0; i < size; i++)
+            for(int j = 0; j < size; j++) {
+                square[i][j] = BoardCell.createRandom();
+                cells[i * size + j] = square[i][j];
+            }
+    }
+
+    /**
+     * The original path: a new list of neighbors for every cell
+     */
+    private long countWithNeighborLists() {
+        long total = 0;
+        for(int i = 0; i < size; i++)
+            for(int j = 0; j < size; j++) {
+                List<Byte> neighborsList = new ArrayList<Byte>();
+                for(int k = i-1; k <= i+1; k++)
+                    for(int l = j-1; l <= j+1; l++)
+                        if((k != i || l != j) && k >= 0 && k < size && l >= 0 && l < size)
+                            neighborsList.add(square[k][l]);
+                for(Byte cell : neighborsList)
+                    if(BoardCell.containsBomb(cell))
+                        total++;
+            }
+        return total;
+    }
+
+    /**
+     * The hard-coded square loop, without allocation
+     */
+    private long countWithSquareLoop() {
+        long total = 0;
+        for(int i = 0; i < size; i++)
+            for(int j = 0; j < size; j++)
+                for(int k = i-1; k <= i+1; k++)
+                    for(int l = j-1; l <= j+1; l++)
+                        if((k != i || l != j) && k >= 0 && k < size && l >= 0 && l < size
+                                && BoardCell.containsBomb(square[k][l]))
+                            total++;
+        return total;
+    }
+
+    private long countWithTopology(BoardTopology topology) {
+        int[] neighbors = new int[topology.maxNeighbors()];
+        long total = 0;
+        for(int i = 0; i < size; i++)
+            for(int j = 0; j < size; j++) {
+                int numberOfNeighbors = topology.neighbors(i, j, neighbors);
+                for(int n = 0; n < numberOfNeighbors; n++)
+                    if(BoardCell.containsBomb(cells[neighbors[n]]))
+                        total++;
+            }
+        return total;
+    }
+
+    private long run(String path) {
+        if(path.equals("lists"))
+            return countWithNeighborLists();
+        else if(path.equals("square"))
+            return countWithSquareLoop();
+        else if(path.equals("grid"))
+            return countWithTopology(new GridTopology(size, size));
+        else if(path.equals("torus"))
+            return countWithTopology(new TorusTopology(size, size));
+        else
+            return countWithTopology(new HexTopology(size, size));
+    }
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        TopologyBenchmark benchmark = new TopologyBenchmark(size);
+        String[] paths = {"lists", "square", "grid", "torus", "hex"};
+        long checksum = 0;
+        for(String path : paths) {
+            // warm up so that the JIT compiles and inlines the measured loop
+            for(int round = 0; round < rounds; round++)
+                checksum += benchmark.run(path);
+            long start = System.nanoTime();
+            for(int round = 0; round < rounds; round++)
+                checksum += benchmark.run(path);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-7s %6.2f ns per cell%n", path, (double) elapsed / rounds / size / size);
+        }
+        System.out.println("checksum " + checksum);
+    }
+}
@@ -0,0 +1,55 @@
+package minesweeper.server;
+
+/**
+ * A rectangular board whose opposite edges are glued together,
+ * so that every cell has exactly 8 neighbors.
+ */
+public final class TorusTopology implements BoardTopology {
+
+    private final int rows;
+    private final int columns;
+
+    /**
+     * @param rows Integer representing the number of rows, requires >= 3 so that neighbors are distinct
+     * @param columns Integer representing the number of columns, requires >= 3 so that neighbors are distinct
+     */
+    public TorusTopology(int rows, int columns) {
+        if(rows < 3 || columns < 3)
+            throw new IllegalArgumentException("A torus needs at least 3 rows and 3 columns");
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public int maxNeighbors() {
+        return 8;
+    }
+
+    public int neighbors(int x, int y, int[] neighbors) {
+        int up = (x == 0 ? rows - 1 : x - 1) * columns;
+        int row = x * columns;
+        int down = (x == rows - 1 ? 0 : x + 1) * columns;
+        int left = y == 0 ? columns - 1 : y - 1;
+        int right = y == columns - 1 ? 0 : y + 1;
+        neighbors[0] = up + left;
+        neighbors[1] = up + y;
+        neighbors[2] = up + right;
+        neighbors[3] = row + left;
+        neighbors[4] = row + right;
+        neighbors[5] = down + left;
+        neighbors[6] = down + y;
+        neighbors[7] = down + right;
+        return 8;
+    }
+
+    public String toString() {
+        return "torus " + columns + "x" + rows;
+    }
+}